@@ -18,49 +18,33 @@ package com.kreolite.cvrccar.BluetoothService;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
-import android.widget.Toast;
+
+import com.kreolite.cvrccar.Transport.Transport;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Set;
-import java.util.UUID;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It finds the paired device and runs the
+ * connection over its serial port, see LinkService for the connection itself.
  */
-public class BluetoothService {
+public class BluetoothService extends LinkService {
     // Debugging
     private static final String TAG = "BluetoothService";
 
-    // Unique UUID for this application
-    private static final UUID SERIAL_PORT_SERVICE_UUID =
-            UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
-
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
     private String mBtDeviceName = null;
     private BluetoothDevice mBtDevice;
     private boolean mDevicePaired = false;
 
-    // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_PAIRED = 1;     // our device is paired
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
-
     /**
      * Constructor. Prepares a new BT session.
      *
@@ -68,23 +52,15 @@ public class BluetoothService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public BluetoothService(Context context, Handler handler) {
+        super(new HandlerListener(handler));
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
         mHandler = handler;
     }
 
-    /**
-     * Set the current state of BT connection
-     *
-     * @param state An integer defining the current connection state
-     */
-    private synchronized void setState(int state, boolean isStateSent) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        if (isStateSent)
-            // Give the new state to the Handler so the UI Activity can show
-            mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    @Override
+    protected synchronized void setState(int state, boolean isStateSent) {
+        Log.d(TAG, "setState() " + getState() + " -> " + state);
+        super.setState(state, isStateSent);
     }
 
     public void setBtDeviceName(String BtDeviceName) {
@@ -95,43 +71,21 @@ public class BluetoothService {
         return mBtDevice;
     }
 
-    /**
-     * Return the current connection state.
-     */
-    public synchronized int getState() {
-        return mState;
-    }
-
     /**
      * Start BT service. Called by the Activity onResume()
      */
+    @Override
     public synchronized void start() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
         Set<BluetoothDevice> bondedDevices = mAdapter.getBondedDevices();
 
         if (bondedDevices.isEmpty()) {
             // Send a failure message back to the Activity
-            Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-            Bundle bundle = new Bundle();
-            bundle.putString(Constants.TOAST, "No paired devices!");
-            msg.setData(bundle);
-            mHandler.sendMessage(msg);
-            setState(STATE_NONE, false);
+            sendToast("No paired devices!");
+            setTransport(null);
         }
-        else if (mState == STATE_NONE)
+        else if (getState() == STATE_NONE)
         {
             mDevicePaired = false;
             for (BluetoothDevice iterator : bondedDevices)
@@ -147,15 +101,16 @@ public class BluetoothService {
 
             if (!mDevicePaired)
             {
-                Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-                Bundle bundle = new Bundle();
-                bundle.putString(Constants.TOAST, "Device is not paired!");
-                msg.setData(bundle);
-                mHandler.sendMessage(msg);
-                setState(STATE_NONE, false);
+                sendToast("Device is not paired!");
+                setTransport(null);
             }
-            else setState(STATE_PAIRED, true);
+            else setTransport(new RfcommTransport(mAdapter, mBtDevice));
         }
+
+        // Cancels any connection, and pairs the service when it has a transport
+        super.start();
+        if (getTransport() == null)
+            setState(STATE_NONE, false);
     }
 
     /**
@@ -166,259 +121,50 @@ public class BluetoothService {
     public synchronized void connect(BluetoothDevice device) {
         Log.d(TAG, "connect to: " + device);
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING, true);
-    }
-
-    /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     */
-    public synchronized void connected(BluetoothSocket socket) {
-        Log.d(TAG, "connected, Socket");
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-
-        setState(STATE_CONNECTED, true);
-    }
-
-    /**
-     * Stop all threads
-     */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-        setState(STATE_NONE, false);
-    }
-
-    /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
-     */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+        Transport transport = getTransport();
+        if (!(transport instanceof RfcommTransport) || ((RfcommTransport) transport).getDevice() != device)
+            setTransport(new RfcommTransport(mAdapter, device));
+        connect();
     }
 
-    /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
-     */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device!");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        setState(STATE_PAIRED, false);
-
-        // Start the service over
-        start();
+    private void sendToast(String text) {
+        sendToast(mHandler, text);
     }
 
-    /**
-     * Indicate that the connection was lost and notify the UI Activity.
-     */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+    private static void sendToast(Handler handler, String text) {
+        Message msg = handler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost!");
+        bundle.putString(Constants.TOAST, text);
         msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        setState(STATE_PAIRED, false);
-
-        // Start the service over
-        start();
-    }
-
-    /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
-     */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(SERIAL_PORT_SERVICE_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket create() failed", e);
-            }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
-            }
-
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket);
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+        handler.sendMessage(msg);
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Passes the connection events on to the UI Activity.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
+    private static class HandlerListener implements LinkService.Listener {
+        private final Handler mHandler;
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+        HandlerListener(Handler handler) {
+            mHandler = handler;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }
+        @Override
+        public void onStateChange(int state) {
+            // Give the new state to the Handler so the UI Activity can show
+            mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-                connectionLost();
-                return;
-            }
+        @Override
+        public void onObstacleChange(boolean isObstacle) {
+            mHandler.obtainMessage(Constants.MESSAGE_READ, isObstacle ? 1 : 0, -1).sendToTarget();
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+        @Override
+        public void onFailure(String message, IOException e) {
+            Log.e(TAG, message, e);
+            // Send a failure message back to the Activity
+            sendToast(mHandler, message);
         }
     }
 }
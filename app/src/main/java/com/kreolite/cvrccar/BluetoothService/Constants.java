@@ -26,7 +26,7 @@ public interface Constants {
     // Message types sent from the BluetoothService Handler
     // 0,1,2 are taken for USB
     public static final int MESSAGE_STATE_CHANGE = 3;
-    public static final int MESSAGE_READ = 4;
+    public static final int MESSAGE_READ = 4;           // arg1 is 1 when an obstacle is found
     public static final int MESSAGE_WRITE = 5;
     public static final int MESSAGE_DEVICE_NAME = 6;
     public static final int MESSAGE_TOAST = 7;
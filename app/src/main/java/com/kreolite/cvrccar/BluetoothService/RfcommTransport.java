@@ -0,0 +1,74 @@
+package com.kreolite.cvrccar.BluetoothService;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import com.kreolite.cvrccar.Transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Reaches the car through the Bluetooth serial port profile of a paired device.
+ */
+public class RfcommTransport implements Transport {
+    // Unique UUID for this application
+    private static final UUID SERIAL_PORT_SERVICE_UUID =
+            UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device) {
+        mAdapter = adapter;
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public String getName() {
+        return "rfcomm " + mDevice.getAddress();
+    }
+
+    @Override
+    public Link createLink() throws IOException {
+        // Get a BluetoothSocket for a connection with the given BluetoothDevice
+        return new RfcommLink(mDevice.createRfcommSocketToServiceRecord(SERIAL_PORT_SERVICE_UUID));
+    }
+
+    private class RfcommLink implements Link {
+        private final BluetoothSocket mmSocket;
+
+        RfcommLink(BluetoothSocket socket) {
+            mmSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -7,8 +7,6 @@ import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
@@ -37,29 +35,94 @@ import android.widget.Toast;
 
 import com.kreolite.cvrccar.BluetoothService.BluetoothService;
 import com.kreolite.cvrccar.BluetoothService.Constants;
+import com.kreolite.cvrccar.Pipeline.ControlLoop;
+import com.kreolite.cvrccar.Pipeline.DetectionPipeline;
+import com.kreolite.cvrccar.Pipeline.DetectionResult;
+import com.kreolite.cvrccar.Profiling.AllocationCounter;
+import com.kreolite.cvrccar.Profiling.StageProfiler;
+import com.kreolite.cvrccar.Protocol.CommandGate;
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
 import com.kreolite.cvrccar.R;
+import com.kreolite.cvrccar.Recording.SessionRecorder;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ColorBlobDetectionActivity extends Activity implements OnTouchListener, CvCameraViewListener2 {
     private static final String                TAG = "ColorBlobDetectActivity";
     private static final int                   ZOOM = 5;
     private static Scalar                      COLOR_RADIUS = new Scalar(5,50,200,0);
     private static final int                   REQUEST_ENABLE_BT = 0;
+    private static final int                   ALLOCATION_REPORT_FRAMES = 100;
+    private static final int                   PIPELINE_REPORT_FRAMES = 100;
+    private static final double                CONTROL_RATE_HZ = 50;
+    // Detection engines, as stored in the settings
+    private static final String                ENGINE_CONTOURS = "contours";
+    private static final String                ENGINE_PIXELS = "pixels";
+    private static final String                ENGINE_CAMSHIFT = "camshift";
+    // Command protocols, as stored in the settings
+    private static final String                PROTOCOL_JSON = "json";
+    private static final String                PROTOCOL_BINARY = "binary";
+    // Link round trip pings, sent along binary commands only
+    private static final int                   PING_INTERVAL_MS = 200;
 
     private Size                               SCREEN_SIZE;
     private Size                               SPECTRUM_SIZE;
     private Scalar                             CONTOUR_COLOR;
     private Scalar                             BOUNDARIES_COLOR;
+    private Scalar                             SEARCH_WINDOW_COLOR;
     volatile Point                             mTargetCenter = new Point(-1, -1);
     private Point                              mScreenCenter = new Point(-1, -1);
     private int                                mTargetNum = 0;
-    private boolean                            mIsColorSelected = false;
+    private volatile boolean                   mIsColorSelected = false;
     private Mat                                mRgba;
     private Scalar                             mBlobColorRgba;
     private Scalar                             mBlobColorHsv;
+    // The OpenCV engine, also gives the color spectrum whatever the engine
     private ColorBlobDetector                  mDetector;
+    private BlobDetector<Mat>                  mEngine;
+    private String                             mEngineName = ENGINE_CONTOURS;
+    // Pure Java engines copy each frame into this buffer
+    private boolean                            mIsFrameCopied = false;
+    private byte[]                             mFrameBuffer;
+    private RgbaFrame                          mFrame;
+    // Detection and commands run on their own threads, the camera thread only draws
+    private DetectionPipeline                  mPipeline;
+    // Car commands run at a fixed rate, whatever the camera frame rate
+    private ControlLoop                        mControlLoop;
+    private DetectionResult                    mNoTargetResult = new DetectionResult();
+    // Processing scale of the OpenCV engine, adapted to frame time and target size
+    private ResolutionGovernor                 mResolutionGovernor = new ResolutionGovernor();
+    // Keeps the same target when several blobs have its color
+    private BlobTracker                        mBlobTracker = new BlobTracker();
+    // Touched color handed to the detection thread, which owns the detectors
+    private final AtomicReference<Scalar>      mTouchedHsvColor = new AtomicReference<>();
+    // Follows lighting changes of the selected color on the locked target
+    private AdaptiveColorModel                 mColorModel = new AdaptiveColorModel();
+    private Mat                                mAdaptedFrame;
+    private AdaptiveColorModel.RowSource       mAdaptedFrameRows = new AdaptiveColorModel.RowSource() {
+        // Mat.get copies as many bytes as the buffer holds, so the row is read
+        // in chunks of power of two sizes adding up to the pixel count
+        private final byte[][] mmChunks = new byte[31][];
+
+        @Override
+        public void readRow(int y, int left, int count, byte[] rgba) {
+            int offset = 0;
+            for (int bit = 31 - Integer.numberOfLeadingZeros(count); bit >= 0; bit--) {
+                int size = 1 << bit;
+                if ((count & size) == 0) continue;
+
+                if (mmChunks[bit] == null)
+                    mmChunks[bit] = new byte[size * 4];
+                mAdaptedFrame.get(y, left + offset, mmChunks[bit]);
+                System.arraycopy(mmChunks[bit], 0, rgba, offset * 4, size * 4);
+                offset += size;
+            }
+        }
+    };
     private Mat                                mSpectrum;
     private CameraBridgeViewBase               mOpenCvCameraView;
     private CarController                      mCarController;
@@ -68,14 +131,42 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
     private double                             mForwardBoundaryPercent = -0.15;
     private double                             mReverseBoundaryPercent = 0.3;
     private int                                mMinRadius = 15;
-    private String                             mLastPwmJsonValues = "";
+    private byte[]                             mPwmBuffer = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    private byte[]                             mPwmNeutralBuffer = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    // Drops small changes and resends the command as a keepalive
+    private final CommandGate                  mCommandGate = new CommandGate();
+    // Binary frames instead of JSON, numbered as they are sent
+    private boolean                            mIsBinaryProtocol = false;
     private boolean                            mIsReversingHandled = false;
     private int                                mCountOutOfFrame = 0;
     private BluetoothAdapter                   mBluetoothAdapter = null;
     private BluetoothService                   mBluetoothService = null;
     private String                             mBluetoothDeviceName = null;
     private BluetoothDevice                    mBtDevice = null;
-    private boolean                            mIsObstacle = false;
+    private volatile boolean                   mIsObstacle = false;
+
+    // Zero allocation mode: per frame logs are dropped and allocations are counted
+    private boolean                            mIsZeroAllocMode = false;
+    private AllocationCounter                  mAllocationCounter = new AllocationCounter();
+    private AllocationCounter                  mControlAllocationCounter = new AllocationCounter();
+    // Stage latencies from frame to Bluetooth write, dumped when the camera stops
+    private StageProfiler                      mProfiler = new StageProfiler();
+    // Session recording, frames are kept at half resolution
+    private static final int                   RECORDING_CAPACITY = 64 * 1024 * 1024;
+    private static final int                   RECORDING_DOWNSAMPLING = 2;
+    private boolean                            mIsRecording = false;
+    private volatile SessionRecorder           mRecorder;
+    // Objects reused by every frame
+    private Point                              mBlobCenter = new Point();
+    private Point                              mSearchWindowTopLeft = new Point();
+    private Point                              mSearchWindowBottomRight = new Point();
+    private Point                              mBoundaryTopLeft = new Point();
+    private Point                              mBoundaryBottomRight = new Point();
+    private Point                              mColorLabelTopLeft = new Point();
+    private Point                              mColorLabelBottomRight = new Point();
+    private Mat                                mSpectrumLabel;
+    private long                               mSpectrumLabelAddr = 0;
+    private volatile boolean                   mIsSpectrumChanged = false;
 
     private BaseLoaderCallback  mLoaderCallback = new BaseLoaderCallback(this) {
         @Override
@@ -130,6 +221,11 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
         mForwardBoundaryPercent = Double.parseDouble(mSharedPref.getString(getString(R.string.forward_boundary_percent), "-10")) / 100;
         mReverseBoundaryPercent = Double.parseDouble(mSharedPref.getString(getString(R.string.reverse_boundary_percent), "25")) / 100;
         mMinRadius = Integer.parseInt(mSharedPref.getString(getString(R.string.minimum_radius_value), "15"));
+        mIsRecording = mSharedPref.getBoolean(getString(R.string.is_recording), false);
+        mIsZeroAllocMode = mSharedPref.getBoolean(getString(R.string.is_zero_alloc), false);
+        mEngineName = mSharedPref.getString(getString(R.string.detector_engine), ENGINE_CONTOURS);
+        mIsBinaryProtocol = PROTOCOL_BINARY.equals(
+                mSharedPref.getString(getString(R.string.command_protocol), PROTOCOL_JSON));
 
         mOpenCvCameraView = (CameraBridgeViewBase) findViewById(R.id.color_blob_detection_activity_surface_view);
         mOpenCvCameraView.setCvCameraViewListener(this);
@@ -240,29 +336,104 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
         // Initialize the BluetoothService to perform bluetooth connections
         mBluetoothService = new BluetoothService(this, mHandler);
         mBluetoothService.setBtDeviceName(mBluetoothDeviceName);
+        mBluetoothService.setPingIntervalMillis(mIsBinaryProtocol ? PING_INTERVAL_MS : 0);
+        mBluetoothService.setProfiler(mProfiler);
     }
 
     public void onCameraViewStarted(int width, int height) {
         mRgba = new Mat(height, width, CvType.CV_8UC4);
         mDetector = new ColorBlobDetector();
         mDetector.setColorRadius(COLOR_RADIUS);
+        mDetector.setTrackingEnabled(true);
+        mDetector.setProfiler(mProfiler);
+        mProfiler.reset();
+        mResolutionGovernor.reset();
+        mDetector.setPyramidLevels(mResolutionGovernor.getPyramidLevels());
+        mDetector.setBlurEnabled(mResolutionGovernor.isBlurEnabled());
+        mFrameBuffer = new byte[width * height * 4];
+        mFrame = new RgbaFrame(mFrameBuffer, width, height);
+        mEngine = createEngine();
+        mEngine.setColorRadius(COLOR_RADIUS.val);
+        mIsFrameCopied = (mEngine != mDetector);
         mSpectrum = new Mat();
         mBlobColorRgba = new Scalar(255);
         mBlobColorHsv = new Scalar(255);
         SPECTRUM_SIZE = new Size(200, 64);
         CONTOUR_COLOR = new Scalar(255,255,10,255);
         BOUNDARIES_COLOR = new Scalar(255,0,0,255);
+        SEARCH_WINDOW_COLOR = new Scalar(0,255,0,255);
         mScreenCenter.x = width / 2;
         mScreenCenter.y = height / 2;
         mIsColorSelected = false;
+        mTouchedHsvColor.set(null);
+        mControlLoop = new ControlLoop(new ControlLoop.ControlTask() {
+            @Override
+            public void control(DetectionResult result, boolean isNewResult, long nowNanos) {
+                mControlAllocationCounter.beginFrame();
+                if (mIsColorSelected)
+                    updateCarPwms(result, isNewResult, nowNanos);
+                mControlAllocationCounter.endFrame();
+            }
+        });
+        mControlLoop.setRateHz(CONTROL_RATE_HZ);
+        mPipeline = new DetectionPipeline(width, height,
+                new DetectionPipeline.DetectionStage() {
+                    @Override
+                    public void detect(Mat rgba, DetectionResult result) {
+                        detectBlobs(rgba, result);
+                        // Recorded before the adaptation, which applies from the next frame
+                        if (mRecorder != null)
+                            recordDetection(rgba, result);
+                        adaptColor(rgba, result);
+                    }
+                },
+                mControlLoop);
+        if (mIsRecording)
+            startRecording();
+        if (mIsZeroAllocMode) {
+            mAllocationCounter.start();
+            mControlAllocationCounter.start();
+            mPipeline.getAllocationCounter().start();
+        }
+        mControlLoop.start();
+        mPipeline.start();
     }
 
     public void onCameraViewStopped() {
+        // Stop the pipeline first so that no command races with the reset
+        mPipeline.release();
+        mControlLoop.stop();
+        Log.i(TAG, "Pipeline: " + mPipeline.getStats());
+        Log.i(TAG, "Control loop: " + mControlLoop);
+        Log.i(TAG, "Latencies: " + mProfiler);
+        Log.i(TAG, "Search: " + mCarController.getSearchPlanner());
+        Log.i(TAG, "Color model: " + mColorModel);
+        Log.i(TAG, "Engine " + mEngineName + ": " + mEngine);
+        if (mBluetoothService != null && mBluetoothService.getWriter() != null)
+            Log.i(TAG, "Writer: " + mBluetoothService.getWriter());
+        if (mBluetoothService != null && mBluetoothService.getTelemetryReader() != null)
+            Log.i(TAG, "Telemetry: " + mBluetoothService.getTelemetryReader());
+        if (mBluetoothService != null && mIsBinaryProtocol)
+            Log.i(TAG, "Link: " + mBluetoothService.getLinkQuality());
+        Log.i(TAG, "Commands: " + mCommandGate);
+        logAllocations();
+        writeProfilerReport();
         mTargetNum = 0;
         mTargetCenter.x = -1;
         mTargetCenter.y = -1;
         mCarController.reset();
-        updateCarPwms();
+        updateCarPwms(mNoTargetResult, true, System.nanoTime());
+        stopRecording();
+        mEngine.release();
+        if (mEngine != mDetector)
+            mDetector.release();
+        mAllocationCounter.stop();
+        mControlAllocationCounter.stop();
+        mPipeline.getAllocationCounter().stop();
+        if (mSpectrumLabel != null) {
+            mSpectrumLabel.release();
+            mSpectrumLabel = null;
+        }
         mRgba.release();
     }
 
@@ -309,10 +480,8 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
         Log.i(TAG, "Touched rgba color: (" + mBlobColorRgba.val[0] + ", " + mBlobColorRgba.val[1] +
                 ", " + mBlobColorRgba.val[2] + ", " + mBlobColorRgba.val[3] + ")");
 
-        mDetector.setHsvColor(mBlobColorHsv);
-
-        Imgproc.resize(mDetector.getSpectrum(), mSpectrum, SPECTRUM_SIZE);
-
+        // Applied by the detection thread before its next frame
+        mTouchedHsvColor.set(mBlobColorHsv);
         mIsColorSelected = true;
 
         touchedRegionRgba.release();
@@ -321,57 +490,216 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
         return false; // don't need subsequent touch events
     }
 
-    private void displayContours(Mat matRgba){
-        Point centers = new Point(-1, -1);
+    /**
+     * Create the engine selected in the settings.
+     */
+    private BlobDetector<Mat> createEngine() {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (ENGINE_PIXELS.equals(mEngineName)) {
+            PixelBlobDetector engine = new PixelBlobDetector();
+            engine.setThreadCount(threadCount);
+            return new FrameCopyDetector(engine, mFrame);
+        }
+        if (ENGINE_CAMSHIFT.equals(mEngineName)) {
+            CamShiftDetector engine = new CamShiftDetector();
+            engine.setThreadCount(threadCount);
+            return new FrameCopyDetector(engine, mFrame);
+        }
+        return mDetector;
+    }
+
+    /**
+     * Apply a touched color, on the detection thread so that it never races
+     * with a frame being detected or with the color adaptation.
+     */
+    private void applyTouchedColor() {
+        Scalar hsvColor = mTouchedHsvColor.getAndSet(null);
+        if (hsvColor == null) return;
+
+        mDetector.setHsvColor(hsvColor);
+        if (mEngine != mDetector)
+            mEngine.setHsvColor(hsvColor.val);
+        if (mRecorder != null)
+            mRecorder.recordColor(System.nanoTime(), hsvColor.val, COLOR_RADIUS.val);
+        // Tracks of the previous color do not apply anymore
+        mBlobTracker.reset();
+        mColorModel.reset(hsvColor.val, COLOR_RADIUS.val);
+        mIsSpectrumChanged = true;
+    }
+
+    private void detectBlobs(Mat matRgba, DetectionResult result){
+        applyTouchedColor();
+        long start = System.nanoTime();
+        mEngine.detect(matRgba);
+        long detectionNanos = System.nanoTime() - start;
 
-        mDetector.findContours(matRgba);
-        List<MatOfPoint> contours = mDetector.getContours();
-        mTargetNum = contours.size();
-        Log.e(TAG, "Target count: " + mTargetNum);
+        if (mEngine.hasSearchWindow()) {
+            result.setSearchWindow(mEngine.getSearchWindowX(), mEngine.getSearchWindowY(),
+                    mEngine.getSearchWindowWidth(), mEngine.getSearchWindowHeight());
+        }
 
-        MatOfPoint2f points = new MatOfPoint2f();
-        float[] targetRadius = new float[mTargetNum];
+        int target = selectTarget(mEngine.getBlobs(), result);
+
+        // Only search around the target on next frame if one was found
+        if (target >= 0) {
+            BlobStats blobs = result.getBlobs();
+            mEngine.setTrackedTarget(blobs.getCenterX(target), blobs.getCenterY(target), blobs.getRadius(target));
+        } else {
+            mEngine.clearTrackedTarget();
+        }
+
+        if (mEngine == mDetector) {
+            // Process next frame at the scale the target size and frame time call for
+            mResolutionGovernor.update(detectionNanos, (target >= 0) ? result.getBlobs().getRadius(target) : -1);
+            mDetector.setPyramidLevels(mResolutionGovernor.getPyramidLevels());
+            mDetector.setBlurEnabled(mResolutionGovernor.isBlurEnabled());
+        }
+    }
+
+    private int selectTarget(BlobStats blobs, DetectionResult result){
+        long time = mProfiler.begin();
+        // Follow the locked track, the largest blob is locked when there is none
+        result.getBlobs().copyFrom(blobs);
+        mBlobTracker.update(blobs, result.getCaptureNanos(), mMinRadius);
+        int target = mBlobTracker.getLockedBlob();
+        result.setTargetIndex(target);
+        mProfiler.end(StageProfiler.TARGET_SELECTION, time);
+
+        if (!mIsZeroAllocMode) {
+            Log.e(TAG, "Target count: " + blobs.getCount());
+            if (target >= 0)
+                Log.i(TAG, "Target " + mBlobTracker.getLockedId() + " Radius [" + target + "]= " + blobs.getRadius(target)
+                        + " circularity " + blobs.getCircularity(target));
+        }
+        return target;
+    }
+
+    /**
+     * Move the color toward the pixels of the locked target, so the target is
+     * not lost when the lighting slowly changes.
+     */
+    private void adaptColor(Mat matRgba, DetectionResult result) {
+        int target = result.getTargetIndex();
+        if (target < 0 || !mColorModel.isEnabled()) return;
+
+        BlobStats blobs = result.getBlobs();
+        mColorModel.beginFrame();
+        if (mIsFrameCopied) {
+            mColorModel.addBlob(mFrameBuffer, matRgba.cols(), matRgba.rows(),
+                    blobs.getCenterX(target), blobs.getCenterY(target), blobs.getRadius(target));
+        } else {
+            // Only read the sampled rows out of native memory
+            mAdaptedFrame = matRgba;
+            mColorModel.addBlob(mAdaptedFrameRows, matRgba.cols(), matRgba.rows(),
+                    blobs.getCenterX(target), blobs.getCenterY(target), blobs.getRadius(target));
+            mAdaptedFrame = null;
+        }
+        if (mColorModel.endFrame()) {
+            double[] hsvColor = mColorModel.getHsvColor();
+            mEngine.adaptHsvColor(hsvColor);
+            if (mRecorder != null)
+                mRecorder.recordAdaptedColor(System.nanoTime(), hsvColor, COLOR_RADIUS.val);
+        }
+    }
+
+    private void displayResult(Mat matRgba, DetectionResult result){
+        if (result.hasSearchWindow()) {
+            mSearchWindowTopLeft.x = result.getSearchWindowX();
+            mSearchWindowTopLeft.y = result.getSearchWindowY();
+            mSearchWindowBottomRight.x = result.getSearchWindowX() + result.getSearchWindowWidth();
+            mSearchWindowBottomRight.y = result.getSearchWindowY() + result.getSearchWindowHeight();
+            Imgproc.rectangle(matRgba, mSearchWindowTopLeft, mSearchWindowBottomRight, SEARCH_WINDOW_COLOR, 1);
+        }
+
+        // Draw the target thicker than the other blobs
+        BlobStats blobs = result.getBlobs();
+        int target = result.getTargetIndex();
+        mTargetNum = blobs.getCount();
         for (int i = 0, n = mTargetNum; i < n; i++) {
-            // contours.get(x) is a single MatOfPoint, but to use minEnclosingCircle
-            // we need to pass a MatOfPoint2f so we need to do a conversion
-            contours.get(i).convertTo(points, CvType.CV_32FC2);
-            Imgproc.minEnclosingCircle(points, centers, targetRadius);
-
-            if (targetRadius[i] > mMinRadius) {
-                mTargetCenter = centers;
-                Imgproc.circle(matRgba, mTargetCenter, 3, CONTOUR_COLOR, Core.FILLED);
-                Imgproc.circle(matRgba, mTargetCenter, (int) targetRadius[i], CONTOUR_COLOR, 2, 0, 0);
-                Log.i(TAG, "Target Center [" + i + "]= " + mTargetCenter);
-                Log.i(TAG, "Target Radius [" + i + "]= " + targetRadius[i]);
-            }
+            if (blobs.getRadius(i) <= mMinRadius) continue;
+
+            mBlobCenter.x = blobs.getCenterX(i);
+            mBlobCenter.y = blobs.getCenterY(i);
+            Imgproc.circle(matRgba, mBlobCenter, (int) blobs.getRadius(i), CONTOUR_COLOR, (i == target) ? 2 : 1, 0, 0);
+        }
+
+        if (target >= 0) {
+            mBlobCenter.x = blobs.getCenterX(target);
+            mBlobCenter.y = blobs.getCenterY(target);
+            Imgproc.circle(matRgba, mBlobCenter, 3, CONTOUR_COLOR, Core.FILLED);
         }
     }
 
     private void displayBoundaries(Mat matRgba){
 
-        Point topLeft = new Point(0, mScreenCenter.y - mForwardBoundaryPercent*mScreenCenter.y*2);
-        Point bottomRight = new Point(mScreenCenter.x*2, mScreenCenter.y + mReverseBoundaryPercent*mScreenCenter.y*2);
-        Imgproc.rectangle(matRgba, topLeft, bottomRight, BOUNDARIES_COLOR, 2);
+        mBoundaryTopLeft.x = 0;
+        mBoundaryTopLeft.y = mScreenCenter.y - mForwardBoundaryPercent*mScreenCenter.y*2;
+        mBoundaryBottomRight.x = mScreenCenter.x*2;
+        mBoundaryBottomRight.y = mScreenCenter.y + mReverseBoundaryPercent*mScreenCenter.y*2;
+        Imgproc.rectangle(matRgba, mBoundaryTopLeft, mBoundaryBottomRight, BOUNDARIES_COLOR, 2);
+    }
+
+    private void displayLabels(Mat matRgba){
+        // Filled rectangle instead of a submat, so no Mat header is created
+        mColorLabelTopLeft.x = 4;
+        mColorLabelTopLeft.y = matRgba.rows()-68;
+        mColorLabelBottomRight.x = 67;
+        mColorLabelBottomRight.y = matRgba.rows()-5;
+        Imgproc.rectangle(matRgba, mColorLabelTopLeft, mColorLabelBottomRight, mBlobColorRgba, Core.FILLED);
+
+        // The spectrum of a touched color is ready once the detection thread applied it
+        boolean isSpectrumChanged = mIsSpectrumChanged;
+        if (isSpectrumChanged) {
+            mIsSpectrumChanged = false;
+            Imgproc.resize(mDetector.getSpectrum(), mSpectrum, SPECTRUM_SIZE);
+        }
+        if (mSpectrum.empty()) return;
+
+        // The camera reuses its frame buffer, only rebuild the submat when it changes
+        if (mSpectrumLabel == null || isSpectrumChanged || matRgba.dataAddr() != mSpectrumLabelAddr) {
+            if (mSpectrumLabel != null)
+                mSpectrumLabel.release();
+            mSpectrumLabel = matRgba.submat(matRgba.rows()-(mSpectrum.rows()+4), matRgba.rows()-4, 70, 70 + mSpectrum.cols());
+            mSpectrumLabelAddr = matRgba.dataAddr();
+        }
+        mSpectrum.copyTo(mSpectrumLabel);
     }
 
     public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+        mAllocationCounter.beginFrame();
         mRgba = inputFrame.rgba();
 
         if (mIsColorSelected) {
-            displayContours(mRgba);
+            // Detection runs on the newest frame, draw whatever result is the newest
+            mPipeline.submitFrame(mRgba);
+            displayResult(mRgba, mPipeline.getRenderResult());
             displayBoundaries(mRgba);
+            displayLabels(mRgba);
 
-            Mat colorLabel = mRgba.submat(mRgba.rows()-68, mRgba.rows()-4, 4, 68);
-            colorLabel.setTo(mBlobColorRgba);
-
-            Mat spectrumLabel = mRgba.submat(mRgba.rows()-(mSpectrum.rows()+4), mRgba.rows()-4, 70, 70 + mSpectrum.cols());
-            mSpectrum.copyTo(spectrumLabel);
-
-            updateCarPwms();
+            if (mPipeline.getStats().getCapturedFrames() % PIPELINE_REPORT_FRAMES == 0)
+                Log.i(TAG, "Pipeline: " + mPipeline.getStats() + " pyramid levels="
+                        + mResolutionGovernor.getPyramidLevels() + " blur=" + mResolutionGovernor.isBlurEnabled()
+                        + " control: " + mControlLoop);
         }
+
+        mAllocationCounter.endFrame();
+        if (mAllocationCounter.isStarted() && mAllocationCounter.getFrameCount() % ALLOCATION_REPORT_FRAMES == 0)
+            logAllocations();
         return mRgba;
     }
 
+    /**
+     * Log the allocations of the camera, detection and control threads, each
+     * counted on its own thread.
+     */
+    private void logAllocations() {
+        if (!mAllocationCounter.isStarted()) return;
+
+        Log.i(TAG, "Camera allocations: " + mAllocationCounter);
+        Log.i(TAG, "Detection allocations: " + mPipeline.getAllocationCounter());
+        Log.i(TAG, "Control allocations: " + mControlAllocationCounter);
+    }
+
     private void hideNavigationBar() {
         getWindow().getDecorView().setSystemUiVisibility(
                 View.SYSTEM_UI_FLAG_LAYOUT_STABLE | View.SYSTEM_UI_FLAG_LAYOUT_HIDE_NAVIGATION | View.SYSTEM_UI_FLAG_LAYOUT_FULLSCREEN | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
@@ -409,6 +737,8 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
                         case BluetoothService.STATE_CONNECTED:
                             Toast.makeText(mActivity.get(), "Device connected!",
                                     Toast.LENGTH_SHORT).show();
+                            // The car may have missed commands, send the next one whatever its value
+                            mActivity.get().mCommandGate.reset();
                             break;
                         case BluetoothService.STATE_NONE:
                             break;
@@ -420,14 +750,8 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
                     String writeMessage = new String(writeBuf);*/
                     break;
                 case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    Log.i(TAG, "Obstacle found = " + readMessage);
-                    if (readMessage.contentEquals("1"))
-                        mActivity.get().mIsObstacle = true;
-                    else
-                        mActivity.get().mIsObstacle = false;
+                    // The control loop takes the obstacle from the telemetry itself
+                    Log.i(TAG, "Obstacle found = " + msg.arg1);
                     break;
                 case Constants.MESSAGE_TOAST:
                     Toast.makeText(mActivity.get(), msg.getData().getString(Constants.TOAST),
@@ -437,57 +761,169 @@ public class ColorBlobDetectionActivity extends Activity implements OnTouchListe
         }
     }
 
-    private void updateCarPwms(){
-        String pwmJsonValues, pwmJsonNeutralValues;
+    private void updateCarPwms(DetectionResult result, boolean isNewResult, long nowNanos){
+        int pwmLength, pwmNeutralLength;
+        int target = result.getTargetIndex();
 
         try {
-            if (mTargetNum > 0) {
-                mCarController.updateTargetPWM(mScreenCenter,
-                        mTargetCenter,
+            long time = mProfiler.begin();
+            if (mBluetoothService != null && mBluetoothService.getTelemetry().update())
+                mIsObstacle = mBluetoothService.getTelemetry().getReadBuffer().isObstacle();
+
+            if (isNewResult && target >= 0) {
+                mTargetCenter.x = result.getBlobs().getCenterX(target);
+                mTargetCenter.y = result.getBlobs().getCenterY(target);
+                mCarController.updateTargetPWM(mScreenCenter.x,
+                        mScreenCenter.y,
+                        result.getBlobs(),
+                        target,
+                        result.getCaptureNanos(),
+                        nowNanos,
                         mForwardBoundaryPercent,
                         mReverseBoundaryPercent,
                         mIsObstacle);
                 mCountOutOfFrame = 0;
-            } else {
+            } else if (!mCarController.coastTargetPWM(mScreenCenter.x,
+                    mScreenCenter.y,
+                    nowNanos,
+                    mForwardBoundaryPercent,
+                    mReverseBoundaryPercent,
+                    mIsObstacle) && isNewResult) {
+                // Target lost for longer than it can be predicted, count frames not ticks
                 mCountOutOfFrame++;
                 if (mCountOutOfFrame > 2) {
+                    // Then search on every frame, the sweep speed is set from the frame time
                     mTargetCenter.x = -1;
                     mTargetCenter.y = -1;
-                    mCountOutOfFrame = 0;
-                    mCarController.searchTarget();
+                    mCarController.searchTarget(nowNanos);
                 }
             }
-
-            pwmJsonValues = mCarController.getPWMValuesToJson();
-            if ((pwmJsonValues != null) && !pwmJsonValues.contentEquals(mLastPwmJsonValues)) {
+            time = mProfiler.end(StageProfiler.CONTROLLER, time);
+
+            // Only the commands let through are serialized, and taken as sent once written
+            int pan = mCarController.getPanPwm();
+            int steering = mCarController.getSteeringPwm();
+            int motor = mCarController.getMotorPwm();
+            int decision = mCommandGate.check(nowNanos, pan, steering, motor);
+            if (decision != CommandGate.SEND_NONE && mBluetoothService != null
+                    && mBluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
+                pwmLength = mIsBinaryProtocol ? mCarController.getPWMValuesToFrame(mPwmBuffer)
+                        : mCarController.getPWMValuesToJson(mPwmBuffer);
+                mProfiler.end(StageProfiler.SERIALIZATION, time);
                 Log.i(TAG, "Update Actuator ...");
+                // The writer times the path up to the write of commands answering a new frame
+                long captureNanos = (decision == CommandGate.SEND_CHANGE && isNewResult) ? result.getCaptureNanos() : 0;
 
-                if (mBluetoothService != null && mBluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
-                    if (!mCarController.isReversing()) {
-                        Log.i(TAG, "Sending PWM values: " + pwmJsonValues);
-                        mBluetoothService.write(pwmJsonValues.getBytes());
-                        mIsReversingHandled = false;
-                    }
-                    else {
-                        Log.i(TAG, "Sending PWM values: " + pwmJsonValues);
-                        mBluetoothService.write(pwmJsonValues.getBytes());
-
-                        // When reversing, need to send neutral first
-                        if (!mIsReversingHandled) {
-                            pwmJsonNeutralValues = mCarController.getPWMNeutralValuesToJson();
-                            Log.i(TAG, "Sending PWM values: " + pwmJsonNeutralValues);
-                            mBluetoothService.write(pwmJsonNeutralValues.getBytes());
-
-                            Log.i(TAG, "Sending PWM values: " + pwmJsonValues);
-                            mBluetoothService.write(pwmJsonValues.getBytes());
-                            mIsReversingHandled = true;
-                        }
-                    }
+                boolean isSent;
+                if (!mCarController.isReversing()) {
+                    isSent = writePwm(mPwmBuffer, pwmLength, false, captureNanos);
+                    mIsReversingHandled = false;
+                }
+                else if (mIsReversingHandled) {
+                    isSent = writePwm(mPwmBuffer, pwmLength, false, captureNanos);
+                }
+                else {
+                    // When reversing, need to send neutral first, in order and
+                    // without any of them being replaced by a later command
+                    pwmNeutralLength = mIsBinaryProtocol
+                            ? mCarController.getPWMNeutralValuesToFrame(mPwmNeutralBuffer)
+                            : mCarController.getPWMNeutralValuesToJson(mPwmNeutralBuffer);
+                    isSent = writePwm(mPwmBuffer, pwmLength, true, 0)
+                            && writePwm(mPwmNeutralBuffer, pwmNeutralLength, true, 0)
+                            && writePwm(mPwmBuffer, pwmLength, true, captureNanos);
+                    mIsReversingHandled = isSent;
                 }
-                mLastPwmJsonValues = pwmJsonValues;
+                if (isSent)
+                    mCommandGate.onSent(decision, nowNanos, pan, steering, motor);
             }
         } catch (InterruptedException e) {
             Log.e(TAG, e.getMessage());
         }
     }
+
+    /**
+     * @return false if the command could not be handed to the writer
+     */
+    private boolean writePwm(byte[] pwm, int length, boolean isOrdered, long captureNanos) {
+        logPwm(pwm, length);
+        if (isOrdered)
+            return mBluetoothService.writeOrdered(pwm, length, captureNanos);
+        return mBluetoothService.write(pwm, length, captureNanos);
+    }
+
+    private void startRecording() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) return;
+
+        File file = new File(dir, "session-" + System.currentTimeMillis() + ".cvrs");
+        try {
+            mRecorder = new SessionRecorder(file, RECORDING_CAPACITY);
+            mRecorder.setFrameDownsampling(RECORDING_DOWNSAMPLING);
+            if (mBluetoothService != null)
+                mBluetoothService.setRecorder(mRecorder);
+            Log.i(TAG, "Recording session to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record session", e);
+        }
+    }
+
+    private void stopRecording() {
+        if (mRecorder == null) return;
+
+        if (mBluetoothService != null)
+            mBluetoothService.setRecorder(null);
+        Log.i(TAG, "Session recorded: " + mRecorder);
+        try {
+            mRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close session", e);
+        }
+        mRecorder = null;
+    }
+
+    /**
+     * Record the frame and what was found in it, on the detection thread so
+     * the camera thread never waits for it.
+     */
+    private void recordDetection(Mat matRgba, DetectionResult result) {
+        // The pure Java engines already copied the frame
+        if (!mIsFrameCopied)
+            matRgba.get(0, 0, mFrameBuffer);
+        mRecorder.recordFrame(result.getFrameSequence(), result.getCaptureNanos(), mFrameBuffer,
+                matRgba.cols(), matRgba.rows());
+        mRecorder.recordDetection(System.nanoTime(), result.getFrameSequence(), result.getCaptureNanos(),
+                result.getBlobs(), result.getTargetIndex());
+    }
+
+    private void writeProfilerReport() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) return;
+
+        File file = new File(dir, "latency-" + System.currentTimeMillis() + ".txt");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            mProfiler.writeReport(writer);
+            Log.i(TAG, "Latency report written to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write latency report", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close latency report", e);
+                }
+            }
+        }
+    }
+
+    private void logPwm(byte[] pwm, int length) {
+        if (mIsZeroAllocMode) return;
+        if (mIsBinaryProtocol)
+            Log.i(TAG, "Sending PWM frame " + PwmFrameCodec.getSequence(pwm, 0) + ": pan " + PwmFrameCodec.getPan(pwm, 0)
+                    + " steering " + PwmFrameCodec.getSteering(pwm, 0) + " throttle " + PwmFrameCodec.getThrottle(pwm, 0));
+        else
+            Log.i(TAG, "Sending PWM values: " + new String(pwm, 0, length));
+    }
 }
\ No newline at end of file
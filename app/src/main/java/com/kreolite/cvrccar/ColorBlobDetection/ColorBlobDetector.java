@@ -1,73 +1,135 @@
 package com.kreolite.cvrccar.ColorBlobDetection;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-public class ColorBlobDetector {
+import com.kreolite.cvrccar.Profiling.StageProfiler;
+
+public class ColorBlobDetector implements BlobDetector<Mat> {
+    // Scan modes reporting how the last contours were found
+    public static final int    SCAN_MODE_FULL_FRAME = 0;
+    public static final int    SCAN_MODE_TRACKING = 1;
+
+    // Search window sizing around the last target, in full frame pixels
+    private static final double TRACKING_RADIUS_FACTOR = 3.0;
+    private static final double TRACKING_SPEED_FACTOR = 2.0;
+    private static final int    TRACKING_MIN_HALF_SIZE = 32;
+
     // Lower and Upper bounds for range checking in HSV color space
     private Scalar             mLowerBound = new Scalar(0);
     private Scalar             mUpperBound = new Scalar(0);
+    // Table of the colors within bounds, replaces cvtColor and inRange
+    private ColorLookupTable   mLookupTable = new ColorLookupTable();
     // Minimum contour area in percent for contours filtering
     private static double      mMinContourAreaRatio = 0.2;
     // Color radius for range checking in HSV color space
     private Scalar             mColorRadius = new Scalar(12,50,50,0);
     private Mat                mSpectrum = new Mat();
     private List<MatOfPoint>   mContours = new ArrayList<>();
+    private BlobStats          mBlobs = new BlobStats();
+
+    // Processing scale, each pyramid level halves the frame size
+    private int                mPyramidLevels = 1;
+    private boolean            mIsBlurEnabled = true;
+    private StageProfiler      mProfiler = StageProfiler.DISABLED;
 
     // Cache
     Mat mPyrDownMat = new Mat();
-    Mat mHsvMat = new Mat();
+    Mat mPyrDownTmp = new Mat();
     Mat mMask = new Mat();
     Mat mDilatedMask = new Mat();
     Mat mHierarchy = new Mat();
+    Mat mDilateKernel = new Mat();
+    Size mBlurSize = new Size(5,5);
+    List<MatOfPoint> mFoundContours = new ArrayList<>();
+    double[] mContourAreas = new double[16];
+    int[] mContourPoints = new int[256];
+    int mScale = 1;
+    int mOffsetX, mOffsetY;
+    byte[] mPixelBuffer = new byte[0];
+    byte[] mMaskBuffer = new byte[0];
+
+    // Tracking
+    private boolean            mIsTrackingEnabled = false;
+    private boolean            mIsTargetLocked = false;
+    private double             mLastTargetX;
+    private double             mLastTargetY;
+    private double             mLastTargetRadius;
+    private double             mTargetSpeedX;
+    private double             mTargetSpeedY;
+    private int                mScanMode = SCAN_MODE_FULL_FRAME;
+    private Rect               mSearchWindow = new Rect();
+    private Point              mSearchOffset = new Point(0, 0);
 
     public void setColorRadius(Scalar radius) {
         mColorRadius = radius;
     }
 
+    @Override
+    public void setColorRadius(double[] radius) {
+        mColorRadius = new Scalar(radius);
+    }
+
+    @Override
+    public void setHsvColor(double[] hsvColor) {
+        setHsvColor(new Scalar(hsvColor));
+    }
+
     public void setHsvColor(Scalar hsvColor) {
-        // Ensure HSV colors are within range
-        hsvColor.val[0] = (hsvColor.val[0] <= 0) ? 0 : (hsvColor.val[0] >= 179) ? 179 : hsvColor.val[0];
+        // Ensure HSV colors are within range, hue wraps around
         hsvColor.val[1] = (hsvColor.val[1] <= 0) ? 0 : (hsvColor.val[1] >= 255) ? 255 : hsvColor.val[1];
         hsvColor.val[2] = (hsvColor.val[2] <= 0) ? 0 : (hsvColor.val[2] >= 255) ? 255 : hsvColor.val[2];
 
-        double minH = (hsvColor.val[0] >= mColorRadius.val[0]) ? hsvColor.val[0] - mColorRadius.val[0] : 0;
-        double maxH = (hsvColor.val[0] + mColorRadius.val[0] <= 179) ? hsvColor.val[0] + mColorRadius.val[0] : 179;
-        mLowerBound.val[0] = minH;
-        mUpperBound.val[0] = maxH;
+        updateBounds(hsvColor.val);
 
-        double minS = (hsvColor.val[1] >= mColorRadius.val[1]) ? hsvColor.val[1] - mColorRadius.val[1] : 0;
-        double maxS = (hsvColor.val[1] + mColorRadius.val[1] <= 255) ? hsvColor.val[1] + mColorRadius.val[1] : 255;
-        mLowerBound.val[1] = minS;
-        mUpperBound.val[1] = maxS;
+        // A new color invalidates the tracked target
+        mIsTargetLocked = false;
 
-        double minV = (hsvColor.val[2] >= mColorRadius.val[2]) ? hsvColor.val[2] - mColorRadius.val[2] : 0;
-        double maxV = (hsvColor.val[2] + mColorRadius.val[2] <= 255) ? hsvColor.val[2] + mColorRadius.val[2] : 255;
-        mLowerBound.val[2] = minV;
-        mUpperBound.val[2] = maxV;
-
-        mLowerBound.val[3] = 0;
-        mUpperBound.val[3] = 255;
+        int hueWidth = mLookupTable.getHueWidth();
+        Mat spectrumHsv = new Mat(1, hueWidth, CvType.CV_8UC3);
 
-        Mat spectrumHsv = new Mat(1, (int)(maxH-minH), CvType.CV_8UC3);
-
-        for (int j = 0; j < maxH-minH; j++) {
-            byte[] tmp = {(byte)(minH+j), (byte)255, (byte)255};
+        for (int j = 0; j < hueWidth; j++) {
+            byte[] tmp = {(byte)(mLookupTable.getLowerHue()+j), (byte)255, (byte)255};
             spectrumHsv.put(0, j, tmp);
         }
 
         Imgproc.cvtColor(spectrumHsv, mSpectrum, Imgproc.COLOR_HSV2RGB_FULL, 4);
     }
 
+    /**
+     * Follow a small change of the color, keeping the tracked target. Call
+     * from the detection thread, between frames.
+     *
+     * @param hsvColor The H, S and V values of the color
+     */
+    @Override
+    public void adaptHsvColor(double[] hsvColor) {
+        updateBounds(hsvColor);
+    }
+
+    private void updateBounds(double[] hsvColor) {
+        mLookupTable.setHsvColor(hsvColor, mColorRadius.val);
+
+        // A lower hue above the upper hue means the range wraps around 0
+        mLowerBound.val[0] = mLookupTable.getLowerHue();
+        mUpperBound.val[0] = mLookupTable.getUpperHue();
+        mLowerBound.val[1] = mLookupTable.getLowerSaturation();
+        mUpperBound.val[1] = mLookupTable.getUpperSaturation();
+        mLowerBound.val[2] = mLookupTable.getLowerValue();
+        mUpperBound.val[2] = mLookupTable.getUpperValue();
+        mLowerBound.val[3] = 0;
+        mUpperBound.val[3] = 255;
+    }
+
     public Mat getSpectrum() {
         return mSpectrum;
     }
@@ -76,38 +138,345 @@ public class ColorBlobDetector {
         mMinContourAreaRatio = area;
     }
 
+    /**
+     * Set how many times the frame is halved before being processed, 0 for
+     * full resolution. Takes effect on the next frame.
+     */
+    public void setPyramidLevels(int levels) {
+        mPyramidLevels = Math.max(0, levels);
+    }
+
+    public int getPyramidLevels() {
+        return mPyramidLevels;
+    }
+
+    public void setBlurEnabled(boolean enabled) {
+        mIsBlurEnabled = enabled;
+    }
+
+    public boolean isBlurEnabled() {
+        return mIsBlurEnabled;
+    }
+
+    /**
+     * Set the profiler timing each processing stage.
+     */
+    public void setProfiler(StageProfiler profiler) {
+        mProfiler = (profiler != null) ? profiler : StageProfiler.DISABLED;
+    }
+
+    /**
+     * Enable or disable the tracking mode. When enabled and a target is locked,
+     * only a search window around the last target is processed.
+     */
+    public void setTrackingEnabled(boolean enabled) {
+        mIsTrackingEnabled = enabled;
+        mIsTargetLocked = false;
+    }
+
+    /**
+     * Lock the target found in the last frame, so the next frame only scans
+     * around it. The target speed is estimated from two consecutive locks.
+     *
+     * @param center The target center in full frame coordinates
+     * @param radius The target radius in full frame pixels
+     */
+    public void setTrackedTarget(Point center, double radius) {
+        setTrackedTarget(center.x, center.y, radius);
+    }
+
+    @Override
+    public void setTrackedTarget(double x, double y, double radius) {
+        if (mIsTargetLocked) {
+            mTargetSpeedX = x - mLastTargetX;
+            mTargetSpeedY = y - mLastTargetY;
+        } else {
+            mTargetSpeedX = 0;
+            mTargetSpeedY = 0;
+        }
+        mLastTargetX = x;
+        mLastTargetY = y;
+        mLastTargetRadius = radius;
+        mIsTargetLocked = true;
+    }
+
+    /**
+     * Release the tracked target, next frame will be fully scanned.
+     */
+    @Override
+    public void clearTrackedTarget() {
+        mIsTargetLocked = false;
+    }
+
+    /**
+     * Return the mode that produced the last contours, either
+     * SCAN_MODE_FULL_FRAME or SCAN_MODE_TRACKING.
+     */
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * Return the search window used by the last tracking scan.
+     */
+    public Rect getSearchWindow() {
+        return mSearchWindow;
+    }
+
+    @Override
+    public boolean hasSearchWindow() {
+        return mScanMode == SCAN_MODE_TRACKING;
+    }
+
+    @Override
+    public int getSearchWindowX() {
+        return mSearchWindow.x;
+    }
+
+    @Override
+    public int getSearchWindowY() {
+        return mSearchWindow.y;
+    }
+
+    @Override
+    public int getSearchWindowWidth() {
+        return mSearchWindow.width;
+    }
+
+    @Override
+    public int getSearchWindowHeight() {
+        return mSearchWindow.height;
+    }
+
+    @Override
+    public void detect(Mat rgbaImage) {
+        findContours(rgbaImage);
+    }
+
+    /**
+     * Free the cached Mats, the detector can still be used afterwards.
+     */
+    @Override
+    public void release() {
+        for (int i = 0, n = mFoundContours.size(); i < n; i++)
+            mFoundContours.get(i).release();
+        mFoundContours.clear();
+        mContours.clear();
+        mPyrDownMat.release();
+        mPyrDownTmp.release();
+        mMask.release();
+        mDilatedMask.release();
+        mHierarchy.release();
+    }
+
     public void findContours(Mat rgbaImage) {
-        Imgproc.pyrDown(rgbaImage, mPyrDownMat);
-        Imgproc.GaussianBlur(mPyrDownMat, mPyrDownMat, new Size(5,5), 2, 2);
-        Imgproc.cvtColor(mPyrDownMat, mHsvMat, Imgproc.COLOR_RGB2HSV_FULL);
-        Core.inRange(mHsvMat, mLowerBound, mUpperBound, mMask);
-        Imgproc.dilate(mMask, mDilatedMask, new Mat());
-        Imgproc.pyrUp(mDilatedMask, mDilatedMask);
+        if (mIsTrackingEnabled && mIsTargetLocked) {
+            updateSearchWindow(rgbaImage.cols(), rgbaImage.rows());
+
+            Mat searchMat = rgbaImage.submat(mSearchWindow);
+            mSearchOffset.x = mSearchWindow.x;
+            mSearchOffset.y = mSearchWindow.y;
+            findContours(searchMat, mSearchOffset);
+            searchMat.release();
+
+            if (!mContours.isEmpty()) {
+                mScanMode = SCAN_MODE_TRACKING;
+                return;
+            }
+
+            // Target missed inside the window, fall back to a full frame scan
+            mIsTargetLocked = false;
+        }
 
-        List<MatOfPoint> contours = new ArrayList<>();
-        Imgproc.findContours(mDilatedMask, contours, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        mSearchOffset.x = 0;
+        mSearchOffset.y = 0;
+        findContours(rgbaImage, mSearchOffset);
+        mScanMode = SCAN_MODE_FULL_FRAME;
+    }
+
+    private void updateSearchWindow(int cols, int rows) {
+        double speed = Math.sqrt(mTargetSpeedX * mTargetSpeedX + mTargetSpeedY * mTargetSpeedY);
+        int halfSize = (int) Math.max(TRACKING_MIN_HALF_SIZE,
+                mLastTargetRadius * TRACKING_RADIUS_FACTOR + speed * TRACKING_SPEED_FACTOR);
+
+        // Center on where the target should be now, align the origin on the processing scale
+        int align = Math.max(2, 1 << mPyramidLevels);
+        int x = (int) (mLastTargetX + mTargetSpeedX) - halfSize;
+        int y = (int) (mLastTargetY + mTargetSpeedY) - halfSize;
+        x = Math.min(Math.max(0, x), cols - 2) & -align;
+        y = Math.min(Math.max(0, y), rows - 2) & -align;
+        int width = Math.min(cols - x, 2 * halfSize) & ~1;
+        int height = Math.min(rows - y, 2 * halfSize) & ~1;
+
+        mSearchWindow.x = x;
+        mSearchWindow.y = y;
+        mSearchWindow.width = Math.max(2, width);
+        mSearchWindow.height = Math.max(2, height);
+    }
 
-        // Find max contour area
+    private void findContours(Mat rgbaImage, Point offset) {
+        // Contours are found at the processing scale, the blobs are scaled back
+        long time = mProfiler.begin();
+        Mat image = rgbaImage;
+        for (int level = 0; level < mPyramidLevels; level++) {
+            Mat pyrDown = (image == mPyrDownMat) ? mPyrDownTmp : mPyrDownMat;
+            Imgproc.pyrDown(image, pyrDown);
+            image = pyrDown;
+        }
+        if (mPyramidLevels > 0)
+            time = mProfiler.end(StageProfiler.PYR_DOWN, time);
+        if (mIsBlurEnabled) {
+            Mat blurred = (image == mPyrDownMat) ? mPyrDownTmp : mPyrDownMat;
+            Imgproc.GaussianBlur(image, blurred, mBlurSize, 2, 2);
+            image = blurred;
+            time = mProfiler.end(StageProfiler.BLUR, time);
+        }
+        buildMask(image, mMask);
+        time = mProfiler.end(StageProfiler.COLOR_MASK, time);
+        Imgproc.dilate(mMask, mDilatedMask, mDilateKernel);
+        time = mProfiler.end(StageProfiler.DILATE, time);
+
+        mScale = 1 << mPyramidLevels;
+        mOffsetX = (int) offset.x;
+        mOffsetY = (int) offset.y;
+
+        // Contours of the previous frame are not used anymore
+        for (int i = 0, n = mFoundContours.size(); i < n; i++)
+            mFoundContours.get(i).release();
+        // findContours appends to the list
+        mFoundContours.clear();
+        Imgproc.findContours(mDilatedMask, mFoundContours, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        time = mProfiler.end(StageProfiler.FIND_CONTOURS, time);
+
+        // Find max contour area, computing each area only once
+        int contourCount = mFoundContours.size();
+        if (mContourAreas.length < contourCount)
+            mContourAreas = new double[contourCount];
         double maxArea = 0;
-        Iterator<MatOfPoint> each = contours.iterator();
-        while (each.hasNext()) {
-            MatOfPoint wrapper = each.next();
-            double area = Imgproc.contourArea(wrapper);
+        for (int i = 0; i < contourCount; i++) {
+            double area = contourArea(mFoundContours.get(i));
+            mContourAreas[i] = area;
             if (area > maxArea)
                 maxArea = area;
         }
 
         // Filter contours by area
         mContours.clear();
-        each = contours.iterator();
-        while (each.hasNext()) {
-            MatOfPoint contour = each.next();
-            if (Imgproc.contourArea(contour) > mMinContourAreaRatio * maxArea) {
-                mContours.add(contour);
+        mBlobs.clear();
+        for (int i = 0; i < contourCount; i++) {
+            if (mContourAreas[i] > mMinContourAreaRatio * maxArea) {
+                // Keep the contours at the same index as their blob
+                int index = addBlob(mFoundContours.get(i));
+                if (index == mContours.size())
+                    mContours.add(mFoundContours.get(i));
+                else if (index >= 0)
+                    mContours.set(index, mFoundContours.get(i));
             }
         }
+        mProfiler.end(StageProfiler.BLOB_STATS, time);
+    }
+
+    /**
+     * Copy the contour points into the reusable buffer.
+     *
+     * @return The number of points
+     */
+    private int readContourPoints(MatOfPoint contour) {
+        int pointCount = (int) contour.total();
+        if (mContourPoints.length < 2 * pointCount)
+            mContourPoints = new int[4 * pointCount];
+        contour.get(0, 0, mContourPoints);
+        return pointCount;
+    }
+
+    /**
+     * Compute the contour area with the shoelace formula, as contourArea does.
+     */
+    private double contourArea(MatOfPoint contour) {
+        int n = readContourPoints(contour);
+        final int[] p = mContourPoints;
+        double area2 = 0;
+        for (int i = 0, j = n - 1; i < n; j = i++)
+            area2 += (double) p[2 * j] * p[2 * i + 1] - (double) p[2 * i] * p[2 * j + 1];
+        return Math.abs(area2) / 2;
+    }
+
+    /**
+     * Compute the blob statistics from the contour polygon moments in a single
+     * pass over its points, and add them to the blobs.
+     *
+     * @return The index of the blob, or -1 when it was not added
+     */
+    private int addBlob(MatOfPoint contour) {
+        int n = readContourPoints(contour);
+        final int[] p = mContourPoints;
+        double area2 = 0, momentX = 0, momentY = 0, perimeter = 0;
+        double sumX = 0, sumY = 0;
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            int xi = p[2 * i], yi = p[2 * i + 1];
+            int xj = p[2 * j], yj = p[2 * j + 1];
+            double cross = (double) xj * yi - (double) xi * yj;
+            area2 += cross;
+            momentX += (xj + xi) * cross;
+            momentY += (yj + yi) * cross;
+            perimeter += Math.sqrt((double) (xi - xj) * (xi - xj) + (double) (yi - yj) * (yi - yj));
+            sumX += xi;
+            sumY += yi;
+            if (xi < left) left = xi;
+            if (xi > right) right = xi;
+            if (yi < top) top = yi;
+            if (yi > bottom) bottom = yi;
+        }
+
+        // Back to full frame coordinates
+        final int s = mScale;
+        if (area2 != 0)
+            return mBlobs.add(Math.abs(area2) / 2 * s * s, momentX / (3 * area2) * s + mOffsetX, momentY / (3 * area2) * s + mOffsetY,
+                    left * s + mOffsetX, top * s + mOffsetY, right * s + mOffsetX, bottom * s + mOffsetY, perimeter * s);
+        else if (n > 0)
+            // Flat contour, use the mean of its points
+            return mBlobs.add(0, sumX / n * s + mOffsetX, sumY / n * s + mOffsetY,
+                    left * s + mOffsetX, top * s + mOffsetY, right * s + mOffsetX, bottom * s + mOffsetY, perimeter * s);
+        return -1;
     }
+
+    /**
+     * Build the color mask with one table lookup per pixel, this does the
+     * same as cvtColor to HSV followed by inRange.
+     */
+    private void buildMask(Mat rgbaImage, Mat mask) {
+        int pixelCount = (int) rgbaImage.total();
+        int channels = rgbaImage.channels();
+
+        // Buffers only grow, a search window is never larger than the frame
+        if (mMaskBuffer.length < pixelCount || mPixelBuffer.length < pixelCount * channels) {
+            mPixelBuffer = new byte[pixelCount * channels];
+            mMaskBuffer = new byte[pixelCount];
+        }
+
+        rgbaImage.get(0, 0, mPixelBuffer);
+        mLookupTable.buildMask(mPixelBuffer, channels, pixelCount, mMaskBuffer);
+        mask.create(rgbaImage.rows(), rgbaImage.cols(), CvType.CV_8UC1);
+        mask.put(0, 0, mMaskBuffer);
+    }
+
+    /**
+     * Return the contours of the last frame, at the processing scale and
+     * relative to the scanned region. Contour i is the one of blob i, so at
+     * most MAX_BLOBS are kept. Use getBlobs() for full frame values.
+     */
     public List<MatOfPoint> getContours() {
         return mContours;
     }
+
+    /**
+     * Return the statistics of the contours returned by getContours(), in full
+     * frame coordinates.
+     */
+    @Override
+    public BlobStats getBlobs() {
+        return mBlobs;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs a pure Java engine on camera Mats, copying each frame out of native
+ * memory into a buffer first. The buffer then holds the last frame, for
+ * whoever else needs its pixels.
+ */
+public class FrameCopyDetector implements BlobDetector<Mat> {
+    private final BlobDetector<RgbaFrame> mEngine;
+    private final RgbaFrame    mFrame;
+
+    /**
+     * @param engine The pure Java engine
+     * @param frame  The frame receiving the copies, its buffer must hold a whole frame
+     */
+    public FrameCopyDetector(BlobDetector<RgbaFrame> engine, RgbaFrame frame) {
+        mEngine = engine;
+        mFrame = frame;
+    }
+
+    public BlobDetector<RgbaFrame> getEngine() {
+        return mEngine;
+    }
+
+    @Override
+    public void detect(Mat rgbaImage) {
+        rgbaImage.get(0, 0, mFrame.getPixels());
+        mFrame.set(mFrame.getPixels(), rgbaImage.cols(), rgbaImage.rows());
+        mEngine.detect(mFrame);
+    }
+
+    @Override
+    public void setColorRadius(double[] radius) {
+        mEngine.setColorRadius(radius);
+    }
+
+    @Override
+    public void setHsvColor(double[] hsvColor) {
+        mEngine.setHsvColor(hsvColor);
+    }
+
+    @Override
+    public void adaptHsvColor(double[] hsvColor) {
+        mEngine.adaptHsvColor(hsvColor);
+    }
+
+    @Override
+    public BlobStats getBlobs() {
+        return mEngine.getBlobs();
+    }
+
+    @Override
+    public void setTrackedTarget(double x, double y, double radius) {
+        mEngine.setTrackedTarget(x, y, radius);
+    }
+
+    @Override
+    public void clearTrackedTarget() {
+        mEngine.clearTrackedTarget();
+    }
+
+    @Override
+    public boolean hasSearchWindow() {
+        return mEngine.hasSearchWindow();
+    }
+
+    @Override
+    public int getSearchWindowX() {
+        return mEngine.getSearchWindowX();
+    }
+
+    @Override
+    public int getSearchWindowY() {
+        return mEngine.getSearchWindowY();
+    }
+
+    @Override
+    public int getSearchWindowWidth() {
+        return mEngine.getSearchWindowWidth();
+    }
+
+    @Override
+    public int getSearchWindowHeight() {
+        return mEngine.getSearchWindowHeight();
+    }
+
+    @Override
+    public void release() {
+        mEngine.release();
+    }
+
+    @Override
+    public String toString() {
+        return mEngine.toString();
+    }
+}
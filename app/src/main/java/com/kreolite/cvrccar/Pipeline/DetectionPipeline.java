@@ -0,0 +1,158 @@
+package com.kreolite.cvrccar.Pipeline;
+
+import com.kreolite.cvrccar.Profiling.AllocationCounter;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs detection off the camera callback. The camera thread hands frames in
+ * through a triple buffer and draws the newest result, a detection thread
+ * always works on the newest frame, dropping the stale ones, and hands its
+ * results over to the control loop.
+ */
+public class DetectionPipeline {
+    private static final String TAG = "DetectionPipeline";
+
+    /**
+     * Detection stage, called on the detection thread.
+     */
+    public interface DetectionStage {
+        void detect(Mat rgba, DetectionResult result);
+    }
+
+    private static class Frame {
+        final Mat              mRgba;
+        long                   mSequence;
+        long                   mCaptureNanos;
+
+        Frame(int width, int height) {
+            mRgba = new Mat(height, width, CvType.CV_8UC4);
+        }
+    }
+
+    private final Frame[]                       mFrameSlots;
+    private final TripleBuffer<Frame>           mFrames;
+    private final TripleBuffer<DetectionResult> mRenderResults;
+    private final DetectionResult               mResult = new DetectionResult();
+    private final DetectionStage                mDetectionStage;
+    private final ControlLoop                   mControlLoop;
+    private final PipelineStats                 mStats = new PipelineStats();
+    // Allocations of the detection thread, counted once started
+    private final AllocationCounter             mAllocationCounter = new AllocationCounter();
+    private volatile boolean                    mIsRunning = false;
+    private volatile Thread                     mDetectionThread;
+    private long                                mFrameSequence = 0;
+
+    public DetectionPipeline(int width, int height, DetectionStage detectionStage, ControlLoop controlLoop) {
+        mFrameSlots = new Frame[] {new Frame(width, height), new Frame(width, height), new Frame(width, height)};
+        mFrames = new TripleBuffer<>(mFrameSlots[0], mFrameSlots[1], mFrameSlots[2]);
+        mRenderResults = new TripleBuffer<>(new DetectionResult(), new DetectionResult(), new DetectionResult());
+        mDetectionStage = detectionStage;
+        mControlLoop = controlLoop;
+    }
+
+    public synchronized void start() {
+        if (mIsRunning) return;
+
+        mIsRunning = true;
+        mStats.reset();
+        mDetectionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDetection();
+            }
+        }, TAG + "-detect");
+        mDetectionThread.start();
+    }
+
+    /**
+     * Stop the detection thread and wait for it, the detection stage is not
+     * called afterwards. The control loop is stopped separately.
+     */
+    public synchronized void stop() {
+        if (!mIsRunning) return;
+
+        mIsRunning = false;
+        LockSupport.unpark(mDetectionThread);
+        try {
+            mDetectionThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mDetectionThread = null;
+    }
+
+    /**
+     * Stop the pipeline and release the frame buffers.
+     */
+    public void release() {
+        stop();
+        for (Frame frame : mFrameSlots)
+            frame.mRgba.release();
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    public PipelineStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Return the allocation counter of the detection thread, each processed
+     * frame is counted once it is started.
+     */
+    public AllocationCounter getAllocationCounter() {
+        return mAllocationCounter;
+    }
+
+    /**
+     * Copy a camera frame into the pipeline, camera thread only. A frame not
+     * yet taken by the detection thread is dropped.
+     */
+    public void submitFrame(Mat rgba) {
+        // Stamped before the copy, so that latencies and predictions include it
+        long captureNanos = System.nanoTime();
+        Frame frame = mFrames.getWriteBuffer();
+        rgba.copyTo(frame.mRgba);
+        frame.mSequence = ++mFrameSequence;
+        frame.mCaptureNanos = captureNanos;
+        mStats.onFrameCaptured(!mFrames.publish());
+        LockSupport.unpark(mDetectionThread);
+    }
+
+    /**
+     * Return the newest detection result to draw, camera thread only. The
+     * result stays valid until the next call.
+     */
+    public DetectionResult getRenderResult() {
+        if (mRenderResults.update())
+            mStats.onResultRendered();
+        return mRenderResults.getReadBuffer();
+    }
+
+    private void runDetection() {
+        while (mIsRunning) {
+            if (!mFrames.update()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            Frame frame = mFrames.getReadBuffer();
+            mAllocationCounter.beginFrame();
+            long start = System.nanoTime();
+            mResult.reset(frame.mSequence, frame.mCaptureNanos);
+            mDetectionStage.detect(frame.mRgba, mResult);
+            mResult.setDetectedNanos(System.nanoTime());
+
+            mRenderResults.getWriteBuffer().copyFrom(mResult);
+            mRenderResults.publish();
+            mStats.onFrameProcessed(mResult.getDetectedNanos() - start, !mControlLoop.publish(mResult));
+            mAllocationCounter.endFrame();
+        }
+    }
+}
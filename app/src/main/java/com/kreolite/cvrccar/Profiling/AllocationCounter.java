@@ -0,0 +1,126 @@
+package com.kreolite.cvrccar.Profiling;
+
+import android.os.Debug;
+
+/**
+ * Counts the objects and bytes allocated by the calling thread between
+ * {@link #beginFrame()} and {@link #endFrame()}, so that the frame path can be
+ * checked not to allocate once in steady state. Counts are per thread, so
+ * each thread of the frame path uses its own counter.
+ */
+public class AllocationCounter {
+    // Allocation counting is process wide, it runs while any counter is started
+    private static int         sStartedCount = 0;
+
+    private volatile boolean   mIsStarted = false;
+    private long               mFrameCount = 0;
+    private int                mLastFrameObjects = 0;
+    private int                mLastFrameBytes = 0;
+    private int                mMaxFrameObjects = 0;
+    private int                mMaxFrameBytes = 0;
+    private long               mTotalObjects = 0;
+    private long               mTotalBytes = 0;
+    private int                mStartGcCount = 0;
+
+    /**
+     * Start allocation counting, this slows allocations down so it should
+     * only be enabled while profiling.
+     */
+    public synchronized void start() {
+        if (mIsStarted) return;
+
+        synchronized (AllocationCounter.class) {
+            if (sStartedCount++ == 0)
+                Debug.startAllocCounting();
+        }
+        mStartGcCount = Debug.getGlobalGcInvocationCount();
+        mIsStarted = true;
+        reset();
+    }
+
+    public synchronized void stop() {
+        if (!mIsStarted) return;
+
+        mIsStarted = false;
+        synchronized (AllocationCounter.class) {
+            if (--sStartedCount == 0)
+                Debug.stopAllocCounting();
+        }
+    }
+
+    public synchronized void reset() {
+        mFrameCount = 0;
+        mLastFrameObjects = 0;
+        mLastFrameBytes = 0;
+        mMaxFrameObjects = 0;
+        mMaxFrameBytes = 0;
+        mTotalObjects = 0;
+        mTotalBytes = 0;
+    }
+
+    public boolean isStarted() {
+        return mIsStarted;
+    }
+
+    public void beginFrame() {
+        if (!mIsStarted) return;
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+    }
+
+    public synchronized void endFrame() {
+        if (!mIsStarted) return;
+
+        mLastFrameObjects = Debug.getThreadAllocCount();
+        mLastFrameBytes = Debug.getThreadAllocSize();
+        mMaxFrameObjects = Math.max(mMaxFrameObjects, mLastFrameObjects);
+        mMaxFrameBytes = Math.max(mMaxFrameBytes, mLastFrameBytes);
+        mTotalObjects += mLastFrameObjects;
+        mTotalBytes += mLastFrameBytes;
+        mFrameCount++;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized int getLastFrameObjects() {
+        return mLastFrameObjects;
+    }
+
+    public synchronized int getLastFrameBytes() {
+        return mLastFrameBytes;
+    }
+
+    public synchronized int getMaxFrameObjects() {
+        return mMaxFrameObjects;
+    }
+
+    public synchronized int getMaxFrameBytes() {
+        return mMaxFrameBytes;
+    }
+
+    public synchronized double getAverageFrameObjects() {
+        return (mFrameCount == 0) ? 0 : (double) mTotalObjects / mFrameCount;
+    }
+
+    public synchronized double getAverageFrameBytes() {
+        return (mFrameCount == 0) ? 0 : (double) mTotalBytes / mFrameCount;
+    }
+
+    /**
+     * Return the number of garbage collections since counting started.
+     */
+    public int getGcCount() {
+        return Debug.getGlobalGcInvocationCount() - mStartGcCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames=" + mFrameCount
+                + " objects/frame=" + String.format("%.1f", getAverageFrameObjects()) + " (max " + mMaxFrameObjects + ")"
+                + " bytes/frame=" + String.format("%.1f", getAverageFrameBytes()) + " (max " + mMaxFrameBytes + ")"
+                + " gc=" + getGcCount();
+    }
+}
@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.RadioButton;
@@ -34,6 +35,23 @@ public class SettingsActivity extends AppCompatActivity {
     @InjectView(R.id.editTextMinRadius)
     EditText minRadiusControl;
 
+    @InjectView(R.id.radioButtonEngineContours)
+    RadioButton engineContoursControl;
+    @InjectView(R.id.radioButtonEnginePixels)
+    RadioButton enginePixelsControl;
+    @InjectView(R.id.radioButtonEngineCamshift)
+    RadioButton engineCamshiftControl;
+
+    @InjectView(R.id.radioButtonProtocolJson)
+    RadioButton protocolJsonControl;
+    @InjectView(R.id.radioButtonProtocolBinary)
+    RadioButton protocolBinaryControl;
+
+    @InjectView(R.id.checkBoxRecording)
+    CheckBox recordingControl;
+    @InjectView(R.id.checkBoxZeroAlloc)
+    CheckBox zeroAllocControl;
+
     SharedPreferences sharedPref;
     SharedPreferences.Editor editor;
 
@@ -54,6 +72,15 @@ public class SettingsActivity extends AppCompatActivity {
         forwardBoundaryControl.setText(sharedPref.getString(getString(R.string.forward_boundary_percent), "-10"));
         reverseBoundaryControl.setText(sharedPref.getString(getString(R.string.reverse_boundary_percent), "25"));
         minRadiusControl.setText(sharedPref.getString(getString(R.string.minimum_radius_value), "15"));
+        String engine = sharedPref.getString(getString(R.string.detector_engine), "contours");
+        engineContoursControl.setChecked(engine.equals("contours"));
+        enginePixelsControl.setChecked(engine.equals("pixels"));
+        engineCamshiftControl.setChecked(engine.equals("camshift"));
+        String protocol = sharedPref.getString(getString(R.string.command_protocol), "json");
+        protocolJsonControl.setChecked(protocol.equals("json"));
+        protocolBinaryControl.setChecked(protocol.equals("binary"));
+        recordingControl.setChecked(sharedPref.getBoolean(getString(R.string.is_recording), false));
+        zeroAllocControl.setChecked(sharedPref.getBoolean(getString(R.string.is_zero_alloc), false));
 
         setBtDeviceControlListener();
         setReso1ControlListener();
@@ -63,6 +90,13 @@ public class SettingsActivity extends AppCompatActivity {
         setForwardBoundaryControlListener();
         setReverseBoundaryControlListener();
         setMinRadiusControlListener();
+        setEngineControlListener(engineContoursControl, "contours");
+        setEngineControlListener(enginePixelsControl, "pixels");
+        setEngineControlListener(engineCamshiftControl, "camshift");
+        setProtocolControlListener(protocolJsonControl, "json");
+        setProtocolControlListener(protocolBinaryControl, "binary");
+        setRecordingControlListener();
+        setZeroAllocControlListener();
     }
 
     private void setBtDeviceControlListener() {
@@ -153,6 +187,60 @@ public class SettingsActivity extends AppCompatActivity {
         });
     }
 
+    private void setEngineControlListener(RadioButton engineControl, final String engine) {
+
+        engineControl.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (!isChecked) return;
+                editor = sharedPref.edit();
+                editor.putString(getString(R.string.detector_engine), engine);
+                editor.commit();
+            }
+        });
+    }
+
+    private void setProtocolControlListener(RadioButton protocolControl, final String protocol) {
+
+        protocolControl.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (!isChecked) return;
+                editor = sharedPref.edit();
+                editor.putString(getString(R.string.command_protocol), protocol);
+                editor.commit();
+            }
+        });
+    }
+
+    private void setRecordingControlListener() {
+
+        recordingControl.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor = sharedPref.edit();
+                editor.putBoolean(getString(R.string.is_recording), isChecked);
+                editor.commit();
+            }
+        });
+    }
+
+    private void setZeroAllocControlListener() {
+
+        zeroAllocControl.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                editor = sharedPref.edit();
+                editor.putBoolean(getString(R.string.is_zero_alloc), isChecked);
+                editor.commit();
+            }
+        });
+    }
+
     private void setReso1ControlListener() {
 
         reso1Control.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -0,0 +1,75 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobDetector;
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+import com.kreolite.cvrccar.ColorBlobDetection.CamShiftDetector;
+import com.kreolite.cvrccar.ColorBlobDetection.PixelBlobDetector;
+import com.kreolite.cvrccar.ColorBlobDetection.RgbaFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame time of the pure Java engines side by side, on a single thread,
+ * following the largest blob as the activity does. The OpenCV engine needs
+ * the native library and is only measured on the device, see StageProfiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BlobDetectorBenchmark {
+    @Param({"352x288", "800x480", "1280x960", "1920x1080"})
+    public String resolution;
+
+    @Param({"pixels", "camshift"})
+    public String engine;
+
+    private BlobDetector<RgbaFrame> mDetector;
+    private RgbaFrame[] mFrames;
+    private int mFrameIndex = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int width = Frames.parseWidth(resolution);
+        int height = Frames.parseHeight(resolution);
+        byte[][] frames = Frames.load(width, height);
+        mFrames = new RgbaFrame[frames.length];
+        for (int i = 0; i < frames.length; i++)
+            mFrames[i] = new RgbaFrame(frames[i], width, height);
+
+        mDetector = engine.equals("camshift") ? new CamShiftDetector() : new PixelBlobDetector();
+        mDetector.setColorRadius(Frames.COLOR_RADIUS);
+        mDetector.setHsvColor(Frames.TARGET_HSV);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDetector.release();
+    }
+
+    @Benchmark
+    public int detect() {
+        RgbaFrame frame = mFrames[mFrameIndex];
+        mFrameIndex = (mFrameIndex + 1) % mFrames.length;
+        mDetector.detect(frame);
+
+        BlobStats blobs = mDetector.getBlobs();
+        int target = blobs.findLargest(0);
+        if (target >= 0)
+            mDetector.setTrackedTarget(blobs.getCenterX(target), blobs.getCenterY(target), blobs.getRadius(target));
+        else
+            mDetector.clearTrackedTarget();
+        return blobs.getCount();
+    }
+}
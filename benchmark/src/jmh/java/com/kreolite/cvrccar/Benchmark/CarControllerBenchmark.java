@@ -0,0 +1,78 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import com.kreolite.cvrccar.ColorBlobDetection.CarController;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller update for a target sweeping across the frame, and the PWM
+ * serialization sent to the car after each update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CarControllerBenchmark {
+    private static final int   TARGET_POSITIONS = 64;
+
+    @Param({"352x288", "800x480", "1280x960", "1920x1080"})
+    public String resolution;
+
+    private final CarController mController = new CarController();
+    private final byte[] mBuffer = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    private double[] mTargetX, mTargetY;
+    private double mCenterX, mCenterY;
+    private int mTargetIndex = 0;
+    // Simulated clock, one update every 20 ms
+    private long mNowNanos = 0;
+
+    @Setup
+    public void setUp() {
+        int width = Frames.parseWidth(resolution);
+        int height = Frames.parseHeight(resolution);
+        mCenterX = width / 2;
+        mCenterY = height / 2;
+
+        // Target going around an ellipse, crossing the pan dead band and the throttle boundaries
+        mTargetX = new double[TARGET_POSITIONS];
+        mTargetY = new double[TARGET_POSITIONS];
+        for (int i = 0; i < TARGET_POSITIONS; i++) {
+            double angle = 2 * Math.PI * i / TARGET_POSITIONS;
+            mTargetX[i] = mCenterX + 0.45 * width * Math.cos(angle);
+            mTargetY[i] = mCenterY + 0.45 * height * Math.sin(angle);
+        }
+    }
+
+    @Benchmark
+    public CarController updateTargetPwm() throws InterruptedException {
+        int i = mTargetIndex;
+        mTargetIndex = (i + 1) % TARGET_POSITIONS;
+        mNowNanos += 20000000L;
+        mController.updateTargetPWM(mCenterX, mCenterY, mTargetX[i], mTargetY[i], mNowNanos, -0.1, 0.25, false);
+        return mController;
+    }
+
+    @Benchmark
+    public int serializeToBuffer() {
+        return mController.getPWMValuesToJson(mBuffer);
+    }
+
+    @Benchmark
+    public String serializeToString() {
+        return mController.getPWMValuesToJson();
+    }
+
+    @Benchmark
+    public int updateAndSerialize() throws InterruptedException {
+        updateTargetPwm();
+        return mController.getPWMValuesToJson(mBuffer);
+    }
+}
@@ -0,0 +1,54 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import com.kreolite.cvrccar.ColorBlobDetection.ColorLookupTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Color mask of a full frame with the lookup table, which replaces
+ * cvtColor and inRange in both detectors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColorLookupTableBenchmark {
+    @Param({"352x288", "800x480", "1280x960", "1920x1080"})
+    public String resolution;
+
+    private final ColorLookupTable mTable = new ColorLookupTable();
+    private byte[] mFrame;
+    private byte[] mMask;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int width = Frames.parseWidth(resolution);
+        int height = Frames.parseHeight(resolution);
+        mFrame = Frames.load(width, height)[0];
+        mMask = new byte[width * height];
+        mTable.setHsvColor(Frames.TARGET_HSV, Frames.COLOR_RADIUS);
+    }
+
+    @Benchmark
+    public byte[] buildMask() {
+        mTable.buildMask(mFrame, 4, mMask.length, mMask);
+        return mMask;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ColorLookupTable rebuildTable() {
+        mTable.setHsvColor(Frames.TARGET_HSV, Frames.COLOR_RADIUS);
+        return mTable;
+    }
+}
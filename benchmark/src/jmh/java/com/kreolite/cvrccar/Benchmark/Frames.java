@@ -0,0 +1,96 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * RGBA frames for the benchmarks. Recorded frames are read from the
+ * directory given by the cvrccar.frames property, as raw RGBA dumps named
+ * after their resolution (1280x960.rgba), otherwise synthetic frames with
+ * moving green targets on a noisy background are generated.
+ */
+public class Frames {
+    // Supported camera resolutions, as set in the settings
+    public static final String[] RESOLUTIONS = {"352x288", "800x480", "1280x960", "1920x1080"};
+    public static final double[] TARGET_HSV = {85, 220, 220};
+    public static final double[] COLOR_RADIUS = {5, 50, 200, 0};
+
+    private static final int   SYNTHETIC_FRAMES = 8;
+    private static final int   MAX_RECORDED_FRAMES = 32;
+
+    public static int parseWidth(String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    public static int parseHeight(String resolution) {
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+
+    /**
+     * Return the recorded frames of a resolution if there are some, synthetic ones otherwise.
+     */
+    public static byte[][] load(int width, int height) throws IOException {
+        String dir = System.getProperty("cvrccar.frames", "");
+        if (!dir.isEmpty()) {
+            File file = new File(dir, width + "x" + height + ".rgba");
+            if (file.isFile())
+                return read(file, width, height);
+        }
+
+        byte[][] frames = new byte[SYNTHETIC_FRAMES][];
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++)
+            frames[i] = create(width, height, i);
+        return frames;
+    }
+
+    private static byte[][] read(File file, int width, int height) throws IOException {
+        int frameSize = width * height * 4;
+        int count = (int) Math.min(MAX_RECORDED_FRAMES, file.length() / frameSize);
+        if (count == 0)
+            throw new IOException(file + " holds no complete " + width + "x" + height + " frame");
+
+        byte[][] frames = new byte[count][frameSize];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            for (int i = 0; i < count; i++)
+                in.readFully(frames[i]);
+        } finally {
+            in.close();
+        }
+        return frames;
+    }
+
+    /**
+     * Create a RGBA frame with green discs on a noisy background, the discs
+     * moving a little with each frame index.
+     */
+    public static byte[] create(int width, int height, int index) {
+        byte[] frame = new byte[width * height * 4];
+        int radius = height / 10;
+        int shift = index * width / 64;
+        int[][] centers = {{width / 4 + shift, height / 3}, {width / 2, height / 2 + shift / 2},
+                {3 * width / 4 - shift, 2 * height / 3}};
+        int noise = 12345 + index;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean isTarget = false;
+                for (int[] c : centers) {
+                    int dx = x - c[0];
+                    int dy = y - c[1];
+                    if (dx * dx + dy * dy < radius * radius) isTarget = true;
+                }
+                noise = noise * 1103515245 + 12345;
+                int n = (noise >>> 24) & 0x1F;
+                int p = (y * width + x) * 4;
+                frame[p] = (byte) (isTarget ? 30 + n : 120 + n);
+                frame[p + 1] = (byte) (isTarget ? 220 - n : 40 + n);
+                frame[p + 2] = (byte) (isTarget ? 30 + n : 60 + n);
+                frame[p + 3] = (byte) 255;
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,62 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import com.kreolite.cvrccar.ColorBlobDetection.PixelBlobDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame time of the pure Java detector at each camera resolution, from 1
+ * stripe thread to one per available core ("max").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PixelBlobDetectorBenchmark {
+    @Param({"352x288", "800x480", "1280x960", "1920x1080"})
+    public String resolution;
+
+    @Param({"1", "2", "4", "max"})
+    public String threads;
+
+    private PixelBlobDetector mDetector;
+    private byte[][] mFrames;
+    private int mWidth, mHeight;
+    private int mFrameIndex = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mWidth = Frames.parseWidth(resolution);
+        mHeight = Frames.parseHeight(resolution);
+        mFrames = Frames.load(mWidth, mHeight);
+        mDetector = new PixelBlobDetector();
+        mDetector.setColorRadius(Frames.COLOR_RADIUS);
+        mDetector.setHsvColor(Frames.TARGET_HSV);
+        mDetector.setThreadCount("max".equals(threads)
+                ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDetector.release();
+    }
+
+    @Benchmark
+    public int detect() {
+        byte[] frame = mFrames[mFrameIndex];
+        mFrameIndex = (mFrameIndex + 1) % mFrames.length;
+        mDetector.detect(frame, mWidth, mHeight);
+        return mDetector.getBlobs().getCount();
+    }
+}
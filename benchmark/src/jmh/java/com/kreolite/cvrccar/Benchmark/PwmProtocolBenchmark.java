@@ -0,0 +1,92 @@
+package com.kreolite.cvrccar.Benchmark;
+
+import com.kreolite.cvrccar.ColorBlobDetection.CarController;
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
+import com.kreolite.cvrccar.Protocol.PwmFrameDecoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost of a PWM command in each protocol. The wireBytes benchmark
+ * reports the bytes on the wire and the commands encoded as counters, their
+ * ratio is the bytes per command, 45 in JSON and 11 in binary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PwmProtocolBenchmark {
+    @Param({"json", "binary"})
+    public String protocol;
+
+    private final CarController mController = new CarController();
+    private final byte[] mBuffer = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    private final PwmFrameDecoder mDecoder = new PwmFrameDecoder();
+    private boolean mIsBinary;
+    private int mSequence = 0;
+
+    @Setup
+    public void setUp() {
+        mIsBinary = protocol.equals("binary");
+    }
+
+    @Benchmark
+    public int encode() {
+        if (!mIsBinary)
+            return mController.getPWMValuesToJson(mBuffer);
+
+        int length = mController.getPWMValuesToFrame(mBuffer);
+        PwmFrameCodec.setSequence(mBuffer, 0, mSequence);
+        mSequence = (mSequence + 1) & 0xFF;
+        return length;
+    }
+
+    /**
+     * Bytes on the wire, counted per iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireCounters {
+        public long bytes;
+        public long commands;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            commands = 0;
+        }
+    }
+
+    /**
+     * Encode a command and count its bytes, aux counters need a throughput mode.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int wireBytes(WireCounters counters) {
+        int length = encode();
+        counters.bytes += length;
+        counters.commands++;
+        return length;
+    }
+
+    /**
+     * Encode then decode a frame byte by byte, as the firmware does.
+     */
+    @Benchmark
+    public int encodeAndDecodeFrame() {
+        int length = PwmFrameCodec.encode(mSequence, 1385, 1640, 1490, 0, mBuffer, 0);
+        mSequence = (mSequence + 1) & 0xFF;
+        mDecoder.feed(mBuffer, 0, length);
+        return mDecoder.getPan();
+    }
+}
@@ -0,0 +1,315 @@
+package com.kreolite.cvrccar.BluetoothService;
+
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+import com.kreolite.cvrccar.Profiling.StageProfiler;
+
+/**
+ * Writes car commands on its own thread, so a stalled link never blocks
+ * the thread producing them. Commands go into a single slot where the
+ * latest one replaces any command not written yet. Sequences which must
+ * reach the car in full, such as the neutral step before reversing, go
+ * into a small ordered queue instead, written before the slot. Probes,
+ * such as link pings, have a slot of their own written last, so they never
+ * replace or delay a command.
+ *
+ * Submitting never blocks and never allocates, commands are copied into
+ * preallocated buffers. A command may carry the capture time of the frame
+ * it answers, so that the profiler times the path up to the actual write.
+ */
+public class CommandWriter {
+    private static final String TAG = "CommandWriter";
+
+    public static final int    MAX_COMMAND_LENGTH = 64;
+    public static final int    ORDERED_CAPACITY = 8;
+
+    /**
+     * Where commands are written, called on the writer thread.
+     */
+    public interface Sink {
+        /**
+         * @return false if the write failed
+         */
+        boolean write(byte[] buffer, int count);
+    }
+
+    private final Sink         mSink;
+    private final Object       mLock = new Object();
+    private volatile StageProfiler mProfiler = StageProfiler.DISABLED;
+
+    // Latest command slot
+    private final byte[]       mSlot = new byte[MAX_COMMAND_LENGTH];
+    private int                mSlotLength = 0;
+    private long               mSlotCaptureNanos = 0;
+    private boolean            mIsSlotFull = false;
+
+    // Latest probe slot
+    private final byte[]       mProbe = new byte[MAX_COMMAND_LENGTH];
+    private int                mProbeLength = 0;
+    private boolean            mIsProbeFull = false;
+
+    // Ordered commands, as a ring of buffers
+    private final byte[][]     mQueue = new byte[ORDERED_CAPACITY][MAX_COMMAND_LENGTH];
+    private final int[]        mQueueLengths = new int[ORDERED_CAPACITY];
+    private final long[]       mQueueCaptureNanos = new long[ORDERED_CAPACITY];
+    private int                mQueueHead = 0;
+    private int                mQueueCount = 0;
+
+    // Command being written, only used by the writer thread
+    private final byte[]       mWriteBuffer = new byte[MAX_COMMAND_LENGTH];
+
+    private volatile boolean   mIsRunning = false;
+    private Thread             mThread;
+
+    // Statistics
+    private final LatencyHistogram mWriteTime = new LatencyHistogram();
+    private volatile long      mSubmitted = 0;
+    private volatile long      mSent = 0;
+    private volatile long      mCoalesced = 0;
+    private volatile long      mDropped = 0;
+    private volatile long      mFailed = 0;
+
+    public CommandWriter(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Record the socket write time of each command, and the end to end time
+     * of those carrying a capture time, into the given profiler.
+     */
+    public void setProfiler(StageProfiler profiler) {
+        mProfiler = (profiler != null) ? profiler : StageProfiler.DISABLED;
+    }
+
+    public synchronized void start() {
+        if (mIsRunning) return;
+
+        mIsRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop the writer, commands not written yet are dropped. Does not wait
+     * for a write in progress, which may be stalled.
+     */
+    public synchronized void stop() {
+        if (!mIsRunning) return;
+
+        synchronized (mLock) {
+            mIsRunning = false;
+            mIsSlotFull = false;
+            mIsProbeFull = false;
+            mQueueCount = 0;
+            mLock.notifyAll();
+        }
+        mThread = null;
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Submit a command which replaces any command not written yet.
+     *
+     * @param command The command bytes, the buffer can be reused as soon as this returns
+     * @return false if the writer is stopped or the command too long
+     */
+    public boolean submit(byte[] command, int count) {
+        return submit(command, count, 0);
+    }
+
+    /**
+     * Submit a command which replaces any command not written yet.
+     *
+     * @param command      The command bytes, the buffer can be reused as soon as this returns
+     * @param captureNanos The capture time of the frame the command answers, 0 if none
+     * @return false if the writer is stopped or the command too long
+     */
+    public boolean submit(byte[] command, int count, long captureNanos) {
+        if (count > MAX_COMMAND_LENGTH) return false;
+
+        synchronized (mLock) {
+            if (!mIsRunning) return false;
+
+            if (mIsSlotFull)
+                mCoalesced++;
+            System.arraycopy(command, 0, mSlot, 0, count);
+            mSlotLength = count;
+            mSlotCaptureNanos = captureNanos;
+            mIsSlotFull = true;
+            mSubmitted++;
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Submit a command which is written after the ordered commands already
+     * submitted, and never merged. It supersedes the command in the slot.
+     *
+     * @param command The command bytes, the buffer can be reused as soon as this returns
+     * @return false if the writer is stopped, the queue full or the command too long
+     */
+    public boolean submitOrdered(byte[] command, int count) {
+        return submitOrdered(command, count, 0);
+    }
+
+    /**
+     * Submit a command which is written after the ordered commands already
+     * submitted, and never merged. It supersedes the command in the slot.
+     *
+     * @param command      The command bytes, the buffer can be reused as soon as this returns
+     * @param captureNanos The capture time of the frame the command answers, 0 if none
+     * @return false if the writer is stopped, the queue full or the command too long
+     */
+    public boolean submitOrdered(byte[] command, int count, long captureNanos) {
+        if (count > MAX_COMMAND_LENGTH) return false;
+
+        synchronized (mLock) {
+            if (!mIsRunning) return false;
+            if (mQueueCount == ORDERED_CAPACITY) {
+                mDropped++;
+                return false;
+            }
+
+            if (mIsSlotFull) {
+                mIsSlotFull = false;
+                mCoalesced++;
+            }
+            int tail = (mQueueHead + mQueueCount) % ORDERED_CAPACITY;
+            System.arraycopy(command, 0, mQueue[tail], 0, count);
+            mQueueLengths[tail] = count;
+            mQueueCaptureNanos[tail] = captureNanos;
+            mQueueCount++;
+            mSubmitted++;
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Submit a probe, written when no command is waiting. It replaces any
+     * probe not written yet and is not counted with the commands.
+     *
+     * @param probe The probe bytes, the buffer can be reused as soon as this returns
+     * @return false if the writer is stopped or the probe too long
+     */
+    public boolean submitProbe(byte[] probe, int count) {
+        if (count > MAX_COMMAND_LENGTH) return false;
+
+        synchronized (mLock) {
+            if (!mIsRunning) return false;
+
+            System.arraycopy(probe, 0, mProbe, 0, count);
+            mProbeLength = count;
+            mIsProbeFull = true;
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    private void runLoop() {
+        while (true) {
+            int count;
+            long captureNanos = 0;
+            boolean isProbe = false;
+            synchronized (mLock) {
+                while (mIsRunning && mQueueCount == 0 && !mIsSlotFull && !mIsProbeFull) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mIsRunning) return;
+
+                // Ordered commands first, the slot holds the latest state
+                if (mQueueCount > 0) {
+                    count = mQueueLengths[mQueueHead];
+                    captureNanos = mQueueCaptureNanos[mQueueHead];
+                    System.arraycopy(mQueue[mQueueHead], 0, mWriteBuffer, 0, count);
+                    mQueueHead = (mQueueHead + 1) % ORDERED_CAPACITY;
+                    mQueueCount--;
+                } else if (mIsSlotFull) {
+                    count = mSlotLength;
+                    captureNanos = mSlotCaptureNanos;
+                    System.arraycopy(mSlot, 0, mWriteBuffer, 0, count);
+                    mIsSlotFull = false;
+                } else {
+                    count = mProbeLength;
+                    System.arraycopy(mProbe, 0, mWriteBuffer, 0, count);
+                    mIsProbeFull = false;
+                    isProbe = true;
+                }
+            }
+
+            long start = System.nanoTime();
+            boolean isWritten = mSink.write(mWriteBuffer, count);
+            if (isProbe) continue;
+            // A failed write is neither sent nor timed
+            if (!isWritten) {
+                mFailed++;
+                continue;
+            }
+
+            long end = System.nanoTime();
+            mWriteTime.record(end - start);
+            mSent++;
+
+            StageProfiler profiler = mProfiler;
+            profiler.record(StageProfiler.SOCKET_WRITE, end - start);
+            if (captureNanos != 0)
+                profiler.record(StageProfiler.END_TO_END, end - captureNanos);
+        }
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted;
+    }
+
+    public long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * Return the number of commands replaced before being written.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * Return the number of ordered commands refused because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Return the number of commands whose write to the sink failed.
+     */
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Return the time taken by each write to the sink.
+     */
+    public LatencyHistogram getWriteTime() {
+        return mWriteTime;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + mSubmitted + " sent=" + mSent + " coalesced=" + mCoalesced + " dropped=" + mDropped
+                + " failed=" + mFailed
+                + String.format(" write p50=%.2f p99=%.2f max=%.2f ms", mWriteTime.getValueAtPercentile(50) / 1e6,
+                        mWriteTime.getValueAtPercentile(99) / 1e6, mWriteTime.getMaxNanos() / 1e6);
+    }
+}
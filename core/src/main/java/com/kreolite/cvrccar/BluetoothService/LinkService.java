@@ -0,0 +1,546 @@
+package com.kreolite.cvrccar.BluetoothService;
+
+import com.kreolite.cvrccar.Pipeline.TripleBuffer;
+import com.kreolite.cvrccar.Profiling.StageProfiler;
+import com.kreolite.cvrccar.Protocol.LinkQuality;
+import com.kreolite.cvrccar.Protocol.PingCodec;
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
+import com.kreolite.cvrccar.Protocol.Telemetry;
+import com.kreolite.cvrccar.Protocol.TelemetryReader;
+import com.kreolite.cvrccar.Recording.SessionRecorder;
+import com.kreolite.cvrccar.Transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Manages the connection to the car over any transport. It has a thread for
+ * connecting, a thread reading telemetry and a writer thread for commands
+ * while connected. A lost or failed connection starts the service over.
+ *
+ * This holds the connection state machine without depending on Android, see
+ * BluetoothService for the Bluetooth serial port.
+ */
+public class LinkService {
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_PAIRED = 1;     // our device is paired
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    /**
+     * Told about the connection, from the service threads while the service
+     * is locked, so it must not block.
+     */
+    public interface Listener {
+        /**
+         * The state changed to one worth showing.
+         */
+        void onStateChange(int state);
+
+        /**
+         * The car reported an obstacle appearing or going away.
+         */
+        void onObstacleChange(boolean isObstacle);
+
+        /**
+         * Something failed, the message is meant for the user.
+         *
+         * @param e The cause, or null
+         */
+        void onFailure(String message, IOException e);
+    }
+
+    private final Listener     mListener;
+    private Transport          mTransport;
+    private ConnectThread      mConnectThread;
+    private ConnectedThread    mConnectedThread;
+    private PingThread         mPingThread;
+    private int                mState = STATE_NONE;
+    // Records every write when set
+    private volatile SessionRecorder mRecorder;
+    private volatile StageProfiler mProfiler = StageProfiler.DISABLED;
+    // Writes commands off the caller thread, one per connection
+    private CommandWriter      mWriter;
+    private CommandWriter      mLastWriter;
+    // Sequence number of the next binary command frame, set as it is sent
+    private int                mFrameSequence = 0;
+    // Latest telemetry from the car, one reader per connection
+    private final TripleBuffer<Telemetry> mTelemetry =
+            new TripleBuffer<>(new Telemetry(), new Telemetry(), new Telemetry());
+    private volatile TelemetryReader mTelemetryReader;
+    // Round trip measured with pings, none are sent when the interval is 0
+    private final LinkQuality  mLinkQuality = new LinkQuality();
+    private volatile int       mPingIntervalMillis = 0;
+    private int                mPingSequence = 0;
+
+    public LinkService(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the transport reaching the car, or null when there is none.
+     */
+    public synchronized void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    public synchronized Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Set the time between pings measuring the link round trip, the car must
+     * echo them. Takes effect on the next connection.
+     *
+     * @param intervalMillis The interval, 0 sends no pings
+     */
+    public void setPingIntervalMillis(int intervalMillis) {
+        mPingIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Return the link round trip and loss, measured while pings are sent.
+     */
+    public LinkQuality getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    /**
+     * Set the current state of the connection.
+     *
+     * @param isStateSent Tell the listener about it
+     */
+    protected synchronized void setState(int state, boolean isStateSent) {
+        mState = state;
+
+        if (isStateSent)
+            mListener.onStateChange(state);
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Record the bytes written to the device, or stop recording them if null.
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * Profile the writes of the next connections, their socket write and
+     * end to end times are recorded on the writer thread.
+     */
+    public void setProfiler(StageProfiler profiler) {
+        mProfiler = (profiler != null) ? profiler : StageProfiler.DISABLED;
+    }
+
+    /**
+     * Start the service, it is paired when it has a transport.
+     */
+    public synchronized void start() {
+        cancelThreads();
+
+        if (mState == STATE_NONE && mTransport != null)
+            setState(STATE_PAIRED, true);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection through the transport.
+     */
+    public synchronized void connect() {
+        // Cancel any thread attempting to make a connection
+        if (mState == STATE_CONNECTING) {
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+        }
+        cancelConnection();
+        if (mTransport == null) return;
+
+        Transport.Link link;
+        try {
+            link = mTransport.createLink();
+        } catch (IOException e) {
+            connectionFailed(e);
+            return;
+        }
+
+        // Start the thread to connect with the given device
+        mConnectThread = new ConnectThread(link);
+        mConnectThread.start();
+        setState(STATE_CONNECTING, true);
+    }
+
+    /**
+     * Start the ConnectedThread and the writer to begin managing a connection.
+     *
+     * @param link The link on which the connection was made
+     */
+    private synchronized void connected(Transport.Link link) {
+        cancelThreads();
+
+        // Start the thread to manage the connection and perform transmissions
+        final ConnectedThread connectedThread = new ConnectedThread(link);
+        mConnectedThread = connectedThread;
+        mWriter = new CommandWriter(new CommandWriter.Sink() {
+            @Override
+            public boolean write(byte[] buffer, int count) {
+                return writeCommand(connectedThread, buffer, count);
+            }
+        });
+        mWriter.setProfiler(mProfiler);
+        // Connected before the threads run, they stop when it changes
+        setState(STATE_CONNECTED, true);
+        mConnectedThread.start();
+        mWriter.start();
+        if (mPingIntervalMillis > 0) {
+            mPingThread = new PingThread(mWriter, mPingIntervalMillis);
+            mPingThread.start();
+        }
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        cancelThreads();
+        setState(STATE_NONE, false);
+    }
+
+    private void cancelThreads() {
+        // Cancel any thread attempting to make a connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+        cancelConnection();
+    }
+
+    private void cancelConnection() {
+        // Cancel any thread currently running a connection
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+        }
+        if (mPingThread != null) {
+            mPingThread.interrupt();
+            mPingThread = null;
+        }
+        if (mWriter != null) {
+            mWriter.stop();
+            mLastWriter = mWriter;
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Write a command to the device without waiting, it replaces any command
+     * not written yet.
+     *
+     * @param out   The bytes to write, the buffer can be reused as soon as this returns
+     * @param count The number of bytes to write from the start of the buffer
+     * @return false if not connected
+     */
+    public boolean write(byte[] out, int count) {
+        return write(out, count, 0);
+    }
+
+    /**
+     * Write a command to the device without waiting, it replaces any command
+     * not written yet.
+     *
+     * @param out          The bytes to write, the buffer can be reused as soon as this returns
+     * @param count        The number of bytes to write from the start of the buffer
+     * @param captureNanos The capture time of the frame the command answers, 0 if none
+     * @return false if not connected
+     */
+    public boolean write(byte[] out, int count, long captureNanos) {
+        CommandWriter writer;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mWriter == null) return false;
+            writer = mWriter;
+        }
+        return writer.submit(out, count, captureNanos);
+    }
+
+    /**
+     * Write a command to the device without waiting, after the ordered
+     * commands already written and without being merged with others.
+     *
+     * @param out   The bytes to write, the buffer can be reused as soon as this returns
+     * @param count The number of bytes to write from the start of the buffer
+     * @return false if not connected or too many commands are waiting
+     */
+    public boolean writeOrdered(byte[] out, int count) {
+        return writeOrdered(out, count, 0);
+    }
+
+    /**
+     * Write a command to the device without waiting, after the ordered
+     * commands already written and without being merged with others.
+     *
+     * @param out          The bytes to write, the buffer can be reused as soon as this returns
+     * @param count        The number of bytes to write from the start of the buffer
+     * @param captureNanos The capture time of the frame the command answers, 0 if none
+     * @return false if not connected or too many commands are waiting
+     */
+    public boolean writeOrdered(byte[] out, int count, long captureNanos) {
+        CommandWriter writer;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mWriter == null) return false;
+            writer = mWriter;
+        }
+        return writer.submitOrdered(out, count, captureNanos);
+    }
+
+    /**
+     * Return the writer of the current connection, or of the last one.
+     */
+    public synchronized CommandWriter getWriter() {
+        return (mWriter != null) ? mWriter : mLastWriter;
+    }
+
+    /**
+     * Return the channel publishing the latest telemetry from the car, it
+     * must be read from a single thread.
+     */
+    public TripleBuffer<Telemetry> getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Return the reader of the current or last connection, for its statistics.
+     */
+    public TelemetryReader getTelemetryReader() {
+        return mTelemetryReader;
+    }
+
+    /**
+     * Write a command on the writer thread. Binary frames are numbered here,
+     * so commands merged before being sent leave no gap in the sequence.
+     * Pings get their time here too, so it does not include the wait.
+     *
+     * @return false if the write failed
+     */
+    private boolean writeCommand(ConnectedThread connectedThread, byte[] buffer, int count) {
+        if (PingCodec.isPing(buffer, 0, count)) {
+            PingCodec.stamp(buffer, 0, mPingSequence, LinkQuality.toPingTime(System.nanoTime()));
+            mPingSequence = (mPingSequence + 1) & PingCodec.SEQUENCE_MASK;
+            mLinkQuality.onPingSent();
+            return connectedThread.write(buffer, count);
+        }
+        if (PwmFrameCodec.isFrame(buffer, 0, count)) {
+            PwmFrameCodec.setSequence(buffer, 0, mFrameSequence);
+            mFrameSequence = (mFrameSequence + 1) & 0xFF;
+        }
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.recordCommand(System.nanoTime(), buffer, count);
+        return connectedThread.write(buffer, count);
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     */
+    private void connectionFailed(IOException e) {
+        mListener.onFailure("Unable to connect device!", e);
+        setState(STATE_PAIRED, false);
+
+        // Start the service over
+        start();
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the listener.
+     */
+    private void connectionLost(IOException e) {
+        mListener.onFailure("Device connection was lost!", e);
+        setState(STATE_PAIRED, false);
+
+        // Start the service over
+        start();
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread extends Thread {
+        private final Transport.Link mmLink;
+
+        public ConnectThread(Transport.Link link) {
+            super("ConnectThread");
+            mmLink = link;
+        }
+
+        public void run() {
+            // Make a connection, this is a blocking call and will only
+            // return on a successful connection or an exception
+            try {
+                mmLink.connect();
+            } catch (IOException e) {
+                cancel();
+                synchronized (LinkService.this) {
+                    // Cancelled attempts are not failures
+                    if (mConnectThread != this) return;
+                    mConnectThread = null;
+                    connectionFailed(e);
+                }
+                return;
+            }
+
+            synchronized (LinkService.this) {
+                if (mConnectThread != this) {
+                    cancel();
+                    return;
+                }
+                // Reset the ConnectThread because we're done
+                mConnectThread = null;
+
+                // Start the connected thread
+                connected(mmLink);
+            }
+        }
+
+        public void cancel() {
+            try {
+                mmLink.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It handles all incoming and outgoing transmissions.
+     */
+    private class ConnectedThread extends Thread {
+        private final Transport.Link mmLink;
+        private final TelemetryReader mmReader = new TelemetryReader();
+        private InputStream mmInStream;
+        private OutputStream mmOutStream;
+
+        public ConnectedThread(Transport.Link link) {
+            super("ConnectedThread");
+            mmLink = link;
+            mmReader.setLinkQuality(mLinkQuality);
+            mTelemetryReader = mmReader;
+        }
+
+        public void run() {
+            int obstacle = -1;
+            try {
+                mmInStream = mmLink.getInputStream();
+                mmOutStream = mmLink.getOutputStream();
+            } catch (IOException e) {
+                lost(e);
+                return;
+            }
+
+            // Keep listening to the InputStream while connected
+            while (isCurrent()) {
+                try {
+                    // Read whatever is available, then parse the complete messages
+                    if (mmReader.readFrom(mmInStream) < 0)
+                        throw new IOException("end of stream");
+
+                    long now = System.nanoTime();
+                    while (mmReader.next(now, mTelemetry.getWriteBuffer())) {
+                        boolean isObstacle = mTelemetry.getWriteBuffer().isObstacle();
+                        mTelemetry.publish();
+
+                        // Only tell the listener when the obstacle changes
+                        if ((isObstacle ? 1 : 0) != obstacle) {
+                            obstacle = isObstacle ? 1 : 0;
+                            mListener.onObstacleChange(isObstacle);
+                        }
+                    }
+                } catch (IOException e) {
+                    lost(e);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Write the start of a buffer to the connected OutStream.
+         *
+         * @param buffer The bytes to write
+         * @param count  The number of bytes to write
+         * @return false if the write failed, the connection is then lost
+         */
+        public boolean write(byte[] buffer, int count) {
+            OutputStream out = mmOutStream;
+            try {
+                if (out == null) out = mmLink.getOutputStream();
+                out.write(buffer, 0, count);
+                return true;
+            } catch (IOException e) {
+                lost(e);
+                return false;
+            }
+        }
+
+        public void cancel() {
+            try {
+                mmLink.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+
+        private boolean isCurrent() {
+            synchronized (LinkService.this) {
+                return mConnectedThread == this && mState == STATE_CONNECTED;
+            }
+        }
+
+        /**
+         * Report the connection lost, unless it was closed on purpose or
+         * already reported by the other thread.
+         */
+        private void lost(IOException e) {
+            synchronized (LinkService.this) {
+                if (mConnectedThread != this) return;
+                connectionLost(e);
+            }
+        }
+    }
+
+    /**
+     * This thread runs during a connection when pings are enabled, it
+     * submits a ping to the writer at a fixed interval.
+     */
+    private static class PingThread extends Thread {
+        private final CommandWriter mmWriter;
+        private final int      mmIntervalMillis;
+        private final byte[]   mmPing = new byte[PingCodec.FRAME_SIZE];
+
+        public PingThread(CommandWriter writer, int intervalMillis) {
+            super("PingThread");
+            mmWriter = writer;
+            mmIntervalMillis = intervalMillis;
+            // Sequence and time are set as it is sent
+            PingCodec.encode(0, 0, mmPing, 0);
+        }
+
+        public void run() {
+            try {
+                while (mmWriter.submitProbe(mmPing, mmPing.length))
+                    Thread.sleep(mmIntervalMillis);
+            } catch (InterruptedException e) {
+                // Connection closed
+            }
+        }
+    }
+}
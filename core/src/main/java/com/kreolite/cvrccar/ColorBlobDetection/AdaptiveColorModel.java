@@ -0,0 +1,270 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * Follows slow lighting changes of the selected color. Pixels sampled in
+ * the core of the locked blob feed running hue, saturation and value
+ * histograms, and the color moves toward their medians. Pixels too far
+ * from the current color are ignored, frames with too few matching pixels
+ * are skipped, the color moves a little at a time and never further than
+ * the color radius from the touched color, so it cannot drift onto the
+ * background. Sampling only costs the blob pixels and never allocates.
+ *
+ * Call beginFrame, add the blob pixels, then endFrame.
+ */
+public class AdaptiveColorModel {
+    private static final int   BINS = 256;
+    // Hue histogram is centered on the touched hue, so the range never wraps
+    private static final int   HUE_OFFSET = BINS / 2;
+
+    // Weight of the previous frames in the running histograms
+    private static final float DECAY = 0.9f;
+    // Only the central part of the blob is sampled, its edges mix with the background
+    private static final double CORE_RADIUS_FACTOR = 0.7;
+    private static final int   MAX_SAMPLE_ROWS = 32;
+    // Pixels further than this times the color radius from the current color are not counted
+    private static final double GATE_FACTOR = 1.5;
+    // A frame is used if enough pixels, and most of them, match the current color
+    private static final int   MIN_SAMPLES = 20;
+    private static final double MIN_INLIER_FRACTION = 0.5;
+    // Largest color change per frame, for hue, saturation and value
+    private static final double[] MAX_STEP = {1, 3, 3};
+    // Largest distance from the touched color, as a fraction of the color radius
+    private static final double MAX_DRIFT_FACTOR = 1.0;
+    // Changes smaller than this are not applied, to limit table rebuilds
+    private static final double[] APPLY_THRESHOLD = {1, 4, 4};
+    private static final int   MIN_APPLY_INTERVAL = 10;
+
+    private final double[]     mAnchor = new double[3];
+    private final double[]     mRadius = new double[3];
+    private final double[]     mColor = new double[4];
+    private final double[]     mAppliedColor = new double[3];
+    private boolean            mIsEnabled = false;
+
+    private final int[]        mFrameHue = new int[BINS];
+    private final int[]        mFrameSaturation = new int[BINS];
+    private final int[]        mFrameValue = new int[BINS];
+    private final float[]      mHue = new float[BINS];
+    private final float[]      mSaturation = new float[BINS];
+    private final float[]      mValue = new float[BINS];
+    private int                mSamples;
+    private int                mInliers;
+    private int                mFramesSinceApply;
+    private byte[]             mRowBuffer = new byte[0];
+
+    // Statistics
+    private long               mUsedFrames;
+    private long               mRejectedFrames;
+    private long               mApplied;
+
+    /**
+     * Start again from a touched color.
+     *
+     * @param hsvColor The H, S and V values of the color
+     * @param radius   The H, S and V radius around the color
+     */
+    public void reset(double[] hsvColor, double[] radius) {
+        for (int i = 0; i < 3; i++) {
+            mAnchor[i] = hsvColor[i];
+            mColor[i] = hsvColor[i];
+            mAppliedColor[i] = hsvColor[i];
+            mRadius[i] = radius[i];
+        }
+        mColor[3] = (hsvColor.length > 3) ? hsvColor[3] : 0;
+        for (int i = 0; i < BINS; i++) {
+            mHue[i] = 0;
+            mSaturation[i] = 0;
+            mValue[i] = 0;
+        }
+        mFramesSinceApply = 0;
+        mIsEnabled = true;
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    public void beginFrame() {
+        for (int i = 0; i < BINS; i++) {
+            mFrameHue[i] = 0;
+            mFrameSaturation[i] = 0;
+            mFrameValue[i] = 0;
+        }
+        mSamples = 0;
+        mInliers = 0;
+    }
+
+    /**
+     * Add a run of contiguous pixels.
+     *
+     * @param pixels     The pixel bytes, R G B first
+     * @param offset     The byte offset of the first pixel
+     * @param channels   The number of bytes per pixel, 3 or 4
+     * @param pixelCount The number of pixels to add
+     */
+    public void addPixels(byte[] pixels, int offset, int channels, int pixelCount) {
+        int anchorHue = (int) Math.round(mAnchor[0]);
+        double hueGate = GATE_FACTOR * mRadius[0];
+        double saturationGate = GATE_FACTOR * mRadius[1];
+        double valueGate = GATE_FACTOR * mRadius[2];
+
+        for (int i = 0, p = offset; i < pixelCount; i++, p += channels) {
+            int hsv = ColorLookupTable.rgbToHsv(pixels[p] & 0xFF, pixels[p + 1] & 0xFF, pixels[p + 2] & 0xFF);
+            int hueBin = ((hsv >> 16) - anchorHue + HUE_OFFSET + BINS) & (BINS - 1);
+            int s = (hsv >> 8) & 0xFF;
+            int v = hsv & 0xFF;
+            mSamples++;
+
+            if (Math.abs(hueBin - HUE_OFFSET - (mColor[0] - mAnchor[0])) > hueGate
+                    || Math.abs(s - mColor[1]) > saturationGate || Math.abs(v - mColor[2]) > valueGate)
+                continue;
+            mInliers++;
+            mFrameHue[hueBin]++;
+            mFrameSaturation[s]++;
+            mFrameValue[v]++;
+        }
+    }
+
+    /**
+     * Source of frame rows, for frames which are not in a byte array.
+     */
+    public interface RowSource {
+        /**
+         * Copy RGBA pixels of a row to the start of a buffer.
+         */
+        void readRow(int y, int left, int count, byte[] rgba);
+    }
+
+    /**
+     * Add the pixels in the core of a blob, sampling a bounded number of rows.
+     *
+     * @param rgba The RGBA frame
+     */
+    public void addBlob(byte[] rgba, int width, int height, double centerX, double centerY, double radius) {
+        addBlob(null, rgba, width, height, centerX, centerY, radius);
+    }
+
+    /**
+     * Add the pixels in the core of a blob, reading only the sampled rows.
+     */
+    public void addBlob(RowSource rows, int width, int height, double centerX, double centerY, double radius) {
+        if (mRowBuffer.length < width * 4)
+            mRowBuffer = new byte[width * 4];
+        addBlob(rows, null, width, height, centerX, centerY, radius);
+    }
+
+    private void addBlob(RowSource rows, byte[] rgba, int width, int height,
+                         double centerX, double centerY, double radius) {
+        double core = CORE_RADIUS_FACTOR * radius;
+        int top = Math.max(0, (int) Math.ceil(centerY - core));
+        int bottom = Math.min(height - 1, (int) Math.floor(centerY + core));
+        int step = Math.max(1, (bottom - top + 1) / MAX_SAMPLE_ROWS);
+
+        for (int y = top; y <= bottom; y += step) {
+            double dy = y - centerY;
+            double halfWidth = Math.sqrt(Math.max(0, core * core - dy * dy));
+            int left = Math.max(0, (int) Math.ceil(centerX - halfWidth));
+            int right = Math.min(width - 1, (int) Math.floor(centerX + halfWidth));
+            if (right < left) continue;
+
+            if (rows == null) {
+                addPixels(rgba, (y * width + left) * 4, 4, right - left + 1);
+            } else {
+                rows.readRow(y, left, right - left + 1, mRowBuffer);
+                addPixels(mRowBuffer, 0, 4, right - left + 1);
+            }
+        }
+    }
+
+    /**
+     * Merge the frame pixels into the running histograms and move the color.
+     *
+     * @return true if the color moved enough to be applied to the detector
+     */
+    public boolean endFrame() {
+        if (!mIsEnabled) return false;
+
+        mFramesSinceApply++;
+        if (mInliers < MIN_SAMPLES || mInliers < MIN_INLIER_FRACTION * mSamples) {
+            // Occluded, blurred or mixed with the background
+            mRejectedFrames++;
+            return false;
+        }
+        mUsedFrames++;
+
+        for (int i = 0; i < BINS; i++) {
+            mHue[i] = DECAY * mHue[i] + mFrameHue[i];
+            mSaturation[i] = DECAY * mSaturation[i] + mFrameSaturation[i];
+            mValue[i] = DECAY * mValue[i] + mFrameValue[i];
+        }
+
+        moveToward(0, mAnchor[0] + median(mHue) - HUE_OFFSET);
+        moveToward(1, median(mSaturation));
+        moveToward(2, median(mValue));
+
+        if (mFramesSinceApply < MIN_APPLY_INTERVAL) return false;
+        boolean isChanged = false;
+        for (int i = 0; i < 3; i++) {
+            if (Math.abs(mColor[i] - mAppliedColor[i]) >= APPLY_THRESHOLD[i])
+                isChanged = true;
+        }
+        if (!isChanged) return false;
+
+        for (int i = 0; i < 3; i++)
+            mAppliedColor[i] = mColor[i];
+        mFramesSinceApply = 0;
+        mApplied++;
+        return true;
+    }
+
+    /**
+     * Return the current color as H, S, V and alpha values, hue may be out
+     * of 0-255 and wraps around.
+     */
+    public double[] getHsvColor() {
+        return mColor;
+    }
+
+    public long getUsedFrames() {
+        return mUsedFrames;
+    }
+
+    public long getRejectedFrames() {
+        return mRejectedFrames;
+    }
+
+    /**
+     * Return the number of times the color was applied to the detector.
+     */
+    public long getAppliedCount() {
+        return mApplied;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("color=(%.1f, %.1f, %.1f) touched=(%.1f, %.1f, %.1f)",
+                mColor[0], mColor[1], mColor[2], mAnchor[0], mAnchor[1], mAnchor[2])
+                + " used=" + mUsedFrames + " rejected=" + mRejectedFrames + " applied=" + mApplied;
+    }
+
+    private void moveToward(int channel, double target) {
+        double step = Math.max(-MAX_STEP[channel], Math.min(MAX_STEP[channel], target - mColor[channel]));
+        double drift = MAX_DRIFT_FACTOR * mRadius[channel];
+        double color = Math.max(mAnchor[channel] - drift, Math.min(mAnchor[channel] + drift, mColor[channel] + step));
+        // Saturation and value stay within their range, hue wraps around
+        mColor[channel] = (channel == 0) ? color : Math.max(0, Math.min(255, color));
+    }
+
+    private static int median(float[] histogram) {
+        float total = 0;
+        for (float count : histogram)
+            total += count;
+
+        float half = total / 2;
+        float sum = 0;
+        for (int i = 0; i < BINS; i++) {
+            sum += histogram[i];
+            if (sum >= half) return i;
+        }
+        return BINS - 1;
+    }
+}
@@ -0,0 +1,68 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * A color blob detection engine. The activity only talks to engines
+ * through this interface, so they can be switched at runtime.
+ *
+ * After each detect, the caller tells the engine which blob it follows with
+ * setTrackedTarget, or clearTrackedTarget when there is none, so engines
+ * able to track can restrict the next search around it.
+ *
+ * @param <F> The frame type the engine works on
+ */
+public interface BlobDetector<F> {
+    /**
+     * Set the H, S and V radius around the color.
+     */
+    void setColorRadius(double[] radius);
+
+    /**
+     * Select a new color, dropping the tracked target.
+     *
+     * @param hsvColor The H, S and V values of the color
+     */
+    void setHsvColor(double[] hsvColor);
+
+    /**
+     * Follow a small change of the color, keeping the tracked target.
+     *
+     * @param hsvColor The H, S and V values of the color
+     */
+    void adaptHsvColor(double[] hsvColor);
+
+    void detect(F frame);
+
+    /**
+     * Return the blobs found by the last detect, in full frame coordinates.
+     */
+    BlobStats getBlobs();
+
+    /**
+     * Follow a blob found by the last detect.
+     *
+     * @param x      The blob center in full frame coordinates
+     * @param y      The blob center in full frame coordinates
+     * @param radius The blob radius in full frame pixels
+     */
+    void setTrackedTarget(double x, double y, double radius);
+
+    void clearTrackedTarget();
+
+    /**
+     * Return true if the last detect only searched a window of the frame.
+     */
+    boolean hasSearchWindow();
+
+    int getSearchWindowX();
+
+    int getSearchWindowY();
+
+    int getSearchWindowWidth();
+
+    int getSearchWindowHeight();
+
+    /**
+     * Free the engine threads and native memory.
+     */
+    void release();
+}
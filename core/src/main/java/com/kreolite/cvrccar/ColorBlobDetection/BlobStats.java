@@ -0,0 +1,189 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-blob statistics stored in preallocated primitive arrays, so that a
+ * detector can refill them every frame without allocating.
+ */
+public class BlobStats {
+    // Maximum number of blobs kept per frame, the smallest ones are dropped
+    public static final int    MAX_BLOBS = 32;
+    // Serialized size of the count and of each blob
+    private static final int   COUNT_BYTES = 4;
+    private static final int   BLOB_BYTES = 5 * 8 + 4 * 4;
+
+    private int                mCount = 0;
+    private final double[]     mArea = new double[MAX_BLOBS];
+    private final double[]     mCenterX = new double[MAX_BLOBS];
+    private final double[]     mCenterY = new double[MAX_BLOBS];
+    private final double[]     mRadius = new double[MAX_BLOBS];
+    private final double[]     mCircularity = new double[MAX_BLOBS];
+    private final int[]        mLeft = new int[MAX_BLOBS];
+    private final int[]        mTop = new int[MAX_BLOBS];
+    private final int[]        mRight = new int[MAX_BLOBS];
+    private final int[]        mBottom = new int[MAX_BLOBS];
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the blob area in full frame pixels.
+     */
+    public double getArea(int i) {
+        return mArea[i];
+    }
+
+    public double getCenterX(int i) {
+        return mCenterX[i];
+    }
+
+    public double getCenterY(int i) {
+        return mCenterY[i];
+    }
+
+    /**
+     * Return the radius of the circle having the same area as the blob.
+     */
+    public double getRadius(int i) {
+        return mRadius[i];
+    }
+
+    /**
+     * Return 4*pi*area/perimeter^2, 1 for a disc and close to 0 for a line.
+     */
+    public double getCircularity(int i) {
+        return mCircularity[i];
+    }
+
+    public int getLeft(int i) {
+        return mLeft[i];
+    }
+
+    public int getTop(int i) {
+        return mTop[i];
+    }
+
+    public int getRight(int i) {
+        return mRight[i];
+    }
+
+    public int getBottom(int i) {
+        return mBottom[i];
+    }
+
+    /**
+     * Return the largest blob whose radius is above a minimum, so the same
+     * target is picked whatever the blob order.
+     *
+     * @param minRadius The minimum equivalent radius
+     * @return The blob index, or -1 if no blob is large enough
+     */
+    public int findLargest(double minRadius) {
+        int largest = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (mRadius[i] > minRadius && (largest < 0 || mArea[i] > mArea[largest]))
+                largest = i;
+        }
+        return largest;
+    }
+
+    /**
+     * Copy all blobs of another record, without allocating.
+     */
+    public void copyFrom(BlobStats other) {
+        mCount = other.mCount;
+        System.arraycopy(other.mArea, 0, mArea, 0, mCount);
+        System.arraycopy(other.mCenterX, 0, mCenterX, 0, mCount);
+        System.arraycopy(other.mCenterY, 0, mCenterY, 0, mCount);
+        System.arraycopy(other.mRadius, 0, mRadius, 0, mCount);
+        System.arraycopy(other.mCircularity, 0, mCircularity, 0, mCount);
+        System.arraycopy(other.mLeft, 0, mLeft, 0, mCount);
+        System.arraycopy(other.mTop, 0, mTop, 0, mCount);
+        System.arraycopy(other.mRight, 0, mRight, 0, mCount);
+        System.arraycopy(other.mBottom, 0, mBottom, 0, mCount);
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Return the number of bytes written by writeTo.
+     */
+    public int getSerializedSize() {
+        return COUNT_BYTES + mCount * BLOB_BYTES;
+    }
+
+    /**
+     * Write all blobs at the buffer position, without allocating.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            buffer.putDouble(mArea[i]);
+            buffer.putDouble(mCenterX[i]);
+            buffer.putDouble(mCenterY[i]);
+            buffer.putDouble(mRadius[i]);
+            buffer.putDouble(mCircularity[i]);
+            buffer.putInt(mLeft[i]);
+            buffer.putInt(mTop[i]);
+            buffer.putInt(mRight[i]);
+            buffer.putInt(mBottom[i]);
+        }
+    }
+
+    /**
+     * Replace all blobs by the ones written by writeTo at the buffer position.
+     */
+    public void readFrom(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_BLOBS)
+            throw new IllegalArgumentException("Invalid blob count " + count);
+
+        mCount = count;
+        for (int i = 0; i < mCount; i++) {
+            mArea[i] = buffer.getDouble();
+            mCenterX[i] = buffer.getDouble();
+            mCenterY[i] = buffer.getDouble();
+            mRadius[i] = buffer.getDouble();
+            mCircularity[i] = buffer.getDouble();
+            mLeft[i] = buffer.getInt();
+            mTop[i] = buffer.getInt();
+            mRight[i] = buffer.getInt();
+            mBottom[i] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Add a blob. When full, the new blob replaces the smallest one if it is larger.
+     *
+     * @return The index the blob was stored at, or -1 when it was dropped
+     */
+    int add(double area, double centerX, double centerY, int left, int top, int right, int bottom,
+             double perimeter) {
+        int i = mCount;
+        if (mCount == MAX_BLOBS) {
+            i = 0;
+            for (int j = 1; j < MAX_BLOBS; j++) {
+                if (mArea[j] < mArea[i])
+                    i = j;
+            }
+            if (mArea[i] >= area) return -1;
+        } else {
+            mCount++;
+        }
+
+        mArea[i] = area;
+        mCenterX[i] = centerX;
+        mCenterY[i] = centerY;
+        mRadius[i] = Math.sqrt(area / Math.PI);
+        mCircularity[i] = (perimeter > 0) ? Math.min(1, 4 * Math.PI * area / (perimeter * perimeter)) : 0;
+        mLeft[i] = left;
+        mTop[i] = top;
+        mRight[i] = right;
+        mBottom[i] = bottom;
+        return i;
+    }
+}
@@ -0,0 +1,256 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * Follows blobs across frames and gives each one a stable ID, so the car
+ * stays locked on the same target when several objects have its color.
+ * Blobs are associated to the predicted track positions by gated greedy
+ * nearest neighbour. Only the largest blobs are considered and the number
+ * of tracks is bounded, so an update runs in bounded time whatever the mask.
+ */
+public class BlobTracker {
+    public static final int    MAX_TRACKS = 8;
+    // Largest blobs considered each frame
+    public static final int    MAX_CANDIDATES = 8;
+
+    // A blob further than this from a track prediction is not associated to it
+    private static final double GATE_RADIUS_FACTOR = 2.0;
+    private static final double GATE_MIN_DISTANCE = 24;
+    // Tracks not seen for this long are dropped
+    private static final double MAX_COAST_MS = 500;
+    // Detections needed before a track is preferred for a lock
+    private static final int    CONFIRM_HITS = 2;
+
+    private static class Track {
+        final TargetPredictor  mPredictor = new TargetPredictor();
+        boolean                mIsActive;
+        int                    mId;
+        double                 mRadius;
+        int                    mHits;
+        long                   mLastSeenNanos;
+        // Blob matched in the current frame, or -1
+        int                    mBlob;
+
+        Track() {
+            mPredictor.setLeadTimeMs(0);
+            mPredictor.setMaxCoastMs(MAX_COAST_MS);
+        }
+    }
+
+    private final Track[]      mTracks = new Track[MAX_TRACKS];
+    private final int[]        mCandidates = new int[MAX_CANDIDATES];
+    private final boolean[]    mIsCandidateAssigned = new boolean[MAX_CANDIDATES];
+    private int                mCandidateCount = 0;
+    private int                mNextId = 1;
+    private int                mLockedId = -1;
+
+    public BlobTracker() {
+        for (int i = 0; i < MAX_TRACKS; i++)
+            mTracks[i] = new Track();
+    }
+
+    public void reset() {
+        for (Track track : mTracks) {
+            track.mIsActive = false;
+            track.mPredictor.reset();
+        }
+        mLockedId = -1;
+    }
+
+    /**
+     * Associate the blobs of a new frame to the tracks, and keep the lock on
+     * the same track if it is still alive.
+     *
+     * @param blobs     The blobs of the frame
+     * @param timeNanos The System.nanoTime() at which the frame was captured
+     * @param minRadius Blobs not larger than this are ignored
+     */
+    public void update(BlobStats blobs, long timeNanos, double minRadius) {
+        selectCandidates(blobs, minRadius);
+
+        // Predict every track at the frame time, dropping the stale ones
+        for (Track track : mTracks) {
+            track.mBlob = -1;
+            if (track.mIsActive && !track.mPredictor.predict(timeNanos))
+                track.mIsActive = false;
+        }
+
+        associate(blobs);
+
+        // Update the matched tracks, start new tracks for unmatched blobs
+        for (Track track : mTracks) {
+            if (!track.mIsActive || track.mBlob < 0) continue;
+
+            track.mPredictor.update(timeNanos, blobs.getCenterX(track.mBlob), blobs.getCenterY(track.mBlob));
+            track.mRadius = blobs.getRadius(track.mBlob);
+            track.mLastSeenNanos = timeNanos;
+            track.mHits++;
+        }
+        for (int c = 0; c < mCandidateCount; c++) {
+            if (!mIsCandidateAssigned[c])
+                startTrack(blobs, mCandidates[c], timeNanos);
+        }
+
+        updateLock();
+    }
+
+    /**
+     * Return the ID of the locked track, or -1.
+     */
+    public int getLockedId() {
+        return mLockedId;
+    }
+
+    /**
+     * Return the blob of the locked track in the last frame, or -1 if the
+     * locked track was not seen in it.
+     */
+    public int getLockedBlob() {
+        Track track = findTrack(mLockedId);
+        return (track != null) ? track.mBlob : -1;
+    }
+
+    /**
+     * Lock on a track, as long as it stays alive.
+     *
+     * @return false if there is no such track
+     */
+    public boolean lock(int id) {
+        if (findTrack(id) == null) return false;
+
+        mLockedId = id;
+        return true;
+    }
+
+    /**
+     * Release the lock, the next update locks on the largest track.
+     */
+    public void unlock() {
+        mLockedId = -1;
+    }
+
+    public int getTrackCount() {
+        int count = 0;
+        for (Track track : mTracks) {
+            if (track.mIsActive) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Return the ID of the track matched to a blob in the last frame, or -1.
+     */
+    public int getBlobTrackId(int blob) {
+        for (Track track : mTracks) {
+            if (track.mIsActive && track.mBlob == blob) return track.mId;
+        }
+        return -1;
+    }
+
+    /**
+     * Keep the largest blobs above the minimum radius, largest first.
+     */
+    private void selectCandidates(BlobStats blobs, double minRadius) {
+        mCandidateCount = 0;
+        for (int i = 0, n = blobs.getCount(); i < n; i++) {
+            if (blobs.getRadius(i) <= minRadius) continue;
+
+            int pos = mCandidateCount;
+            if (pos == MAX_CANDIDATES) {
+                if (blobs.getArea(i) <= blobs.getArea(mCandidates[pos - 1])) continue;
+                pos--;
+            } else {
+                mCandidateCount++;
+            }
+            while (pos > 0 && blobs.getArea(mCandidates[pos - 1]) < blobs.getArea(i)) {
+                mCandidates[pos] = mCandidates[pos - 1];
+                pos--;
+            }
+            mCandidates[pos] = i;
+        }
+        for (int c = 0; c < MAX_CANDIDATES; c++)
+            mIsCandidateAssigned[c] = false;
+    }
+
+    /**
+     * Match tracks and candidates by increasing distance, within each track gate.
+     */
+    private void associate(BlobStats blobs) {
+        while (true) {
+            Track bestTrack = null;
+            int bestCandidate = -1;
+            double bestDistance = Double.MAX_VALUE;
+
+            for (Track track : mTracks) {
+                if (!track.mIsActive || track.mBlob >= 0) continue;
+
+                double gate = Math.max(GATE_MIN_DISTANCE, GATE_RADIUS_FACTOR * track.mRadius);
+                for (int c = 0; c < mCandidateCount; c++) {
+                    if (mIsCandidateAssigned[c]) continue;
+
+                    int blob = mCandidates[c];
+                    double dx = blobs.getCenterX(blob) - track.mPredictor.getPredictedX();
+                    double dy = blobs.getCenterY(blob) - track.mPredictor.getPredictedY();
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance < gate && distance < bestDistance) {
+                        bestDistance = distance;
+                        bestTrack = track;
+                        bestCandidate = c;
+                    }
+                }
+            }
+
+            if (bestTrack == null) return;
+            bestTrack.mBlob = mCandidates[bestCandidate];
+            mIsCandidateAssigned[bestCandidate] = true;
+        }
+    }
+
+    private void startTrack(BlobStats blobs, int blob, long timeNanos) {
+        // Use a free slot, or replace the track not seen for the longest time, never the locked one
+        Track slot = null;
+        for (Track track : mTracks) {
+            if (!track.mIsActive) {
+                slot = track;
+                break;
+            }
+            if (track.mId != mLockedId && track.mBlob < 0
+                    && (slot == null || track.mLastSeenNanos < slot.mLastSeenNanos))
+                slot = track;
+        }
+        if (slot == null) return;
+
+        slot.mIsActive = true;
+        slot.mId = mNextId++;
+        slot.mPredictor.reset();
+        slot.mPredictor.update(timeNanos, blobs.getCenterX(blob), blobs.getCenterY(blob));
+        slot.mRadius = blobs.getRadius(blob);
+        slot.mHits = 1;
+        slot.mLastSeenNanos = timeNanos;
+        slot.mBlob = blob;
+    }
+
+    private void updateLock() {
+        if (findTrack(mLockedId) != null) return;
+
+        // Lock on the largest track seen in this frame, confirmed ones first
+        Track best = null;
+        for (Track track : mTracks) {
+            if (!track.mIsActive || track.mBlob < 0) continue;
+
+            if (best == null
+                    || (track.mHits >= CONFIRM_HITS && best.mHits < CONFIRM_HITS)
+                    || ((track.mHits >= CONFIRM_HITS) == (best.mHits >= CONFIRM_HITS) && track.mRadius > best.mRadius))
+                best = track;
+        }
+        mLockedId = (best != null) ? best.mId : -1;
+    }
+
+    private Track findTrack(int id) {
+        if (id < 0) return null;
+
+        for (Track track : mTracks) {
+            if (track.mIsActive && track.mId == id) return track;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,348 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * Tracks the target by back-projecting a hue-saturation histogram of it and
+ * running CamShift inside a window around its predicted position. Once
+ * locked, a frame only costs the pixels of that window, there is no mask
+ * labelling over the whole frame. The target is acquired, and reacquired
+ * when lost, with a full frame {@link PixelBlobDetector} scan.
+ *
+ * The histogram is learned from the core of the target when it is locked,
+ * and again after the color is adapted.
+ */
+public class CamShiftDetector implements BlobDetector<RgbaFrame> {
+    // Histogram bins, hue is 0-255 and wraps around
+    private static final int   HUE_BINS = 32;
+    private static final int   HUE_SHIFT = 3;
+    private static final int   SATURATION_BINS = 16;
+    private static final int   SATURATION_SHIFT = 4;
+    // One pixel out of STEP is used in both directions, as the pixel engine works at half resolution
+    private static final int   STEP = 2;
+    // Region back-projected around the predicted position, in full frame pixels
+    private static final double REGION_RADIUS_FACTOR = 3.0;
+    private static final double REGION_SPEED_FACTOR = 2.0;
+    private static final int   REGION_MIN_HALF_SIZE = 32;
+    // CamShift window half size, as a factor of the target radius, so it holds the whole target
+    private static final double WINDOW_RADIUS_FACTOR = 1.2;
+    private static final int   MAX_ITERATIONS = 10;
+    private static final double CONVERGENCE = 0.5;
+    // The target is lost when its area drops below this fraction of the last one, or below the minimum radius
+    private static final double MIN_AREA_RATIO = 0.25;
+    private static final double MIN_RADIUS = 2;
+    // Only the core of the target is learned, its edges mix with the background
+    private static final double CORE_RADIUS_FACTOR = 0.7;
+    private static final int   MIN_HISTOGRAM_SAMPLES = 20;
+
+    private final PixelBlobDetector mAcquirer = new PixelBlobDetector();
+    // Bounds of the selected color, pixels outside are not learned
+    private final ColorLookupTable mLookupTable = new ColorLookupTable();
+    private final double[]     mColorRadius = {12, 50, 50, 0};
+    private final BlobStats    mBlobs = new BlobStats();
+
+    // Back projection weights of each histogram bin, 0-255
+    private final int[]        mHistogram = new int[HUE_BINS * SATURATION_BINS];
+    private final int[]        mWeights = new int[HUE_BINS * SATURATION_BINS];
+    // Mean weight of the target pixels, turns the back projection mass into an area
+    private double             mFillWeight;
+    private boolean            mIsHistogramStale = true;
+
+    // Frame of the last detect, and its back projection around the target
+    private RgbaFrame          mFrame;
+    private int[]              mBackProjection = new int[0];
+    private int                mRegionX, mRegionY, mRegionWidth, mRegionHeight;
+    private int                mColumns, mRows;
+
+    // Tracking
+    private boolean            mIsTargetLocked = false;
+    private boolean            mIsTracking = false;
+    private double             mTargetX;
+    private double             mTargetY;
+    private double             mTargetRadius;
+    private double             mTargetSpeedX;
+    private double             mTargetSpeedY;
+
+    // Statistics
+    private long               mTrackedFrames;
+    private long               mScannedFrames;
+    private long               mLostCount;
+
+    @Override
+    public void setColorRadius(double[] radius) {
+        System.arraycopy(radius, 0, mColorRadius, 0, Math.min(radius.length, mColorRadius.length));
+        mAcquirer.setColorRadius(radius);
+    }
+
+    @Override
+    public void setHsvColor(double[] hsvColor) {
+        mLookupTable.setHsvColor(hsvColor, mColorRadius);
+        mAcquirer.setHsvColor(hsvColor);
+        mIsTargetLocked = false;
+        mIsHistogramStale = true;
+    }
+
+    @Override
+    public void adaptHsvColor(double[] hsvColor) {
+        mLookupTable.setHsvColor(hsvColor, mColorRadius);
+        mAcquirer.adaptHsvColor(hsvColor);
+        // Learned again from the tracked target
+        mIsHistogramStale = true;
+    }
+
+    /**
+     * Set the number of threads of the full frame scans.
+     */
+    public void setThreadCount(int threadCount) {
+        mAcquirer.setThreadCount(threadCount);
+    }
+
+    @Override
+    public void detect(RgbaFrame frame) {
+        mFrame = frame;
+        if (mIsTargetLocked) {
+            if (track(frame)) {
+                mIsTracking = true;
+                mTrackedFrames++;
+                return;
+            }
+
+            // Target lost inside the window, fall back to a full frame scan
+            mIsTargetLocked = false;
+            mLostCount++;
+        }
+
+        mIsTracking = false;
+        mScannedFrames++;
+        mAcquirer.detect(frame);
+        mBlobs.copyFrom(mAcquirer.getBlobs());
+    }
+
+    @Override
+    public BlobStats getBlobs() {
+        return mBlobs;
+    }
+
+    @Override
+    public void setTrackedTarget(double x, double y, double radius) {
+        if (!mIsTracking) {
+            // Found by a full frame scan, the window search starts from there
+            mTargetX = x;
+            mTargetY = y;
+            mTargetRadius = radius;
+            mTargetSpeedX = 0;
+            mTargetSpeedY = 0;
+            mIsHistogramStale = true;
+        }
+        if (mIsHistogramStale && learnHistogram(x, y, radius))
+            mIsHistogramStale = false;
+        mIsTargetLocked = !mIsHistogramStale || mIsTracking;
+    }
+
+    @Override
+    public void clearTrackedTarget() {
+        mIsTargetLocked = false;
+    }
+
+    @Override
+    public boolean hasSearchWindow() {
+        return mIsTracking;
+    }
+
+    @Override
+    public int getSearchWindowX() {
+        return mRegionX;
+    }
+
+    @Override
+    public int getSearchWindowY() {
+        return mRegionY;
+    }
+
+    @Override
+    public int getSearchWindowWidth() {
+        return mRegionWidth;
+    }
+
+    @Override
+    public int getSearchWindowHeight() {
+        return mRegionHeight;
+    }
+
+    @Override
+    public void release() {
+        mAcquirer.release();
+    }
+
+    /**
+     * Return the number of frames where the target was followed inside its window.
+     */
+    public long getTrackedFrames() {
+        return mTrackedFrames;
+    }
+
+    /**
+     * Return the number of full frame scans.
+     */
+    public long getScannedFrames() {
+        return mScannedFrames;
+    }
+
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    @Override
+    public String toString() {
+        return "tracked=" + mTrackedFrames + " scanned=" + mScannedFrames + " lost=" + mLostCount;
+    }
+
+    /**
+     * Learn the hue-saturation histogram of the pixels of the selected color
+     * in the core of the target.
+     *
+     * @return false if there are too few pixels of the color
+     */
+    private boolean learnHistogram(double centerX, double centerY, double radius) {
+        if (mFrame == null) return false;
+
+        byte[] pixels = mFrame.getPixels();
+        int width = mFrame.getWidth();
+        int height = mFrame.getHeight();
+        double core = CORE_RADIUS_FACTOR * radius;
+        int top = Math.max(0, (int) Math.ceil(centerY - core));
+        int bottom = Math.min(height - 1, (int) Math.floor(centerY + core));
+
+        for (int i = 0; i < mHistogram.length; i++)
+            mHistogram[i] = 0;
+        int samples = 0;
+        int matches = 0;
+        for (int y = top; y <= bottom; y += STEP) {
+            double dy = y - centerY;
+            double halfWidth = Math.sqrt(Math.max(0, core * core - dy * dy));
+            int left = Math.max(0, (int) Math.ceil(centerX - halfWidth));
+            int right = Math.min(width - 1, (int) Math.floor(centerX + halfWidth));
+            for (int x = left, p = (y * width + left) * 4; x <= right; x += STEP, p += 4 * STEP) {
+                int hsv = ColorLookupTable.rgbToHsv(pixels[p] & 0xFF, pixels[p + 1] & 0xFF, pixels[p + 2] & 0xFF);
+                samples++;
+                if (!mLookupTable.isInRange(hsv >> 16, (hsv >> 8) & 0xFF, hsv & 0xFF)) continue;
+                mHistogram[bin(hsv)]++;
+                matches++;
+            }
+        }
+        if (matches < MIN_HISTOGRAM_SAMPLES) return false;
+
+        int max = 0;
+        for (int count : mHistogram)
+            max = Math.max(max, count);
+        long mass = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mWeights[i] = mHistogram[i] * 255 / max;
+            mass += (long) mHistogram[i] * mWeights[i];
+        }
+        mFillWeight = (double) mass / samples;
+        return mFillWeight > 0;
+    }
+
+    /**
+     * Follow the target inside a window around its predicted position.
+     *
+     * @return false if the target was lost
+     */
+    private boolean track(RgbaFrame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        double speed = Math.sqrt(mTargetSpeedX * mTargetSpeedX + mTargetSpeedY * mTargetSpeedY);
+        int halfSize = (int) Math.max(REGION_MIN_HALF_SIZE,
+                mTargetRadius * REGION_RADIUS_FACTOR + speed * REGION_SPEED_FACTOR);
+        double predictedX = mTargetX + mTargetSpeedX;
+        double predictedY = mTargetY + mTargetSpeedY;
+        int left = Math.max(0, (int) predictedX - halfSize);
+        int top = Math.max(0, (int) predictedY - halfSize);
+        int right = Math.min(width, (int) predictedX + halfSize);
+        int bottom = Math.min(height, (int) predictedY + halfSize);
+        if (right - left < 2 * STEP || bottom - top < 2 * STEP) return false;
+
+        mRegionX = left;
+        mRegionY = top;
+        mRegionWidth = right - left;
+        mRegionHeight = bottom - top;
+        backProject(frame.getPixels(), width);
+
+        // Mean shift in back projection cells, the window follows the target size
+        double x = (predictedX - left) / STEP;
+        double y = (predictedY - top) / STEP;
+        double halfWindow = Math.max(2, WINDOW_RADIUS_FACTOR * mTargetRadius / STEP);
+        double area = 0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            int x0 = Math.max(0, (int) (x - halfWindow));
+            int y0 = Math.max(0, (int) (y - halfWindow));
+            int x1 = Math.min(mColumns - 1, (int) (x + halfWindow));
+            int y1 = Math.min(mRows - 1, (int) (y + halfWindow));
+            long m00 = 0, m10 = 0, m01 = 0;
+            for (int j = y0; j <= y1; j++) {
+                long rowMass = 0, rowMomentX = 0;
+                for (int i = x0, k = j * mColumns + x0; i <= x1; i++, k++) {
+                    int w = mBackProjection[k];
+                    rowMass += w;
+                    rowMomentX += w * i;
+                }
+                m00 += rowMass;
+                m10 += rowMomentX;
+                m01 += rowMass * j;
+            }
+            if (m00 == 0) return false;
+
+            double newX = (double) m10 / m00;
+            double newY = (double) m01 / m00;
+            area = m00 / mFillWeight;
+            halfWindow = Math.max(2, WINDOW_RADIUS_FACTOR * Math.sqrt(area / Math.PI));
+            double shift = Math.abs(newX - x) + Math.abs(newY - y);
+            x = newX;
+            y = newY;
+            if (shift < CONVERGENCE) break;
+        }
+
+        // Back to full frame pixels
+        area *= STEP * STEP;
+        double radius = Math.sqrt(area / Math.PI);
+        if (radius < MIN_RADIUS || radius < Math.sqrt(MIN_AREA_RATIO) * mTargetRadius) return false;
+
+        double centerX = left + x * STEP;
+        double centerY = top + y * STEP;
+        mTargetSpeedX = centerX - mTargetX;
+        mTargetSpeedY = centerY - mTargetY;
+        mTargetX = centerX;
+        mTargetY = centerY;
+        mTargetRadius = radius;
+
+        mBlobs.clear();
+        mBlobs.add(area, centerX, centerY, (int) (centerX - radius), (int) (centerY - radius),
+                (int) (centerX + radius), (int) (centerY + radius), 2 * Math.PI * radius);
+        return true;
+    }
+
+    /**
+     * Replace each pixel of the region by the weight of its histogram bin,
+     * pixels outside the value range of the color weigh nothing.
+     */
+    private void backProject(byte[] pixels, int width) {
+        mColumns = (mRegionWidth + STEP - 1) / STEP;
+        mRows = (mRegionHeight + STEP - 1) / STEP;
+        if (mBackProjection.length < mColumns * mRows)
+            mBackProjection = new int[mColumns * mRows];
+
+        int lowerValue = mLookupTable.getLowerValue();
+        int upperValue = mLookupTable.getUpperValue();
+        for (int j = 0, k = 0; j < mRows; j++) {
+            int p = ((mRegionY + j * STEP) * width + mRegionX) * 4;
+            for (int i = 0; i < mColumns; i++, k++, p += 4 * STEP) {
+                int hsv = ColorLookupTable.rgbToHsv(pixels[p] & 0xFF, pixels[p + 1] & 0xFF, pixels[p + 2] & 0xFF);
+                int v = hsv & 0xFF;
+                mBackProjection[k] = (v >= lowerValue && v <= upperValue) ? mWeights[bin(hsv)] : 0;
+            }
+        }
+    }
+
+    private static int bin(int hsv) {
+        return ((hsv >> 16) >> HUE_SHIFT) * SATURATION_BINS + (((hsv >> 8) & 0xFF) >> SATURATION_SHIFT);
+    }
+}
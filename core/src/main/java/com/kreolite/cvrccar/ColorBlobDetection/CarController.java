@@ -0,0 +1,376 @@
+/*
+ * This file is part of the Autonomous Android Vehicle (AAV) application.
+ *
+ * AAV is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AAV is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AAV.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
+
+public class CarController {
+	private static final String _TAG = "CarController";
+
+    /* Pan values */
+    private static final int MAX_RIGHT_PAN_PWM = 2250;
+    private static final int MAX_LEFT_PAN_PWM = 565;
+    private static final int CENTER_PAN_PWM = 1385;
+    private static final int REDUCED_PAN_FACTOR = 400;
+    private static final double PAN_RANGE = (MAX_RIGHT_PAN_PWM - REDUCED_PAN_FACTOR) - (MAX_LEFT_PAN_PWM + REDUCED_PAN_FACTOR);
+    // Pan speed PID, in PWM per second for an error normalized to half the frame width
+    private static final double PAN_KP = 1500;
+    private static final double PAN_KI = 150;
+    private static final double PAN_KD = 60;
+    private static final double PAN_INTEGRAL_LIMIT = 200;
+    private static final double PAN_DERIVATIVE_TAU = 0.05;
+    private static final double PAN_MAX_SPEED = 1500;
+    private static final double PAN_MAX_ACCELERATION = 8000;
+    // 30 pixels when the frame is 352 pixels wide
+    private static final double PAN_DEAD_BAND = 30.0 / 176;
+    // Time step used for the first update, and longest one taken into account
+    private static final double PAN_DEFAULT_DT = 0.033;
+    private static final double PAN_MAX_DT = 0.1;
+    private final PidController mPanPid = new PidController(PAN_KP, PAN_KI, PAN_KD);
+    private long mLastPanNanos;
+    private boolean mHasLastPan = false;
+    private double mPwmPan;
+
+    /* Target search */
+    private static final double CAMERA_FOV_DEGREES = 60;
+    // Pan range covers 180 degrees
+    private static final double PAN_PWM_PER_DEGREE = (MAX_RIGHT_PAN_PWM - MAX_LEFT_PAN_PWM) / 180.0;
+    // Slower than the tracking speed to limit motion blur during the sweep
+    private static final double SEARCH_MAX_SPEED = 1000;
+    // Below this target speed, in pixels per second, search on the side it was last seen
+    private static final double SEARCH_MIN_TARGET_SPEED = 20;
+    private final SearchPlanner mSearchPlanner = new SearchPlanner(MAX_LEFT_PAN_PWM, MAX_RIGHT_PAN_PWM,
+            CAMERA_FOV_DEGREES * PAN_PWM_PER_DEGREE, SEARCH_MAX_SPEED);
+    private double mLastTargetOffset = 0;
+    private double mLastTargetSpeed = 0;
+
+    /* Steering values */
+    private static final int MAX_RIGHT_STEERING_PWM = 1920;
+    private static final int MAX_LEFT_STEERING_PWM = 1340;
+    private static final int CENTER_STEERING_PWM = 1640;
+    private static final double STEERING_RANGE = MAX_RIGHT_STEERING_PWM - MAX_LEFT_STEERING_PWM;
+    private double mPwmSteering;
+
+	/* Throttle values */
+    private static final int MOTOR_FORWARD_PWM = 1560;
+    private static final int MOTOR_REVERSE_PWM = 1370;
+    private static final int MOTOR_NEUTRAL_PWM = 1490;
+    private double mPwmMotor;
+
+    /* JSON serialization */
+    public static final int PWM_JSON_MAX_LENGTH = 64;
+    private static final byte[] JSON_PAN = {'{', '"', 'p', 'a', 'n', '"', ':'};
+    private static final byte[] JSON_STEERING = {',', '"', 's', 't', 'e', 'e', 'r', 'i', 'n', 'g', '"', ':'};
+    private static final byte[] JSON_THROTTLE = {',', '"', 't', 'h', 'r', 'o', 't', 't', 'l', 'e', '"', ':'};
+    private static final byte[] JSON_END = {'}', ';'};
+    private final byte[] mJsonBuffer = new byte[PWM_JSON_MAX_LENGTH];
+
+    /* Target motion, to steer where the target will be when the command applies */
+    private final TargetPredictor mPredictor = new TargetPredictor();
+
+	// IRSensors _irSensors;
+
+	public CarController() {
+		// set the pulse width to be exactly the middle
+        mPwmPan = CENTER_PAN_PWM;
+        mPwmMotor = MOTOR_NEUTRAL_PWM;
+		mPwmSteering = CENTER_STEERING_PWM;
+
+        mPanPid.setIntegralLimit(PAN_INTEGRAL_LIMIT);
+        mPanPid.setDerivativeFilter(PAN_DERIVATIVE_TAU);
+        mPanPid.setOutputLimits(-PAN_MAX_SPEED, PAN_MAX_SPEED);
+        mPanPid.setSlewRate(PAN_MAX_ACCELERATION);
+        mPanPid.setDeadBand(PAN_DEAD_BAND);
+
+		// _irSensors = new IRSensors();
+	}
+
+    public synchronized boolean isReversing() {
+        if (mPwmMotor == MOTOR_REVERSE_PWM)
+            return true;
+        else
+            return false;
+    }
+
+    public synchronized int getPanPwm() {
+        return (int) mPwmPan;
+    }
+
+    public synchronized int getSteeringPwm() {
+        return (int) mPwmSteering;
+    }
+
+    public synchronized int getMotorPwm() {
+        return (int) mPwmMotor;
+    }
+
+	public synchronized String getPWMValuesToJson() {
+		int length = writePwmJson((int) mPwmPan, (int) mPwmSteering, (int) mPwmMotor, mJsonBuffer);
+		return new String(mJsonBuffer, 0, length);
+	}
+
+    public synchronized String getPWMNeutralValuesToJson() {
+        int length = writePwmJson((int) mPwmPan, (int) mPwmSteering, MOTOR_NEUTRAL_PWM, mJsonBuffer);
+        return new String(mJsonBuffer, 0, length);
+    }
+
+    /**
+     * Write the PWM values as JSON into a reusable buffer, without allocating.
+     *
+     * @param buffer The buffer, at least PWM_JSON_MAX_LENGTH bytes long
+     * @return The number of bytes written
+     */
+    public synchronized int getPWMValuesToJson(byte[] buffer) {
+        return writePwmJson((int) mPwmPan, (int) mPwmSteering, (int) mPwmMotor, buffer);
+    }
+
+    /**
+     * Write the PWM values with a neutral throttle as JSON into a reusable buffer.
+     *
+     * @param buffer The buffer, at least PWM_JSON_MAX_LENGTH bytes long
+     * @return The number of bytes written
+     */
+    public synchronized int getPWMNeutralValuesToJson(byte[] buffer) {
+        return writePwmJson((int) mPwmPan, (int) mPwmSteering, MOTOR_NEUTRAL_PWM, buffer);
+    }
+
+    /**
+     * Write the PWM values as a binary frame into a reusable buffer, the
+     * sequence number is set when the frame is sent.
+     *
+     * @param buffer The buffer, at least PwmFrameCodec.FRAME_SIZE bytes long
+     * @return The number of bytes written
+     */
+    public synchronized int getPWMValuesToFrame(byte[] buffer) {
+        return PwmFrameCodec.encode(0, (int) mPwmPan, (int) mPwmSteering, (int) mPwmMotor, 0, buffer, 0);
+    }
+
+    /**
+     * Write the PWM values with a neutral throttle as a binary frame into a reusable buffer.
+     *
+     * @param buffer The buffer, at least PwmFrameCodec.FRAME_SIZE bytes long
+     * @return The number of bytes written
+     */
+    public synchronized int getPWMNeutralValuesToFrame(byte[] buffer) {
+        return PwmFrameCodec.encode(0, (int) mPwmPan, (int) mPwmSteering, MOTOR_NEUTRAL_PWM,
+                PwmFrameCodec.FLAG_NEUTRAL, buffer, 0);
+    }
+
+    /**
+     * Format as {"pan":1385,"steering":1640,"throttle":1490}; which is what
+     * JSONObject gives for these keys.
+     */
+    private static int writePwmJson(int pan, int steering, int throttle, byte[] buffer) {
+        int pos = writeAscii(JSON_PAN, buffer, 0);
+        pos = writeInt(pan, buffer, pos);
+        pos = writeAscii(JSON_STEERING, buffer, pos);
+        pos = writeInt(steering, buffer, pos);
+        pos = writeAscii(JSON_THROTTLE, buffer, pos);
+        pos = writeInt(throttle, buffer, pos);
+        return writeAscii(JSON_END, buffer, pos);
+    }
+
+    private static int writeAscii(byte[] ascii, byte[] buffer, int pos) {
+        System.arraycopy(ascii, 0, buffer, pos, ascii.length);
+        return pos + ascii.length;
+    }
+
+    private static int writeInt(int value, byte[] buffer, int pos) {
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            buffer[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        // Digits were written in reverse order
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+        return pos;
+    }
+
+    public TargetPredictor getPredictor() {
+        return mPredictor;
+    }
+
+    public SearchPlanner getSearchPlanner() {
+        return mSearchPlanner;
+    }
+
+    /**
+     * Set the horizontal camera field of view, which bounds the search sweep speed.
+     */
+    public void setCameraFieldOfView(double degrees) {
+        mSearchPlanner.setFieldOfView(degrees * PAN_PWM_PER_DEGREE);
+    }
+
+    public boolean isSearching() {
+        return mSearchPlanner.isSearching();
+    }
+
+    /**
+     * Update the PWM values to follow a blob, steering on its predicted
+     * position when the command takes effect.
+     *
+     * @param screenCenterX The horizontal center of the frame
+     * @param screenCenterY The vertical center of the frame
+     * @param blobs         The blobs found in the frame
+     * @param target        The index of the blob to follow
+     * @param captureNanos  The System.nanoTime() at which the frame was captured
+     * @param nowNanos      The current System.nanoTime()
+     */
+    public void updateTargetPWM(double screenCenterX,
+                                double screenCenterY,
+                                BlobStats blobs,
+                                int target,
+                                long captureNanos,
+                                long nowNanos,
+                                double forwardBoundaryPercent,
+                                double reverseBoundaryPercent,
+                                boolean isObstacle) throws InterruptedException {
+        mPredictor.update(captureNanos, blobs.getCenterX(target), blobs.getCenterY(target));
+        mLastTargetSpeed = mPredictor.getSpeedX();
+        if (mPredictor.predict(nowNanos))
+            updateTargetPWM(screenCenterX, screenCenterY, mPredictor.getPredictedX(), mPredictor.getPredictedY(),
+                    nowNanos, forwardBoundaryPercent, reverseBoundaryPercent, isObstacle);
+        else
+            updateTargetPWM(screenCenterX, screenCenterY, blobs.getCenterX(target), blobs.getCenterY(target),
+                    nowNanos, forwardBoundaryPercent, reverseBoundaryPercent, isObstacle);
+    }
+
+    /**
+     * Keep following the predicted target when it was not detected in the
+     * last frames.
+     *
+     * @param nowNanos The current System.nanoTime()
+     * @return false if the target was lost for too long to be predicted
+     */
+    public boolean coastTargetPWM(double screenCenterX,
+                                  double screenCenterY,
+                                  long nowNanos,
+                                  double forwardBoundaryPercent,
+                                  double reverseBoundaryPercent,
+                                  boolean isObstacle) throws InterruptedException {
+        if (!mPredictor.predict(nowNanos)) return false;
+
+        updateTargetPWM(screenCenterX, screenCenterY, mPredictor.getPredictedX(), mPredictor.getPredictedY(),
+                nowNanos, forwardBoundaryPercent, reverseBoundaryPercent, isObstacle);
+        return true;
+    }
+
+    /**
+     * Update the PWM values to follow a target position.
+     *
+     * @param nowNanos The current System.nanoTime(), for the pan controller time step
+     */
+	public void updateTargetPWM(double screenCenterX,
+                                double screenCenterY,
+                                double targetCenterX,
+                                double targetCenterY,
+                                long nowNanos,
+                                double forwardBoundaryPercent,
+                                double reverseBoundaryPercent,
+                                boolean isObstacle) throws InterruptedException {
+
+        double panSteeringConvert;
+
+        if (mSearchPlanner.isSearching())
+            mSearchPlanner.stop(true, nowNanos);
+        mLastTargetOffset = targetCenterX - screenCenterX;
+
+        // Compute pan
+        updatePanPwm(screenCenterX, targetCenterX, nowNanos);
+
+        // Compute throttle
+        if (targetCenterY < (screenCenterY - forwardBoundaryPercent*screenCenterY * 2) && !isObstacle)
+            mPwmMotor = MOTOR_FORWARD_PWM;
+        else if (targetCenterY > (screenCenterY + reverseBoundaryPercent * screenCenterY * 2))
+            mPwmMotor = MOTOR_REVERSE_PWM;
+        else mPwmMotor = MOTOR_NEUTRAL_PWM;
+
+        // Compute steering
+        if (!isReversing()) {
+            panSteeringConvert = ((STEERING_RANGE / PAN_RANGE) * mPwmPan + (MAX_RIGHT_STEERING_PWM - (MAX_RIGHT_PAN_PWM - REDUCED_PAN_FACTOR) * (STEERING_RANGE / PAN_RANGE)));
+            mPwmSteering = constrain(panSteeringConvert, MAX_LEFT_STEERING_PWM, MAX_RIGHT_STEERING_PWM);
+        }
+        else {
+            panSteeringConvert = ((-STEERING_RANGE / PAN_RANGE) * mPwmPan + (MAX_RIGHT_STEERING_PWM - (MAX_LEFT_PAN_PWM + REDUCED_PAN_FACTOR) * (-STEERING_RANGE / PAN_RANGE)));
+            mPwmSteering = constrain(panSteeringConvert, MAX_LEFT_STEERING_PWM, MAX_RIGHT_STEERING_PWM);
+        }
+	}
+
+    public void reset() {
+        mSearchPlanner.stop(false, System.nanoTime());
+        mLastTargetOffset = 0;
+        mLastTargetSpeed = 0;
+        mPredictor.reset();
+        resetPan();
+        mPwmPan = CENTER_PAN_PWM;
+        mPwmSteering = CENTER_STEERING_PWM;
+        mPwmMotor = MOTOR_NEUTRAL_PWM;
+	}
+
+    private double constrain(double input, double min, double max) {
+        return (input <= min) ? min : (input >= max) ? max : input;
+    }
+
+    private void updatePanPwm(double screenCenterX, double targetCenterX, long nowNanos) {
+        // Error normalized to half the frame width, so gains hold at any resolution
+        double error = (targetCenterX - screenCenterX) / screenCenterX;
+
+        double dt = mHasLastPan ? (nowNanos - mLastPanNanos) / 1e9 : PAN_DEFAULT_DT;
+        dt = constrain(dt, 0, PAN_MAX_DT);
+        mLastPanNanos = nowNanos;
+        mHasLastPan = true;
+
+        // The PID gives the pan speed, the servo position integrates it
+        double panSpeed = mPanPid.update(error, dt);
+        mPwmPan = constrain(mPwmPan + panSpeed * dt, MAX_LEFT_PAN_PWM, MAX_RIGHT_PAN_PWM);
+    }
+
+    private void resetPan() {
+        mPanPid.reset();
+        mHasLastPan = false;
+    }
+
+    /**
+     * Move the pan one step along the search sweep. The sweep starts toward
+     * where the target was going, and its speed follows the frame rate.
+     *
+     * @param nowNanos The System.nanoTime() of the frame in which the target is still missing
+     */
+    public void searchTarget(long nowNanos) {
+        mPwmMotor = MOTOR_NEUTRAL_PWM;
+        // The pan sweep moves the camera, the last motion does not apply anymore
+        mPredictor.reset();
+        resetPan();
+
+        if (!mSearchPlanner.isSearching()) {
+            double motion = (Math.abs(mLastTargetSpeed) > SEARCH_MIN_TARGET_SPEED) ? mLastTargetSpeed : mLastTargetOffset;
+            // A target leaving on the right is followed by increasing the pan
+            mSearchPlanner.start(mPwmPan, (motion >= 0) ? 1 : -1, nowNanos);
+        }
+        mPwmPan = constrain(mSearchPlanner.step(nowNanos), MAX_LEFT_PAN_PWM, MAX_RIGHT_PAN_PWM);
+    }
+}
@@ -0,0 +1,194 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import java.util.Arrays;
+
+/**
+ * Quantized RGB lookup table telling which colors fall inside the HSV
+ * bounds. It is rebuilt when the color is selected, so that checking a
+ * pixel every frame only costs one table lookup instead of a HSV
+ * conversion and a range check. The color must only be changed between
+ * frames, from the thread detecting them.
+ */
+public class ColorLookupTable {
+    // Hue is scaled to 0-255 as with COLOR_RGB2HSV_FULL, and wraps around
+    public static final int    HUE_RANGE = 256;
+
+    // 6 bits per channel, 64x64x64 colors stored as a bitset
+    private static final int   CHANNEL_BITS = 6;
+    private static final int   CHANNEL_SHIFT = 8 - CHANNEL_BITS;
+    private static final int   TABLE_SIZE = 1 << (3 * CHANNEL_BITS);
+
+    // Lower and Upper bounds, a lower hue above the upper hue wraps around 0
+    private int                mLowerH, mUpperH;
+    private int                mLowerS, mUpperS;
+    private int                mLowerV, mUpperV;
+    // Swapped as a whole so a frame being processed never sees a partial table,
+    // the back table is rebuilt in place so that adapting the color does not allocate
+    private volatile long[]    mTable = new long[TABLE_SIZE / 64];
+    private long[]             mBackTable = new long[TABLE_SIZE / 64];
+    private boolean            mIsBuilt = false;
+
+    /**
+     * Set the HSV color to look for and rebuild the table.
+     *
+     * @param hsvColor The H, S and V values of the color
+     * @param radius   The H, S and V radius around the color
+     */
+    public void setHsvColor(double[] hsvColor, double[] radius) {
+        int h = (int) Math.round(hsvColor[0]);
+        h = ((h % HUE_RANGE) + HUE_RANGE) % HUE_RANGE;
+        int s = (int) constrain(hsvColor[1], 0, 255);
+        int v = (int) constrain(hsvColor[2], 0, 255);
+
+        int lowerH, upperH;
+        if (2 * radius[0] + 1 >= HUE_RANGE) {
+            // Every hue is accepted
+            lowerH = 0;
+            upperH = HUE_RANGE - 1;
+        } else {
+            lowerH = (h - (int) radius[0] + HUE_RANGE) % HUE_RANGE;
+            upperH = (h + (int) radius[0]) % HUE_RANGE;
+        }
+        int lowerS = (int) constrain(s - radius[1], 0, 255);
+        int upperS = (int) constrain(s + radius[1], 0, 255);
+        int lowerV = (int) constrain(v - radius[2], 0, 255);
+        int upperV = (int) constrain(v + radius[2], 0, 255);
+
+        // Small adaptations often round to the same bounds
+        if (mIsBuilt && lowerH == mLowerH && upperH == mUpperH && lowerS == mLowerS && upperS == mUpperS
+                && lowerV == mLowerV && upperV == mUpperV)
+            return;
+
+        mLowerH = lowerH;
+        mUpperH = upperH;
+        mLowerS = lowerS;
+        mUpperS = upperS;
+        mLowerV = lowerV;
+        mUpperV = upperV;
+        build();
+    }
+
+    public int getLowerHue() {
+        return mLowerH;
+    }
+
+    public int getUpperHue() {
+        return mUpperH;
+    }
+
+    /**
+     * Return the number of hue values accepted, taking wrap around into account.
+     */
+    public int getHueWidth() {
+        return ((mUpperH - mLowerH + HUE_RANGE) % HUE_RANGE) + 1;
+    }
+
+    public int getLowerSaturation() {
+        return mLowerS;
+    }
+
+    public int getUpperSaturation() {
+        return mUpperS;
+    }
+
+    public int getLowerValue() {
+        return mLowerV;
+    }
+
+    public int getUpperValue() {
+        return mUpperV;
+    }
+
+    public boolean isInRange(int h, int s, int v) {
+        boolean isHueInRange = (mLowerH <= mUpperH)
+                ? (h >= mLowerH && h <= mUpperH)
+                : (h >= mLowerH || h <= mUpperH);
+        return isHueInRange && s >= mLowerS && s <= mUpperS && v >= mLowerV && v <= mUpperV;
+    }
+
+    public boolean matches(int r, int g, int b) {
+        int i = index(r, g, b);
+        return (mTable[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Return the current table, a bitset indexed by {@link #index(int, int, int)}.
+     * Callers checking many pixels read it once, so that the whole frame is
+     * checked against the same table without a volatile read per pixel.
+     */
+    public long[] getTable() {
+        return mTable;
+    }
+
+    /**
+     * Return the bit index of a RGB color in the table.
+     */
+    public static int index(int r, int g, int b) {
+        return ((r >> CHANNEL_SHIFT) << (2 * CHANNEL_BITS)) | ((g >> CHANNEL_SHIFT) << CHANNEL_BITS) | (b >> CHANNEL_SHIFT);
+    }
+
+    /**
+     * Write 255 into the mask for each matching pixel, 0 otherwise, as
+     * Core.inRange does.
+     *
+     * @param pixels     The pixel bytes, R G B first
+     * @param channels   The number of bytes per pixel, 3 or 4
+     * @param pixelCount The number of pixels to process
+     * @param mask       The mask, one byte per pixel
+     */
+    public void buildMask(byte[] pixels, int channels, int pixelCount, byte[] mask) {
+        final long[] table = mTable;
+        for (int i = 0, p = 0; i < pixelCount; i++, p += channels) {
+            int index = (((pixels[p] & 0xFF) >> CHANNEL_SHIFT) << (2 * CHANNEL_BITS))
+                    | (((pixels[p + 1] & 0xFF) >> CHANNEL_SHIFT) << CHANNEL_BITS)
+                    | ((pixels[p + 2] & 0xFF) >> CHANNEL_SHIFT);
+            mask[i] = ((table[index >>> 6] & (1L << index)) != 0) ? (byte) 255 : 0;
+        }
+    }
+
+    /**
+     * Convert a RGB color to HSV the same way as COLOR_RGB2HSV_FULL does,
+     * hue being scaled to 0-255.
+     *
+     * @return The H, S and V values packed as 0x00HHSSVV
+     */
+    public static int rgbToHsv(int r, int g, int b) {
+        int v = Math.max(r, Math.max(g, b));
+        int diff = v - Math.min(r, Math.min(g, b));
+        int s = (v == 0) ? 0 : (diff * 255 + (v >> 1)) / v;
+        int h = 0;
+
+        if (diff != 0) {
+            if (v == r) h = g - b;
+            else if (v == g) h = b - r + 2 * diff;
+            else h = r - g + 4 * diff;
+            if (h < 0) h += 6 * diff;
+            h = (h * HUE_RANGE + 3 * diff) / (6 * diff);
+            if (h >= HUE_RANGE) h -= HUE_RANGE;
+        }
+        return (h << 16) | (s << 8) | v;
+    }
+
+    private void build() {
+        long[] table = mBackTable;
+        Arrays.fill(table, 0);
+        int half = (1 << CHANNEL_SHIFT) >> 1;
+
+        // Each cell is classified by the color at its center
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            int r = ((i >> (2 * CHANNEL_BITS)) << CHANNEL_SHIFT) + half;
+            int g = (((i >> CHANNEL_BITS) & ((1 << CHANNEL_BITS) - 1)) << CHANNEL_SHIFT) + half;
+            int b = ((i & ((1 << CHANNEL_BITS) - 1)) << CHANNEL_SHIFT) + half;
+            int hsv = rgbToHsv(r, g, b);
+            if (isInRange(hsv >> 16, (hsv >> 8) & 0xFF, hsv & 0xFF))
+                table[i >>> 6] |= 1L << i;
+        }
+        mBackTable = mTable;
+        mTable = table;
+        mIsBuilt = true;
+    }
+
+    private static double constrain(double input, double min, double max) {
+        return (input <= min) ? min : (input >= max) ? max : input;
+    }
+}
@@ -0,0 +1,113 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * PID controller taking the time between updates into account, with a
+ * clamped integral, a low pass filtered derivative and an output limited
+ * both in range and in rate of change.
+ */
+public class PidController {
+    private double             mKp, mKi, mKd;
+    private double             mIntegralLimit = Double.MAX_VALUE;
+    // Time constant of the derivative low pass filter, in seconds
+    private double             mDerivativeTau = 0;
+    private double             mMinOutput = -Double.MAX_VALUE;
+    private double             mMaxOutput = Double.MAX_VALUE;
+    // Maximum output change per second
+    private double             mSlewRate = Double.MAX_VALUE;
+    // Errors smaller than this are considered null
+    private double             mDeadBand = 0;
+
+    private boolean            mHasPrevious = false;
+    private double             mPreviousError;
+    private double             mIntegral;
+    private double             mDerivative;
+    private double             mOutput;
+
+    public PidController(double kp, double ki, double kd) {
+        setGains(kp, ki, kd);
+    }
+
+    public void setGains(double kp, double ki, double kd) {
+        mKp = kp;
+        mKi = ki;
+        mKd = kd;
+    }
+
+    /**
+     * Limit the integral term contribution to the output.
+     */
+    public void setIntegralLimit(double limit) {
+        mIntegralLimit = limit;
+    }
+
+    public void setDerivativeFilter(double tauSeconds) {
+        mDerivativeTau = tauSeconds;
+    }
+
+    public void setOutputLimits(double min, double max) {
+        mMinOutput = min;
+        mMaxOutput = max;
+    }
+
+    public void setSlewRate(double maxChangePerSecond) {
+        mSlewRate = maxChangePerSecond;
+    }
+
+    public void setDeadBand(double deadBand) {
+        mDeadBand = deadBand;
+    }
+
+    public void reset() {
+        mHasPrevious = false;
+        mIntegral = 0;
+        mDerivative = 0;
+        mOutput = 0;
+    }
+
+    public double getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Compute the output for a new error.
+     *
+     * @param error The setpoint minus the measure
+     * @param dt    The time since the previous update, in seconds
+     * @return The new output
+     */
+    public double update(double error, double dt) {
+        if (dt <= 0) return mOutput;
+
+        // Inside the dead band the output settles to 0, the slew limit smooths its edge
+        if (Math.abs(error) <= mDeadBand) {
+            mHasPrevious = false;
+            mIntegral = 0;
+            mDerivative = 0;
+            return mOutput = constrain(0, mOutput - mSlewRate * dt, mOutput + mSlewRate * dt);
+        }
+
+        if (mKi != 0) {
+            mIntegral += error * dt;
+            double limit = mIntegralLimit / Math.abs(mKi);
+            mIntegral = constrain(mIntegral, -limit, limit);
+        }
+
+        if (mHasPrevious) {
+            double rawDerivative = (error - mPreviousError) / dt;
+            double smoothing = dt / (mDerivativeTau + dt);
+            mDerivative += smoothing * (rawDerivative - mDerivative);
+        }
+        mPreviousError = error;
+        mHasPrevious = true;
+
+        double output = mKp * error + mKi * mIntegral + mKd * mDerivative;
+        double maxChange = mSlewRate * dt;
+        output = constrain(output, mOutput - maxChange, mOutput + maxChange);
+        mOutput = constrain(output, mMinOutput, mMaxOutput);
+        return mOutput;
+    }
+
+    private static double constrain(double input, double min, double max) {
+        return (input <= min) ? min : (input >= max) ? max : input;
+    }
+}
@@ -0,0 +1,562 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pure Java color blob detector working directly on raw frame buffers.
+ * It follows the same steps as {@link ColorBlobDetector} (downscale by 2,
+ * HSV range check, dilate, blob extraction) but does not need OpenCV, and
+ * all scratch buffers are only reallocated when the frame size changes.
+ *
+ * The frame is processed as horizontal stripes. With more than one thread,
+ * stripes are masked and labelled in parallel, then blob fragments touching
+ * stripe boundaries are merged.
+ */
+public class PixelBlobDetector implements BlobDetector<RgbaFrame> {
+    // Table of the colors within HSV bounds
+    private final ColorLookupTable mLookupTable = new ColorLookupTable();
+    // Minimum contour area in percent for contours filtering
+    private double             mMinContourAreaRatio = 0.2;
+    // Color radius for range checking in HSV color space
+    private final double[]     mColorRadius = {12, 50, 50, 0};
+    private final BlobStats    mBlobs = new BlobStats();
+
+    // Frame being processed, either RGBA bytes or ARGB ints
+    private byte[]             mRgbaFrame;
+    private int[]              mArgbFrame;
+    private int                mFrameWidth;
+    // Color table read once per frame, shared by all stripes
+    private long[]             mTable;
+
+    // Scratch buffers at processing (half) resolution
+    private int                mWidth = 0;
+    private int                mHeight = 0;
+    private byte[]             mMask;
+    private byte[]             mDilatedMask;
+    private int[]              mLabels;
+    // Union-find parents and per-label statistics
+    private int[]              mParent;
+    private int[]              mArea;
+    private long[]             mSumX;
+    private long[]             mSumY;
+    private int[]              mMinX;
+    private int[]              mMinY;
+    private int[]              mMaxX;
+    private int[]              mMaxY;
+    private int[]              mPerimeter;
+
+    // Stripes and the pool running them
+    private int                mThreadCount = 1;
+    private Stripe[]           mStripes = new Stripe[0];
+    private ExecutorService    mExecutor;
+    private final List<Callable<Void>> mMaskTasks = new ArrayList<>();
+    private final List<Callable<Void>> mLabelTasks = new ArrayList<>();
+
+    @Override
+    public void setColorRadius(double[] radius) {
+        System.arraycopy(radius, 0, mColorRadius, 0, Math.min(radius.length, mColorRadius.length));
+    }
+
+    /**
+     * Set the HSV color to look for, hue wraps around so red colors are
+     * matched on both sides of 0.
+     *
+     * @param hsvColor The H, S and V values of the color
+     */
+    @Override
+    public void setHsvColor(double[] hsvColor) {
+        mLookupTable.setHsvColor(hsvColor, mColorRadius);
+    }
+
+    @Override
+    public void adaptHsvColor(double[] hsvColor) {
+        mLookupTable.setHsvColor(hsvColor, mColorRadius);
+    }
+
+    public void setMinContourArea(double area) {
+        mMinContourAreaRatio = area;
+    }
+
+    /**
+     * Set the number of threads processing stripes, 1 runs everything on the
+     * calling thread.
+     *
+     * @param threadCount The number of threads, usually the number of cores
+     */
+    public void setThreadCount(int threadCount) {
+        threadCount = Math.max(1, threadCount);
+        if (threadCount == mThreadCount) return;
+
+        release();
+        mThreadCount = threadCount;
+        if (threadCount > 1)
+            mExecutor = Executors.newFixedThreadPool(threadCount, new StripeThreadFactory());
+
+        // Force stripes to be rebuilt on next frame
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Stop the stripe threads, the detector falls back to a single thread.
+     */
+    @Override
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+        mThreadCount = 1;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    @Override
+    public BlobStats getBlobs() {
+        return mBlobs;
+    }
+
+    // Every frame is fully scanned, the tracked target is not used
+    @Override
+    public void setTrackedTarget(double x, double y, double radius) {
+    }
+
+    @Override
+    public void clearTrackedTarget() {
+    }
+
+    @Override
+    public boolean hasSearchWindow() {
+        return false;
+    }
+
+    @Override
+    public int getSearchWindowX() {
+        return 0;
+    }
+
+    @Override
+    public int getSearchWindowY() {
+        return 0;
+    }
+
+    @Override
+    public int getSearchWindowWidth() {
+        return 0;
+    }
+
+    @Override
+    public int getSearchWindowHeight() {
+        return 0;
+    }
+
+    @Override
+    public void detect(RgbaFrame frame) {
+        detect(frame.getPixels(), frame.getWidth(), frame.getHeight());
+    }
+
+    /**
+     * Detect blobs in a RGBA frame, as given by a CV_8UC4 Mat.
+     *
+     * @param rgba   The frame bytes, 4 bytes per pixel
+     * @param width  The frame width
+     * @param height The frame height
+     */
+    public void detect(byte[] rgba, int width, int height) {
+        mRgbaFrame = rgba;
+        mArgbFrame = null;
+        mFrameWidth = width;
+        detect(width / 2, height / 2);
+        mRgbaFrame = null;
+    }
+
+    /**
+     * Detect blobs in an ARGB frame, as given by Bitmap.getPixels().
+     *
+     * @param argb   The frame pixels
+     * @param width  The frame width
+     * @param height The frame height
+     */
+    public void detect(int[] argb, int width, int height) {
+        mRgbaFrame = null;
+        mArgbFrame = argb;
+        mFrameWidth = width;
+        detect(width / 2, height / 2);
+        mArgbFrame = null;
+    }
+
+    private void detect(int width, int height) {
+        allocate(width, height);
+        mTable = mLookupTable.getTable();
+
+        if (mStripes.length == 1) {
+            Stripe stripe = mStripes[0];
+            stripe.buildMask();
+            stripe.label();
+        } else {
+            // All rows must be masked before dilating across stripe boundaries
+            if (!runStripes(mMaskTasks) || !runStripes(mLabelTasks)) {
+                mBlobs.clear();
+                return;
+            }
+            mergeStripes();
+        }
+        collectBlobs();
+    }
+
+    private boolean runStripes(List<Callable<Void>> tasks) {
+        try {
+            List<Future<Void>> futures = mExecutor.invokeAll(tasks);
+            for (int i = 0, n = futures.size(); i < n; i++)
+                futures.get(i).get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return false;
+    }
+
+    private void allocate(int width, int height) {
+        if (width == mWidth && height == mHeight) return;
+
+        mWidth = width;
+        mHeight = height;
+        mMask = new byte[width * height];
+        mDilatedMask = new byte[width * height];
+        mLabels = new int[width * height];
+
+        // Split rows evenly, each stripe owning a range of labels
+        int stripeCount = Math.max(1, Math.min(mThreadCount, height));
+        mStripes = new Stripe[stripeCount];
+        mMaskTasks.clear();
+        mLabelTasks.clear();
+        int firstLabel = 1;
+        for (int i = 0; i < stripeCount; i++) {
+            Stripe stripe = new Stripe(i * height / stripeCount, (i + 1) * height / stripeCount, firstLabel);
+            mStripes[i] = stripe;
+            mMaskTasks.add(stripe.mMaskTask);
+            mLabelTasks.add(stripe.mLabelTask);
+            // Pixels starting a new label are never 8-connected to each other
+            firstLabel += ((width + 1) / 2) * ((stripe.mEndRow - stripe.mStartRow + 1) / 2);
+        }
+
+        int maxLabels = firstLabel;
+        mParent = new int[maxLabels];
+        mArea = new int[maxLabels];
+        mSumX = new long[maxLabels];
+        mSumY = new long[maxLabels];
+        mMinX = new int[maxLabels];
+        mMinY = new int[maxLabels];
+        mMaxX = new int[maxLabels];
+        mMaxY = new int[maxLabels];
+        mPerimeter = new int[maxLabels];
+    }
+
+    /**
+     * Join blob fragments across stripe boundaries, and fold the statistics of
+     * each fragment into the root of its blob.
+     */
+    private void mergeStripes() {
+        final int w = mWidth;
+        final int[] labels = mLabels;
+
+        for (int s = 1; s < mStripes.length; s++) {
+            int row = mStripes[s].mStartRow * w;
+            for (int x = 0; x < w; x++) {
+                int l = labels[row + x];
+                if (l == 0) continue;
+
+                int up = row - w + x;
+                if (x > 0) union(l, labels[up - 1]);
+                union(l, labels[up]);
+                if (x < w - 1) union(l, labels[up + 1]);
+            }
+        }
+
+        for (int s = 0; s < mStripes.length; s++) {
+            Stripe stripe = mStripes[s];
+            for (int l = stripe.mFirstLabel; l < stripe.mNextLabel; l++) {
+                if (mArea[l] == 0) continue;
+
+                int root = find(l);
+                if (root == l) continue;
+
+                mArea[root] += mArea[l];
+                mSumX[root] += mSumX[l];
+                mSumY[root] += mSumY[l];
+                mMinX[root] = Math.min(mMinX[root], mMinX[l]);
+                mMinY[root] = Math.min(mMinY[root], mMinY[l]);
+                mMaxX[root] = Math.max(mMaxX[root], mMaxX[l]);
+                mMaxY[root] = Math.max(mMaxY[root], mMaxY[l]);
+                mPerimeter[root] += mPerimeter[l];
+                mArea[l] = 0;
+            }
+        }
+    }
+
+    /**
+     * Filter blobs by area, and scale them back to full frame. Only blob
+     * roots have a non zero area.
+     */
+    private void collectBlobs() {
+        int maxArea = 0;
+        for (int s = 0; s < mStripes.length; s++) {
+            for (int l = mStripes[s].mFirstLabel; l < mStripes[s].mNextLabel; l++) {
+                if (mArea[l] > maxArea)
+                    maxArea = mArea[l];
+            }
+        }
+
+        mBlobs.clear();
+        for (int s = 0; s < mStripes.length; s++) {
+            for (int l = mStripes[s].mFirstLabel; l < mStripes[s].mNextLabel; l++) {
+                if (mArea[l] == 0 || mArea[l] <= mMinContourAreaRatio * maxArea) continue;
+
+                double area = mArea[l];
+                mBlobs.add(area * 4,
+                        (mSumX[l] / area) * 2 + 0.5,
+                        (mSumY[l] / area) * 2 + 0.5,
+                        mMinX[l] * 2, mMinY[l] * 2, mMaxX[l] * 2 + 1, mMaxY[l] * 2 + 1,
+                        mPerimeter[l] * 2);
+            }
+        }
+    }
+
+    private int find(int l) {
+        final int[] parent = mParent;
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    /**
+     * Merge two labels, 0 meaning no label.
+     *
+     * @return The root of the merged label
+     */
+    private int union(int a, int b) {
+        if (b == 0) return a;
+        if (a == 0) return find(b);
+
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            mParent[rootB] = rootA;
+            return rootA;
+        }
+        mParent[rootA] = rootB;
+        return rootB;
+    }
+
+    /**
+     * A range of rows, and the range of labels it may use. Stripes only
+     * write their own rows and labels, so they can run concurrently.
+     */
+    private class Stripe {
+        final int mStartRow;
+        final int mEndRow;
+        final int mFirstLabel;
+        int mNextLabel;
+
+        final Callable<Void> mMaskTask = new Callable<Void>() {
+            @Override
+            public Void call() {
+                buildMask();
+                return null;
+            }
+        };
+
+        final Callable<Void> mLabelTask = new Callable<Void>() {
+            @Override
+            public Void call() {
+                label();
+                return null;
+            }
+        };
+
+        Stripe(int startRow, int endRow, int firstLabel) {
+            mStartRow = startRow;
+            mEndRow = endRow;
+            mFirstLabel = firstLabel;
+            mNextLabel = firstLabel;
+        }
+
+        /**
+         * Build the color mask of the stripe rows, then dilate them horizontally.
+         */
+        void buildMask() {
+            final int w = mWidth;
+            final byte[] mask = mMask;
+            final long[] table = mTable;
+
+            if (mRgbaFrame != null) {
+                final byte[] rgba = mRgbaFrame;
+                final int stride = mFrameWidth * 4;
+                for (int y = mStartRow; y < mEndRow; y++) {
+                    int src = 2 * y * stride;
+                    int dst = y * w;
+                    for (int x = 0; x < w; x++, src += 8, dst++) {
+                        // Average 2x2 pixels, which also acts as a light blur
+                        int r = ((rgba[src] & 0xFF) + (rgba[src + 4] & 0xFF)
+                                + (rgba[src + stride] & 0xFF) + (rgba[src + stride + 4] & 0xFF) + 2) >> 2;
+                        int g = ((rgba[src + 1] & 0xFF) + (rgba[src + 5] & 0xFF)
+                                + (rgba[src + stride + 1] & 0xFF) + (rgba[src + stride + 5] & 0xFF) + 2) >> 2;
+                        int b = ((rgba[src + 2] & 0xFF) + (rgba[src + 6] & 0xFF)
+                                + (rgba[src + stride + 2] & 0xFF) + (rgba[src + stride + 6] & 0xFF) + 2) >> 2;
+                        int i = ColorLookupTable.index(r, g, b);
+                        mask[dst] = ((table[i >>> 6] & (1L << i)) != 0) ? (byte) 1 : 0;
+                    }
+                }
+            } else {
+                final int[] argb = mArgbFrame;
+                final int stride = mFrameWidth;
+                for (int y = mStartRow; y < mEndRow; y++) {
+                    int src = 2 * y * stride;
+                    int dst = y * w;
+                    for (int x = 0; x < w; x++, src += 2, dst++) {
+                        int p0 = argb[src];
+                        int p1 = argb[src + 1];
+                        int p2 = argb[src + stride];
+                        int p3 = argb[src + stride + 1];
+                        int r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+                        int g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+                        int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+                        int i = ColorLookupTable.index(r, g, b);
+                        mask[dst] = ((table[i >>> 6] & (1L << i)) != 0) ? (byte) 1 : 0;
+                    }
+                }
+            }
+
+            // Horizontal pass of a 3x3 dilate, as Imgproc.dilate with a default kernel
+            final byte[] tmp = mDilatedMask;
+            for (int y = mStartRow; y < mEndRow; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int i = row + x;
+                    tmp[i] = (byte) (mask[i] | ((x > 0) ? mask[i - 1] : 0) | ((x < w - 1) ? mask[i + 1] : 0));
+                }
+            }
+        }
+
+        /**
+         * Finish the dilate with a vertical pass, then label 8-connected pixels
+         * with a two pass union-find and accumulate statistics into the root
+         * label of each fragment. Rows above the stripe are left to the merge.
+         */
+        void label() {
+            final int w = mWidth;
+            final int h = mHeight;
+            final byte[] mask = mMask;
+            final byte[] tmp = mDilatedMask;
+            final int[] labels = mLabels;
+            final int[] parent = mParent;
+            int next = mFirstLabel;
+
+            // Vertical dilate pass, reads the neighbour stripes horizontal pass
+            for (int y = mStartRow; y < mEndRow; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int i = row + x;
+                    mask[i] = (byte) (tmp[i] | ((y > 0) ? tmp[i - w] : 0) | ((y < h - 1) ? tmp[i + w] : 0));
+                }
+            }
+
+            // First pass, provisional labels from W, NW, N and NE neighbours
+            for (int y = mStartRow; y < mEndRow; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int i = row + x;
+                    if (mask[i] == 0) {
+                        labels[i] = 0;
+                        continue;
+                    }
+
+                    int l = (x > 0) ? labels[i - 1] : 0;
+                    if (y > mStartRow) {
+                        int up = i - w;
+                        if (x > 0) l = union(l, labels[up - 1]);
+                        l = union(l, labels[up]);
+                        if (x < w - 1) l = union(l, labels[up + 1]);
+                    }
+                    if (l == 0) {
+                        l = next++;
+                        parent[l] = l;
+                    }
+                    labels[i] = l;
+                }
+            }
+            mNextLabel = next;
+
+            for (int l = mFirstLabel; l < next; l++) {
+                mArea[l] = 0;
+                mSumX[l] = 0;
+                mSumY[l] = 0;
+                mMinX[l] = Integer.MAX_VALUE;
+                mMinY[l] = Integer.MAX_VALUE;
+                mMaxX[l] = -1;
+                mMaxY[l] = -1;
+                mPerimeter[l] = 0;
+            }
+
+            // Second pass, accumulate statistics into root labels, pixels
+            // having a 4-neighbour outside the blob make the perimeter
+            for (int y = mStartRow; y < mEndRow; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    int l = labels[row + x];
+                    if (l == 0) continue;
+
+                    int root = find(l);
+                    mArea[root]++;
+                    mSumX[root] += x;
+                    mSumY[root] += y;
+                    if (x < mMinX[root]) mMinX[root] = x;
+                    if (x > mMaxX[root]) mMaxX[root] = x;
+                    if (y < mMinY[root]) mMinY[root] = y;
+                    if (y > mMaxY[root]) mMaxY[root] = y;
+                    if (x == 0 || x == w - 1 || mask[row + x - 1] == 0 || mask[row + x + 1] == 0
+                            || !isSet(row + x - w, y - 1) || !isSet(row + x + w, y + 1))
+                        mPerimeter[root]++;
+                }
+            }
+        }
+
+        /**
+         * Tell if a pixel of the dilated mask is set. Rows of other stripes may
+         * not be dilated yet, so they are computed from the horizontal pass.
+         */
+        private boolean isSet(int i, int y) {
+            if (y < 0 || y >= mHeight) return false;
+            if (y >= mStartRow && y < mEndRow) return mMask[i] != 0;
+
+            final byte[] tmp = mDilatedMask;
+            return (tmp[i] | ((y > 0) ? tmp[i - mWidth] : 0) | ((y < mHeight - 1) ? tmp[i + mWidth] : 0)) != 0;
+        }
+    }
+
+    private static class StripeThreadFactory implements ThreadFactory {
+        private int mCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PixelBlobDetector-" + mCount++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * Picks how many pyramid levels the detector processes, and whether it
+ * blurs, from the measured frame time and the apparent size of the target.
+ * A large nearby target is processed at 1/4 or 1/8 scale, a small distant
+ * one gets full detail as long as the frame budget allows it.
+ */
+public class ResolutionGovernor {
+    public static final int    MIN_PYRAMID_LEVELS = 0;
+    public static final int    MAX_PYRAMID_LEVELS = 3;
+
+    // Fraction of the budget above which processing gets coarser, and below which it may get finer
+    private static final double HIGH_LOAD = 0.9;
+    private static final double LOW_LOAD = 0.5;
+    // Target radius wanted at the processing scale, in pixels
+    private static final double MIN_PROCESSED_RADIUS = 8;
+    private static final double MAX_PROCESSED_RADIUS = 32;
+    // Frames a decision must hold before the level changes
+    private static final int    HOLD_FRAMES = 5;
+    private static final double TIME_SMOOTHING = 0.2;
+    // Each level divides the pixel count by 4
+    private static final double LEVEL_COST_RATIO = 4.0;
+
+    private double             mFrameBudgetNanos = 33e6;
+    private int                mPyramidLevels = 1;
+    private boolean            mIsBlurEnabled = true;
+    private double             mFrameNanos = 0;
+    private int                mPendingStep = 0;
+    private int                mPendingFrames = 0;
+    private long               mLevelChanges = 0;
+
+    /**
+     * Set the processing time allowed per frame.
+     */
+    public void setFrameBudgetMs(double budgetMs) {
+        mFrameBudgetNanos = budgetMs * 1e6;
+    }
+
+    public double getFrameBudgetMs() {
+        return mFrameBudgetNanos / 1e6;
+    }
+
+    public void reset() {
+        mPyramidLevels = 1;
+        mIsBlurEnabled = true;
+        mFrameNanos = 0;
+        mPendingStep = 0;
+        mPendingFrames = 0;
+    }
+
+    public int getPyramidLevels() {
+        return mPyramidLevels;
+    }
+
+    public boolean isBlurEnabled() {
+        return mIsBlurEnabled;
+    }
+
+    /**
+     * Return the smoothed processing time at the current level.
+     */
+    public double getFrameTimeMs() {
+        return mFrameNanos / 1e6;
+    }
+
+    public long getLevelChanges() {
+        return mLevelChanges;
+    }
+
+    /**
+     * Update the levels after a frame was processed.
+     *
+     * @param frameNanos   The time spent processing the frame
+     * @param targetRadius The target radius in full frame pixels, or a negative value if none was found
+     */
+    public void update(long frameNanos, double targetRadius) {
+        mFrameNanos = (mFrameNanos == 0) ? frameNanos
+                : mFrameNanos + TIME_SMOOTHING * (frameNanos - mFrameNanos);
+
+        int step = 0;
+        double load = mFrameNanos / mFrameBudgetNanos;
+        double processedRadius = targetRadius / (1 << mPyramidLevels);
+
+        if (load > HIGH_LOAD) {
+            // Over budget, whatever the target
+            step = 1;
+        } else if (targetRadius >= 0 && processedRadius > MAX_PROCESSED_RADIUS) {
+            step = 1;
+        } else if (targetRadius >= 0 && processedRadius < MIN_PROCESSED_RADIUS) {
+            // Only get finer if the next level should still fit the budget
+            if (load * LEVEL_COST_RATIO < HIGH_LOAD)
+                step = -1;
+        } else if (targetRadius < 0 && load < LOW_LOAD && mPyramidLevels > 1) {
+            // No target, come back to the default level
+            step = -1;
+        }
+
+        if (step == 0 || step != mPendingStep) {
+            mPendingStep = step;
+            mPendingFrames = 0;
+        } else if (++mPendingFrames >= HOLD_FRAMES) {
+            setPyramidLevels(mPyramidLevels + step);
+            mPendingStep = 0;
+            mPendingFrames = 0;
+        }
+
+        // pyrDown already smooths, only blur the finest levels when there is time for it
+        mIsBlurEnabled = mPyramidLevels <= 1 && load < HIGH_LOAD;
+    }
+
+    private void setPyramidLevels(int levels) {
+        levels = Math.max(MIN_PYRAMID_LEVELS, Math.min(MAX_PYRAMID_LEVELS, levels));
+        if (levels == mPyramidLevels) return;
+
+        // Predict the time at the new level until it is measured
+        mFrameNanos *= Math.pow(LEVEL_COST_RATIO, mPyramidLevels - levels);
+        mPyramidLevels = levels;
+        mLevelChanges++;
+    }
+}
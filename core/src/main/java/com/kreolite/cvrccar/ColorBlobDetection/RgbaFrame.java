@@ -0,0 +1,39 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * A RGBA frame held in a byte array, as copied out of a CV_8UC4 Mat. The
+ * pixels are not copied, the same frame is refilled every frame.
+ */
+public class RgbaFrame {
+    private byte[]             mPixels;
+    private int                mWidth;
+    private int                mHeight;
+
+    public RgbaFrame() {
+    }
+
+    public RgbaFrame(byte[] pixels, int width, int height) {
+        set(pixels, width, height);
+    }
+
+    /**
+     * @param pixels The frame bytes, 4 bytes per pixel
+     */
+    public void set(byte[] pixels, int width, int height) {
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public byte[] getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
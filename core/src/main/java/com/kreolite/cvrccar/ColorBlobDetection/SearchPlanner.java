@@ -0,0 +1,157 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+
+/**
+ * Plans the pan sweep looking for a lost target. The sweep starts in the
+ * direction the target was last moving and widens around the position it
+ * was lost at. The pan speed is bounded by the servo speed and by the
+ * camera field of view, so that consecutive frames always overlap.
+ */
+public class SearchPlanner {
+    // Fraction of the field of view the pan may move between two frames
+    private static final double FRAME_OVERLAP = 0.5;
+    // Time step used for the first step, and longest one taken into account
+    private static final double DEFAULT_DT = 0.033;
+    private static final double MAX_DT = 0.1;
+
+    private double             mMinPan, mMaxPan;
+    private double             mFieldOfView;
+    private double             mMaxPanSpeed;
+
+    private boolean            mIsSearching = false;
+    private long               mStartNanos;
+    private long               mLastStepNanos;
+    private double             mCenterPan;
+    private double             mPan;
+    private int                mDirection;
+    private int                mLeg;
+    private double             mLegTarget;
+
+    // Metrics
+    private final LatencyHistogram mReacquireTimes = new LatencyHistogram();
+    private long               mLastReacquireNanos = 0;
+    private long               mAbortedSearches = 0;
+
+    /**
+     * @param minPan      The lowest pan value
+     * @param maxPan      The highest pan value
+     * @param fieldOfView The horizontal camera field of view, in pan units
+     * @param maxPanSpeed The highest pan speed, in pan units per second
+     */
+    public SearchPlanner(double minPan, double maxPan, double fieldOfView, double maxPanSpeed) {
+        mMinPan = minPan;
+        mMaxPan = maxPan;
+        mFieldOfView = fieldOfView;
+        mMaxPanSpeed = maxPanSpeed;
+    }
+
+    public void setFieldOfView(double fieldOfView) {
+        mFieldOfView = fieldOfView;
+    }
+
+    public void setMaxPanSpeed(double maxPanSpeed) {
+        mMaxPanSpeed = maxPanSpeed;
+    }
+
+    public boolean isSearching() {
+        return mIsSearching;
+    }
+
+    /**
+     * Start a search.
+     *
+     * @param pan       The pan when the target was lost
+     * @param direction 1 to start sweeping toward higher pan values, -1 otherwise
+     * @param nowNanos  The current System.nanoTime()
+     */
+    public void start(double pan, int direction, long nowNanos) {
+        mIsSearching = true;
+        mStartNanos = nowNanos;
+        mLastStepNanos = nowNanos;
+        mCenterPan = pan;
+        mPan = pan;
+        mDirection = (direction < 0) ? -1 : 1;
+        mLeg = 0;
+        mLegTarget = legTarget(0);
+    }
+
+    /**
+     * Move the pan one frame further along the sweep.
+     *
+     * @return The new pan value
+     */
+    public double step(long nowNanos) {
+        if (!mIsSearching) return mPan;
+
+        double dt = (nowNanos > mLastStepNanos) ? (nowNanos - mLastStepNanos) / 1e9 : DEFAULT_DT;
+        dt = Math.min(dt, MAX_DT);
+        mLastStepNanos = nowNanos;
+
+        double maxStep = Math.min(mMaxPanSpeed * dt, mFieldOfView * FRAME_OVERLAP);
+        double remaining = mLegTarget - mPan;
+        if (Math.abs(remaining) <= maxStep) {
+            mPan = mLegTarget;
+            mLeg++;
+            mLegTarget = legTarget(mLeg);
+        } else {
+            mPan += Math.signum(remaining) * maxStep;
+        }
+        return mPan;
+    }
+
+    /**
+     * End the search.
+     *
+     * @param isFound True if the target was reacquired
+     */
+    public void stop(boolean isFound, long nowNanos) {
+        if (!mIsSearching) return;
+
+        mIsSearching = false;
+        if (isFound) {
+            mLastReacquireNanos = nowNanos - mStartNanos;
+            mReacquireTimes.record(mLastReacquireNanos);
+        } else {
+            mAbortedSearches++;
+        }
+    }
+
+    /**
+     * Return the time from the start of the search to the target being found again.
+     */
+    public LatencyHistogram getReacquireTimes() {
+        return mReacquireTimes;
+    }
+
+    public double getLastReacquireMs() {
+        return mLastReacquireNanos / 1e6;
+    }
+
+    public long getAbortedSearches() {
+        return mAbortedSearches;
+    }
+
+    @Override
+    public String toString() {
+        return "reacquired=" + mReacquireTimes.getCount() + " aborted=" + mAbortedSearches
+                + String.format(" time to reacquire p50=%.0f p90=%.0f max=%.0f ms",
+                        mReacquireTimes.getValueAtPercentile(50) / 1e6,
+                        mReacquireTimes.getValueAtPercentile(90) / 1e6, mReacquireTimes.getMaxNanos() / 1e6);
+    }
+
+    /**
+     * Legs alternate sides of the lost position, each one going half a field
+     * of view further than the previous one on its side.
+     */
+    private double legTarget(int leg) {
+        int direction = (leg % 2 == 0) ? mDirection : -mDirection;
+        double amplitude = mFieldOfView * FRAME_OVERLAP * (leg + 1);
+        double target = mCenterPan + direction * amplitude;
+
+        // Once both ends are reached, sweep from end to end
+        if (mCenterPan - amplitude <= mMinPan && mCenterPan + amplitude >= mMaxPan)
+            target = (direction > 0) ? mMaxPan : mMinPan;
+        return Math.max(mMinPan, Math.min(mMaxPan, target));
+    }
+}
@@ -0,0 +1,138 @@
+package com.kreolite.cvrccar.ColorBlobDetection;
+
+/**
+ * Constant velocity alpha-beta filter over timestamped target detections.
+ * It predicts where the target will be when a command takes effect, rather
+ * than where it was when the frame was captured, and keeps coasting on the
+ * estimated velocity through short detection gaps.
+ */
+public class TargetPredictor {
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private double             mAlpha = 0.6;
+    private double             mBeta = 0.2;
+    // Time from now until a command reaches the servos
+    private long               mLeadNanos = 50000000L;
+    // Longest time the target is predicted without a detection
+    private long               mMaxCoastNanos = 300000000L;
+    // Longest prediction ahead of the last detection, to bound extrapolation
+    private long               mMaxHorizonNanos = 400000000L;
+
+    private boolean            mIsTracking = false;
+    private long               mLastNanos;
+    private double             mX, mY;
+    private double             mSpeedX, mSpeedY;
+    private double             mPredictedX, mPredictedY;
+
+    /**
+     * Set the filter gains.
+     *
+     * @param alpha Position correction, 0 to 1, higher follows detections more closely
+     * @param beta  Velocity correction, 0 to 1, higher reacts faster to speed changes
+     */
+    public void setGains(double alpha, double beta) {
+        mAlpha = alpha;
+        mBeta = beta;
+    }
+
+    /**
+     * Set how long after now the predicted position is wanted, which is the
+     * time a command takes to reach the car and move the servos.
+     */
+    public void setLeadTimeMs(double leadMs) {
+        mLeadNanos = (long) (leadMs * 1e6);
+    }
+
+    public void setMaxCoastMs(double coastMs) {
+        mMaxCoastNanos = (long) (coastMs * 1e6);
+    }
+
+    public void reset() {
+        mIsTracking = false;
+        mSpeedX = 0;
+        mSpeedY = 0;
+    }
+
+    public boolean isTracking() {
+        return mIsTracking;
+    }
+
+    /**
+     * Add a detection.
+     *
+     * @param timeNanos The System.nanoTime() at which the frame was captured
+     * @param x         The target center
+     * @param y         The target center
+     */
+    public void update(long timeNanos, double x, double y) {
+        long elapsed = timeNanos - mLastNanos;
+        if (!mIsTracking || elapsed > mMaxCoastNanos) {
+            // New target, or the old estimate is too stale to be corrected
+            mX = x;
+            mY = y;
+            mSpeedX = 0;
+            mSpeedY = 0;
+            mLastNanos = timeNanos;
+            mIsTracking = true;
+            return;
+        }
+        if (elapsed <= 0) {
+            // Same or older frame, only correct the position
+            mX += mAlpha * (x - mX);
+            mY += mAlpha * (y - mY);
+            return;
+        }
+
+        double dt = elapsed / NANOS_PER_SECOND;
+        double predictedX = mX + mSpeedX * dt;
+        double predictedY = mY + mSpeedY * dt;
+        double residualX = x - predictedX;
+        double residualY = y - predictedY;
+
+        mX = predictedX + mAlpha * residualX;
+        mY = predictedY + mAlpha * residualY;
+        mSpeedX += mBeta * residualX / dt;
+        mSpeedY += mBeta * residualY / dt;
+        mLastNanos = timeNanos;
+    }
+
+    /**
+     * Predict the target position a lead time after now.
+     *
+     * @param nowNanos The current System.nanoTime()
+     * @return false if there is no target or it was not seen for too long
+     */
+    public boolean predict(long nowNanos) {
+        if (!mIsTracking) return false;
+
+        long sinceDetection = nowNanos - mLastNanos;
+        if (sinceDetection > mMaxCoastNanos) {
+            reset();
+            return false;
+        }
+
+        double dt = Math.max(0, Math.min(mMaxHorizonNanos, sinceDetection + mLeadNanos)) / NANOS_PER_SECOND;
+        mPredictedX = mX + mSpeedX * dt;
+        mPredictedY = mY + mSpeedY * dt;
+        return true;
+    }
+
+    public double getPredictedX() {
+        return mPredictedX;
+    }
+
+    public double getPredictedY() {
+        return mPredictedY;
+    }
+
+    /**
+     * Return the estimated speed in pixels per second.
+     */
+    public double getSpeedX() {
+        return mSpeedX;
+    }
+
+    public double getSpeedY() {
+        return mSpeedY;
+    }
+}
@@ -0,0 +1,198 @@
+package com.kreolite.cvrccar.Pipeline;
+
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the car control at a fixed rate on its own high priority thread,
+ * whatever the camera frame rate. Detection results are handed over through
+ * a triple buffer, each tick works on the newest one.
+ */
+public class ControlLoop {
+    private static final String TAG = "ControlLoop";
+
+    /**
+     * Control task, called on the control thread at every tick.
+     */
+    public interface ControlTask {
+        /**
+         * @param result      The newest detection result, empty until a frame was detected
+         * @param isNewResult True if the result was not seen by a previous tick
+         * @param nowNanos    The System.nanoTime() of the tick
+         */
+        void control(DetectionResult result, boolean isNewResult, long nowNanos);
+    }
+
+    private final ControlTask  mTask;
+    private final TripleBuffer<DetectionResult> mResults;
+    private volatile long      mPeriodNanos = 20000000L;
+    private volatile boolean   mIsRunning = false;
+    private Thread             mThread;
+
+    // Statistics, written by the control thread
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    private final LatencyHistogram mResultAge = new LatencyHistogram();
+    private volatile long      mTicks = 0;
+    private volatile long      mNewResults = 0;
+    private volatile long      mOverruns = 0;
+    private volatile long      mMissedTicks = 0;
+    private volatile long      mStartNanos = 0;
+
+    public ControlLoop(ControlTask task) {
+        mTask = task;
+        mResults = new TripleBuffer<>(new DetectionResult(), new DetectionResult(), new DetectionResult());
+    }
+
+    /**
+     * Set the control rate, 50 Hz by default. Takes effect on the next tick.
+     */
+    public void setRateHz(double rateHz) {
+        mPeriodNanos = (long) (1e9 / rateHz);
+    }
+
+    public double getRateHz() {
+        return 1e9 / mPeriodNanos;
+    }
+
+    public synchronized void start() {
+        if (mIsRunning) return;
+
+        mIsRunning = true;
+        resetStats();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, TAG);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the loop and wait for the current tick to end.
+     */
+    public synchronized void stop() {
+        if (!mIsRunning) return;
+
+        mIsRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Hand a detection result over to the loop, from a single producer thread.
+     *
+     * @return false if the previous result was replaced before any tick used it
+     */
+    public boolean publish(DetectionResult result) {
+        mResults.getWriteBuffer().copyFrom(result);
+        return mResults.publish();
+    }
+
+    private void runLoop() {
+        long next = System.nanoTime();
+        while (mIsRunning) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(this, next - now);
+                continue;
+            }
+
+            mJitter.record(now - next);
+            boolean isNewResult = mResults.update();
+            DetectionResult result = mResults.getReadBuffer();
+            if (isNewResult) {
+                mNewResults++;
+                if (result.getCaptureNanos() != 0)
+                    mResultAge.record(now - result.getCaptureNanos());
+            }
+
+            mTask.control(result, isNewResult, now);
+            mTicks++;
+
+            // Stay on schedule, ticks that cannot be made up are skipped
+            long period = mPeriodNanos;
+            long end = System.nanoTime();
+            if (end - now > period)
+                mOverruns++;
+            next += period;
+            if (end >= next) {
+                long missed = (end - next) / period + 1;
+                mMissedTicks += missed;
+                next += missed * period;
+            }
+        }
+    }
+
+    public void resetStats() {
+        mJitter.reset();
+        mResultAge.reset();
+        mTicks = 0;
+        mNewResults = 0;
+        mOverruns = 0;
+        mMissedTicks = 0;
+        mStartNanos = System.nanoTime();
+    }
+
+    public long getTicks() {
+        return mTicks;
+    }
+
+    /**
+     * Return the number of ticks which had a new detection result.
+     */
+    public long getNewResults() {
+        return mNewResults;
+    }
+
+    /**
+     * Return the number of ticks which lasted longer than a period.
+     */
+    public long getOverruns() {
+        return mOverruns;
+    }
+
+    public long getMissedTicks() {
+        return mMissedTicks;
+    }
+
+    /**
+     * Return the delays between the scheduled and the actual tick times.
+     */
+    public LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Return the delays between frame capture and the first tick using its result.
+     */
+    public LatencyHistogram getResultAge() {
+        return mResultAge;
+    }
+
+    public double getActualRateHz() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        return (elapsed <= 0) ? 0 : mTicks * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "ticks=" + mTicks + String.format(" (%.1f Hz)", getActualRateHz())
+                + " new results=" + mNewResults
+                + String.format(" jitter p50=%.2f p99=%.2f max=%.2f ms", mJitter.getValueAtPercentile(50) / 1e6,
+                        mJitter.getValueAtPercentile(99) / 1e6, mJitter.getMaxNanos() / 1e6)
+                + " overruns=" + mOverruns + " missed=" + mMissedTicks
+                + String.format(" result age p50=%.1f ms", mResultAge.getValueAtPercentile(50) / 1e6);
+    }
+}
@@ -0,0 +1,111 @@
+package com.kreolite.cvrccar.Pipeline;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+
+/**
+ * Output of the detection stage for one frame. Instances are preallocated
+ * and recycled through triple buffers, so they only hold primitives.
+ */
+public class DetectionResult {
+    private long               mFrameSequence = 0;
+    private long               mCaptureNanos = 0;
+    private long               mDetectedNanos = 0;
+    private final BlobStats    mBlobs = new BlobStats();
+    private int                mTargetIndex = -1;
+    private boolean            mHasSearchWindow = false;
+    private int                mSearchWindowX, mSearchWindowY;
+    private int                mSearchWindowWidth, mSearchWindowHeight;
+
+    /**
+     * Clear the result before detecting a new frame.
+     */
+    void reset(long frameSequence, long captureNanos) {
+        mFrameSequence = frameSequence;
+        mCaptureNanos = captureNanos;
+        mDetectedNanos = 0;
+        mBlobs.clear();
+        mTargetIndex = -1;
+        mHasSearchWindow = false;
+    }
+
+    void setDetectedNanos(long detectedNanos) {
+        mDetectedNanos = detectedNanos;
+    }
+
+    public void copyFrom(DetectionResult other) {
+        mFrameSequence = other.mFrameSequence;
+        mCaptureNanos = other.mCaptureNanos;
+        mDetectedNanos = other.mDetectedNanos;
+        mBlobs.copyFrom(other.mBlobs);
+        mTargetIndex = other.mTargetIndex;
+        mHasSearchWindow = other.mHasSearchWindow;
+        mSearchWindowX = other.mSearchWindowX;
+        mSearchWindowY = other.mSearchWindowY;
+        mSearchWindowWidth = other.mSearchWindowWidth;
+        mSearchWindowHeight = other.mSearchWindowHeight;
+    }
+
+    /**
+     * Return the sequence number of the frame, 0 if no frame was detected yet.
+     */
+    public long getFrameSequence() {
+        return mFrameSequence;
+    }
+
+    /**
+     * Return the System.nanoTime() at which the frame was handed to the pipeline.
+     */
+    public long getCaptureNanos() {
+        return mCaptureNanos;
+    }
+
+    public long getDetectedNanos() {
+        return mDetectedNanos;
+    }
+
+    /**
+     * Return the blobs of the frame, filled by the detection stage.
+     */
+    public BlobStats getBlobs() {
+        return mBlobs;
+    }
+
+    /**
+     * Return the blob index of the target, or -1 if none was found.
+     */
+    public int getTargetIndex() {
+        return mTargetIndex;
+    }
+
+    public void setTargetIndex(int targetIndex) {
+        mTargetIndex = targetIndex;
+    }
+
+    public boolean hasSearchWindow() {
+        return mHasSearchWindow;
+    }
+
+    public void setSearchWindow(int x, int y, int width, int height) {
+        mHasSearchWindow = true;
+        mSearchWindowX = x;
+        mSearchWindowY = y;
+        mSearchWindowWidth = width;
+        mSearchWindowHeight = height;
+    }
+
+    public int getSearchWindowX() {
+        return mSearchWindowX;
+    }
+
+    public int getSearchWindowY() {
+        return mSearchWindowY;
+    }
+
+    public int getSearchWindowWidth() {
+        return mSearchWindowWidth;
+    }
+
+    public int getSearchWindowHeight() {
+        return mSearchWindowHeight;
+    }
+}
@@ -0,0 +1,113 @@
+package com.kreolite.cvrccar.Pipeline;
+
+/**
+ * Throughput and latency counters of the pipeline stages. Each counter is
+ * only written by the thread running its stage, readers may see values a
+ * few frames apart.
+ */
+public class PipelineStats {
+    private volatile long      mStartNanos = System.nanoTime();
+
+    // Capture stage, camera thread
+    private volatile long      mCapturedFrames = 0;
+    private volatile long      mDroppedFrames = 0;
+    // Detection stage, detection thread
+    private volatile long      mProcessedFrames = 0;
+    private volatile long      mSkippedResults = 0;
+    private volatile long      mDetectionNanos = 0;
+    private volatile long      mMaxDetectionNanos = 0;
+    // Render stage, camera thread
+    private volatile long      mRenderedResults = 0;
+
+    public void reset() {
+        mCapturedFrames = 0;
+        mDroppedFrames = 0;
+        mProcessedFrames = 0;
+        mDetectionNanos = 0;
+        mMaxDetectionNanos = 0;
+        mRenderedResults = 0;
+        mSkippedResults = 0;
+        mStartNanos = System.nanoTime();
+    }
+
+    void onFrameCaptured(boolean isPreviousDropped) {
+        mCapturedFrames++;
+        if (isPreviousDropped)
+            mDroppedFrames++;
+    }
+
+    /**
+     * @param detectionNanos     Time spent detecting the frame
+     * @param isCommandSkipped   True if the previous result was replaced before the control loop used it
+     */
+    void onFrameProcessed(long detectionNanos, boolean isCommandSkipped) {
+        mProcessedFrames++;
+        if (isCommandSkipped)
+            mSkippedResults++;
+        mDetectionNanos += detectionNanos;
+        if (detectionNanos > mMaxDetectionNanos)
+            mMaxDetectionNanos = detectionNanos;
+    }
+
+    void onResultRendered() {
+        mRenderedResults++;
+    }
+
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    /**
+     * Return the frames replaced by a newer one before being detected.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public long getProcessedFrames() {
+        return mProcessedFrames;
+    }
+
+    public long getRenderedResults() {
+        return mRenderedResults;
+    }
+
+    /**
+     * Return the results replaced by a newer one before the control loop used them.
+     */
+    public long getSkippedResults() {
+        return mSkippedResults;
+    }
+
+    public double getCaptureRate() {
+        return perSecond(mCapturedFrames);
+    }
+
+    public double getDetectionRate() {
+        return perSecond(mProcessedFrames);
+    }
+
+    public double getRenderRate() {
+        return perSecond(mRenderedResults);
+    }
+
+    public double getAverageDetectionMs() {
+        long frames = mProcessedFrames;
+        return (frames == 0) ? 0 : mDetectionNanos / 1e6 / frames;
+    }
+
+    private double perSecond(long count) {
+        long elapsed = System.nanoTime() - mStartNanos;
+        return (elapsed <= 0) ? 0 : count * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "captured=" + mCapturedFrames + String.format(" (%.1f fps)", getCaptureRate())
+                + " processed=" + mProcessedFrames + String.format(" (%.1f fps, %.1f ms, max %.1f ms)",
+                        getDetectionRate(), getAverageDetectionMs(), mMaxDetectionNanos / 1e6)
+                + " dropped=" + mDroppedFrames
+                + " rendered=" + mRenderedResults + String.format(" (%.1f fps)", getRenderRate())
+                + " skipped=" + mSkippedResults;
+    }
+}
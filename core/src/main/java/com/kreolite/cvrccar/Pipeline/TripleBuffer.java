@@ -0,0 +1,90 @@
+package com.kreolite.cvrccar.Pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer between one producer and one consumer. The
+ * producer always has a buffer to fill, the consumer always reads the newest
+ * published buffer, and buffers published before being read are dropped.
+ *
+ * @param <T> The type of the buffers, which are reused and never copied
+ */
+public class TripleBuffer<T> {
+    // The shared state holds the index of the middle buffer and a dirty flag
+    private static final int   INDEX_MASK = 0x3;
+    private static final int   DIRTY = 0x4;
+
+    private final Object[]     mBuffers;
+    private final AtomicInteger mState = new AtomicInteger(1);
+    private int                mWriteIndex = 0;
+    private int                mReadIndex = 2;
+    private volatile long      mPublishedCount = 0;
+    private volatile long      mDroppedCount = 0;
+
+    public TripleBuffer(T first, T second, T third) {
+        mBuffers = new Object[] {first, second, third};
+    }
+
+    /**
+     * Return the buffer the producer is allowed to fill.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) mBuffers[mWriteIndex];
+    }
+
+    /**
+     * Publish the write buffer, producer side.
+     *
+     * @return false if the previous buffer was not read and is dropped
+     */
+    public boolean publish() {
+        int previous = mState.getAndSet(mWriteIndex | DIRTY);
+        mWriteIndex = previous & INDEX_MASK;
+        mPublishedCount++;
+        if ((previous & DIRTY) != 0) {
+            mDroppedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take the newest published buffer if any, consumer side.
+     *
+     * @return true if a new buffer was taken
+     */
+    public boolean update() {
+        if ((mState.get() & DIRTY) == 0) return false;
+
+        int previous = mState.getAndSet(mReadIndex);
+        mReadIndex = previous & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Return true if a buffer was published and not taken yet.
+     */
+    public boolean hasUpdate() {
+        return (mState.get() & DIRTY) != 0;
+    }
+
+    /**
+     * Return the buffer taken by the last update(), consumer side.
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        return (T) mBuffers[mReadIndex];
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * Return the number of buffers overwritten before the consumer took them.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,96 @@
+package com.kreolite.cvrccar.Profiling;
+
+/**
+ * Fixed size latency histogram with log-linear buckets, as HDR histograms
+ * do: values below 64 ns have their own bucket, larger values are kept with
+ * 5 significant bits, about 3% precision. Recording never allocates.
+ *
+ * Only one thread may record, other threads may read approximate values.
+ */
+public class LatencyHistogram {
+    private static final int   SUB_BUCKET_BITS = 5;
+    private static final int   SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^40 ns, about 18 minutes, larger ones are clamped
+    private static final int   MAX_VALUE_BITS = 40;
+    private static final long  MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int   BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final long[]       mCounts = new long[BUCKET_COUNT];
+    private volatile long      mTotalCount = 0;
+    private long               mTotalNanos = 0;
+    private long               mMinNanos = Long.MAX_VALUE;
+    private long               mMaxNanos = 0;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        if (nanos > MAX_VALUE) nanos = MAX_VALUE;
+
+        mCounts[bucketIndex(nanos)]++;
+        mTotalNanos += nanos;
+        if (nanos < mMinNanos) mMinNanos = nanos;
+        if (nanos > mMaxNanos) mMaxNanos = nanos;
+        mTotalCount++;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mCounts[i] = 0;
+        mTotalNanos = 0;
+        mMinNanos = Long.MAX_VALUE;
+        mMaxNanos = 0;
+        mTotalCount = 0;
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMinNanos() {
+        return (mTotalCount == 0) ? 0 : mMinNanos;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    public double getMeanNanos() {
+        long count = mTotalCount;
+        return (count == 0) ? 0 : (double) mTotalNanos / count;
+    }
+
+    /**
+     * Return the value below which a percentage of the samples fall, within
+     * the bucket precision.
+     *
+     * @param percentile The percentage, 50 for the median
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mTotalCount;
+        if (count == 0) return 0;
+
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(bucketHighestValue(i), mMaxNanos);
+        }
+        return mMaxNanos;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) return (int) value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long bucketHighestValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
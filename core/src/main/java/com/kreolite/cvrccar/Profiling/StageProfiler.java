@@ -0,0 +1,158 @@
+package com.kreolite.cvrccar.Profiling;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Times each stage of the vision to actuator path. Every stage has a
+ * histogram over the whole session and a ring of its most recent samples,
+ * all preallocated, so that profiling does not allocate on the frame path.
+ *
+ * Each stage must be recorded by a single thread, stages may be recorded by
+ * different threads.
+ */
+public class StageProfiler {
+    // Stages, in path order
+    public static final int    PYR_DOWN = 0;
+    public static final int    BLUR = 1;
+    // The lookup table does cvtColor and inRange in a single pass
+    public static final int    COLOR_MASK = 2;
+    public static final int    DILATE = 3;
+    public static final int    FIND_CONTOURS = 4;
+    public static final int    BLOB_STATS = 5;
+    public static final int    TARGET_SELECTION = 6;
+    public static final int    CONTROLLER = 7;
+    public static final int    SERIALIZATION = 8;
+    // Recorded by the command writer thread, around the actual write
+    public static final int    SOCKET_WRITE = 9;
+    // From frame capture to the last byte of its command written
+    public static final int    END_TO_END = 10;
+    public static final int    STAGE_COUNT = 11;
+
+    private static final String[] STAGE_NAMES = {"pyrDown", "blur", "colorMask", "dilate", "findContours",
+            "blobStats", "targetSelection", "controller", "serialization", "socketWrite", "endToEnd"};
+    private static final double[] REPORT_PERCENTILES = {50, 95, 99};
+
+    // Number of recent samples kept per stage
+    public static final int    RING_SIZE = 256;
+
+    // Shared instance which records nothing
+    public static final StageProfiler DISABLED = new StageProfiler(false);
+
+    private volatile boolean   mIsEnabled;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final long[][]     mRecent = new long[STAGE_COUNT][RING_SIZE];
+    private final int[]        mRecentIndex = new int[STAGE_COUNT];
+
+    public StageProfiler() {
+        this(true);
+    }
+
+    private StageProfiler(boolean enabled) {
+        mIsEnabled = enabled;
+        for (int i = 0; i < STAGE_COUNT; i++)
+            mHistograms[i] = new LatencyHistogram();
+    }
+
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled && this != DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Return the time a stage starts at, or 0 when disabled.
+     */
+    public long begin() {
+        return mIsEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a stage started at the time returned by begin(), or by the
+     * previous end(), so that consecutive stages can be chained.
+     *
+     * @return The time the stage ended at, or 0 when disabled
+     */
+    public long end(int stage, long start) {
+        if (start == 0 || !mIsEnabled) return 0;
+
+        long now = System.nanoTime();
+        record(stage, now - start);
+        return now;
+    }
+
+    public void record(int stage, long nanos) {
+        if (!mIsEnabled) return;
+
+        mHistograms[stage].record(nanos);
+        int index = mRecentIndex[stage];
+        mRecent[stage][index] = nanos;
+        mRecentIndex[stage] = (index + 1) % RING_SIZE;
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * Copy the most recent samples of a stage, oldest first.
+     *
+     * @param samples The destination, up to RING_SIZE samples are copied
+     * @return The number of samples copied
+     */
+    public int getRecentSamples(int stage, long[] samples) {
+        int count = (int) Math.min(Math.min(RING_SIZE, samples.length), mHistograms[stage].getCount());
+        int end = mRecentIndex[stage];
+        for (int i = 0; i < count; i++)
+            samples[i] = mRecent[stage][(end - count + i + RING_SIZE) % RING_SIZE];
+        return count;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i].reset();
+            mRecentIndex[i] = 0;
+        }
+    }
+
+    /**
+     * Write one line per recorded stage with its count, mean, p50, p95, p99
+     * and max in milliseconds.
+     */
+    public void writeReport(Writer writer) throws IOException {
+        writer.write("stage count mean_ms p50_ms p95_ms p99_ms max_ms\n");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) continue;
+
+            StringBuilder line = new StringBuilder();
+            line.append(STAGE_NAMES[i]).append(' ').append(histogram.getCount());
+            line.append(String.format(" %.3f", histogram.getMeanNanos() / 1e6));
+            for (double percentile : REPORT_PERCENTILES)
+                line.append(String.format(" %.3f", histogram.getValueAtPercentile(percentile) / 1e6));
+            line.append(String.format(" %.3f\n", histogram.getMaxNanos() / 1e6));
+            writer.write(line.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) continue;
+
+            report.append(STAGE_NAMES[i]).append(String.format(" p50=%.2f p95=%.2f p99=%.2f ms; ",
+                    histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(95) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.kreolite.cvrccar.Protocol;
+
+/**
+ * Decides when the PWM command is worth sending. A pan or steering change
+ * is sent when it moves the channel by at least its deadband from the value
+ * last sent, and not sooner than the minimum interval after the last
+ * command. A throttle change is always sent at once. The current command is
+ * sent again at the keepalive interval whatever happens, so a watchdog on
+ * the car can stop it when the phone goes silent.
+ *
+ * A command is never older than the keepalive interval when it reaches the
+ * link, and a change larger than the deadband waits at most the minimum
+ * interval.
+ *
+ * A command only counts as sent once {@link #onSent} is called, so one which
+ * could not be written is tried again at the next check.
+ */
+public class CommandGate {
+    /** Nothing to send */
+    public static final int    SEND_NONE = 0;
+    /** The command changed */
+    public static final int    SEND_CHANGE = 1;
+    /** The command did not change but was not sent for the keepalive interval */
+    public static final int    SEND_KEEPALIVE = 2;
+
+    private static final long  NANOS_PER_MILLI = 1000000L;
+
+    // Smallest change sent, in microseconds of pulse width
+    private int                mPanDeadband = 4;
+    private int                mSteeringDeadband = 4;
+    // Below the 20 ms servo pulse period, so tick jitter never skips a 50 Hz update
+    private long               mMinIntervalNanos = 15 * NANOS_PER_MILLI;
+    private long               mKeepaliveNanos = 250 * NANOS_PER_MILLI;
+
+    private boolean            mHasSent = false;
+    // Set by reset() from any thread, applied by the next check
+    private volatile boolean   mIsResetPending = false;
+    private long               mLastSentNanos;
+    private int                mLastPan, mLastSteering, mLastThrottle;
+
+    // Statistics
+    private long               mUpdateCount;
+    private long               mChangeCount;
+    private long               mKeepaliveCount;
+    private long               mHeldCount;
+
+    /**
+     * Set the smallest pan and steering changes sent, in microseconds.
+     */
+    public void setDeadbands(int pan, int steering) {
+        mPanDeadband = pan;
+        mSteeringDeadband = steering;
+    }
+
+    /**
+     * Set the shortest time between two pan or steering changes.
+     */
+    public void setMinIntervalMs(double intervalMs) {
+        mMinIntervalNanos = (long) (intervalMs * NANOS_PER_MILLI);
+    }
+
+    /**
+     * Set the longest time without sending the command.
+     */
+    public void setKeepaliveMs(double keepaliveMs) {
+        mKeepaliveNanos = (long) (keepaliveMs * NANOS_PER_MILLI);
+    }
+
+    /**
+     * Send the next command whatever its value, after a reconnection for
+     * instance. Can be called from any thread.
+     */
+    public void reset() {
+        mIsResetPending = true;
+    }
+
+    /**
+     * Check the current command, it is taken as sent unless SEND_NONE is returned.
+     *
+     * @return SEND_NONE, SEND_CHANGE or SEND_KEEPALIVE
+     */
+    public int update(long nowNanos, int pan, int steering, int throttle) {
+        int decision = check(nowNanos, pan, steering, throttle);
+        if (decision != SEND_NONE)
+            onSent(decision, nowNanos, pan, steering, throttle);
+        return decision;
+    }
+
+    /**
+     * Check whether the current command should be sent, without taking it as
+     * sent. Call {@link #onSent} once it was written.
+     *
+     * @return SEND_NONE, SEND_CHANGE or SEND_KEEPALIVE
+     */
+    public int check(long nowNanos, int pan, int steering, int throttle) {
+        if (mIsResetPending) {
+            mIsResetPending = false;
+            mHasSent = false;
+        }
+        mUpdateCount++;
+        return decide(nowNanos, pan, steering, throttle);
+    }
+
+    /**
+     * Take a command as sent, with the decision check() returned for it.
+     */
+    public void onSent(int decision, long nowNanos, int pan, int steering, int throttle) {
+        if (decision == SEND_CHANGE)
+            mChangeCount++;
+        else
+            mKeepaliveCount++;
+        mHasSent = true;
+        mLastSentNanos = nowNanos;
+        mLastPan = pan;
+        mLastSteering = steering;
+        mLastThrottle = throttle;
+    }
+
+    private int decide(long nowNanos, int pan, int steering, int throttle) {
+        if (!mHasSent || throttle != mLastThrottle) return SEND_CHANGE;
+
+        long elapsed = nowNanos - mLastSentNanos;
+        if (Math.abs(pan - mLastPan) >= mPanDeadband || Math.abs(steering - mLastSteering) >= mSteeringDeadband) {
+            if (elapsed >= mMinIntervalNanos) return SEND_CHANGE;
+            mHeldCount++;
+        }
+        return (elapsed >= mKeepaliveNanos) ? SEND_KEEPALIVE : SEND_NONE;
+    }
+
+    public long getChangeCount() {
+        return mChangeCount;
+    }
+
+    public long getKeepaliveCount() {
+        return mKeepaliveCount;
+    }
+
+    @Override
+    public String toString() {
+        return "updates=" + mUpdateCount + " changes=" + mChangeCount + " keepalives=" + mKeepaliveCount
+                + " held=" + mHeldCount + " not sent=" + (mUpdateCount - mChangeCount - mKeepaliveCount);
+    }
+}
@@ -0,0 +1,154 @@
+package com.kreolite.cvrccar.Protocol;
+
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+
+/**
+ * Round trip time and loss of the link, measured with pings echoed by the
+ * car. The smoothed round trip and its variation are computed as TCP does
+ * for its retransmission timer, and the round trip histogram covers the
+ * last window of echoes.
+ *
+ * Pings are recorded by the thread sending them and echoes by the thread
+ * reading them, other threads read approximate values.
+ */
+public class LinkQuality {
+    public static final int    WINDOW_SIZE = 128;
+
+    private static final long  NANOS_PER_MICRO = 1000L;
+    // Round trip considered perfect, the quality drops above it
+    private static final double GOOD_RTT_NANOS = 20e6;
+    // No echo for that long and the link is considered down
+    private static final long  STALE_NANOS = 1000000000L;
+    // Echoes older than that are ignored, their time wraps around every 268 s
+    private static final long  MAX_RTT_NANOS = 10000000000L;
+    // Weight of each new ping in the loss ratio
+    private static final double LOSS_GAIN = 1.0 / 16;
+
+    // Sender side
+    private volatile long      mPingCount = 0;
+
+    // Receiver side, the window being filled and the last full one
+    private final LatencyHistogram[] mWindows = {new LatencyHistogram(), new LatencyHistogram()};
+    private int                mWindowIndex = 0;
+    private volatile LatencyHistogram mLastWindow = null;
+    private int                mLastSequence = -1;
+    private volatile long      mEchoCount = 0;
+    private volatile long      mLostCount = 0;
+    private volatile long      mLastEchoNanos = 0;
+    private volatile double    mSmoothedRttNanos = 0;
+    private volatile double    mRttVariationNanos = 0;
+    private volatile double    mLossRatio = 0;
+
+    /**
+     * Return the ping time to send, the low 28 bits of the monotonic time in
+     * microseconds.
+     */
+    public static long toPingTime(long nanos) {
+        return (nanos / NANOS_PER_MICRO) & PingCodec.TIME_MASK;
+    }
+
+    /**
+     * Record a ping being sent, sender side.
+     */
+    public void onPingSent() {
+        mPingCount++;
+    }
+
+    /**
+     * Record an echo, receiver side.
+     *
+     * @param sequence      The sequence number of the ping
+     * @param pingTime      The time in the ping, see toPingTime()
+     * @param receivedNanos The time the echo was received
+     */
+    public void onEcho(int sequence, long pingTime, long receivedNanos) {
+        long rtt = ((toPingTime(receivedNanos) - pingTime) & PingCodec.TIME_MASK) * NANOS_PER_MICRO;
+        if (rtt > MAX_RTT_NANOS) return;
+
+        // A sequence gap is pings lost on the way out or back
+        int lost = (mLastSequence < 0) ? 0 : (sequence - mLastSequence - 1) & PingCodec.SEQUENCE_MASK;
+        mLastSequence = sequence;
+        double loss = mLossRatio;
+        for (int i = 0; i < lost; i++)
+            loss += LOSS_GAIN * (1 - loss);
+        mLossRatio = loss * (1 - LOSS_GAIN);
+        mLostCount += lost;
+
+        if (mEchoCount == 0) {
+            mSmoothedRttNanos = rtt;
+            mRttVariationNanos = rtt / 2.0;
+        } else {
+            mRttVariationNanos = 0.75 * mRttVariationNanos + 0.25 * Math.abs(mSmoothedRttNanos - rtt);
+            mSmoothedRttNanos = 0.875 * mSmoothedRttNanos + 0.125 * rtt;
+        }
+
+        LatencyHistogram window = mWindows[mWindowIndex];
+        window.record(rtt);
+        if (window.getCount() == WINDOW_SIZE) {
+            mLastWindow = window;
+            mWindowIndex = 1 - mWindowIndex;
+            mWindows[mWindowIndex].reset();
+        }
+        mLastEchoNanos = receivedNanos;
+        mEchoCount++;
+    }
+
+    /**
+     * Return the link quality, from 0 for a link down to 1 for a link with
+     * no loss and a round trip, with its variation, under 20 ms.
+     */
+    public double getQuality(long nowNanos) {
+        if (mEchoCount == 0 || nowNanos - mLastEchoNanos > STALE_NANOS) return 0;
+
+        double rtt = mSmoothedRttNanos + 4 * mRttVariationNanos;
+        return (1 - mLossRatio) * Math.min(1, GOOD_RTT_NANOS / Math.max(1, rtt));
+    }
+
+    public double getSmoothedRttNanos() {
+        return mSmoothedRttNanos;
+    }
+
+    /**
+     * Return the mean deviation of the round trip time.
+     */
+    public double getRttVariationNanos() {
+        return mRttVariationNanos;
+    }
+
+    /**
+     * Return the share of pings recently lost, from 0 to 1.
+     */
+    public double getLossRatio() {
+        return mLossRatio;
+    }
+
+    /**
+     * Return the round trip times of the last full window of echoes, or of
+     * the window being filled before the first one is full.
+     */
+    public LatencyHistogram getRtt() {
+        LatencyHistogram window = mLastWindow;
+        return (window != null) ? window : mWindows[0];
+    }
+
+    public long getPingCount() {
+        return mPingCount;
+    }
+
+    public long getEchoCount() {
+        return mEchoCount;
+    }
+
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram rtt = getRtt();
+        return "pings=" + mPingCount + " echoes=" + mEchoCount + " lost=" + mLostCount
+                + String.format(" srtt=%.2f rttvar=%.2f ms loss=%.3f rtt p50=%.2f p99=%.2f ms",
+                mSmoothedRttNanos / 1e6, mRttVariationNanos / 1e6, mLossRatio,
+                rtt.getValueAtPercentile(50) / 1e6, rtt.getValueAtPercentile(99) / 1e6);
+    }
+}
@@ -0,0 +1,90 @@
+package com.kreolite.cvrccar.Protocol;
+
+import static com.kreolite.cvrccar.Protocol.PwmFrameCodec.crc8;
+
+/**
+ * Ping frame sent by the phone to measure the link round trip, 8 bytes. The
+ * car echoes it back unchanged except for the sync byte.
+ *
+ * <pre>
+ * 0 sync 0xA6 for a ping, 0xA7 for its echo
+ * 1 version
+ * 2 sequence, 7 bits, incremented for each ping sent, wraps around
+ * 3 phone monotonic time in microseconds, 28 bits as 4 groups of 7 bits, low first, wraps around
+ * 7 CRC-8 of bytes 1 to 6 as for the command frames, low 7 bits
+ * </pre>
+ *
+ * The CRC does not cover the sync byte so the car echoes a ping by changing
+ * that byte only. Every byte after the sync has its high bit clear, so none
+ * can be taken for the 0xA5 sync of a command frame, and firmware which does
+ * not know pings skips them as bytes outside of a command frame.
+ */
+public final class PingCodec {
+    public static final int    PING_SYNC = 0xA6;
+    public static final int    ECHO_SYNC = 0xA7;
+    public static final int    VERSION = 2;
+    public static final int    FRAME_SIZE = 8;
+    public static final int    SEQUENCE_MASK = 0x7F;
+    public static final long   TIME_MASK = 0x0FFFFFFFL;
+
+    static final int           VERSION_OFFSET = 1;
+    static final int           SEQUENCE_OFFSET = 2;
+    static final int           TIME_OFFSET = 3;
+    static final int           CRC_OFFSET = 7;
+
+    private PingCodec() {
+    }
+
+    /**
+     * Write a ping frame.
+     *
+     * @param timeMicros The phone monotonic time, only its low 28 bits are sent
+     * @return The number of bytes written
+     */
+    public static int encode(int sequence, long timeMicros, byte[] buffer, int offset) {
+        buffer[offset] = (byte) PING_SYNC;
+        buffer[offset + VERSION_OFFSET] = (byte) VERSION;
+        stamp(buffer, offset, sequence, timeMicros);
+        return FRAME_SIZE;
+    }
+
+    /**
+     * Change the sequence number and time of an encoded ping, just before sending it.
+     */
+    public static void stamp(byte[] frame, int offset, int sequence, long timeMicros) {
+        frame[offset + SEQUENCE_OFFSET] = (byte) (sequence & SEQUENCE_MASK);
+        for (int i = 0; i < 4; i++)
+            frame[offset + TIME_OFFSET + i] = (byte) ((timeMicros >> (7 * i)) & 0x7F);
+        frame[offset + CRC_OFFSET] = (byte) (crc8(frame, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET) & 0x7F);
+    }
+
+    /**
+     * Return true if the buffer holds a ping frame.
+     */
+    public static boolean isPing(byte[] buffer, int offset, int length) {
+        return length == FRAME_SIZE && (buffer[offset] & 0xFF) == PING_SYNC;
+    }
+
+    /**
+     * Return true if the frame at offset has the current version and a valid CRC.
+     */
+    public static boolean isValid(byte[] frame, int offset) {
+        return (frame[offset + VERSION_OFFSET] & 0xFF) == VERSION
+                && (crc8(frame, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET) & 0x7F)
+                == (frame[offset + CRC_OFFSET] & 0xFF);
+    }
+
+    public static int getSequence(byte[] frame, int offset) {
+        return frame[offset + SEQUENCE_OFFSET] & 0xFF;
+    }
+
+    /**
+     * Return the time of the ping, the low 28 bits of the phone time in microseconds.
+     */
+    public static long getTimeMicros(byte[] frame, int offset) {
+        long time = 0;
+        for (int i = 0; i < 4; i++)
+            time |= (long) (frame[offset + TIME_OFFSET + i] & 0x7F) << (7 * i);
+        return time;
+    }
+}
@@ -0,0 +1,54 @@
+package com.kreolite.cvrccar.Protocol;
+
+import static com.kreolite.cvrccar.Protocol.PingCodec.*;
+
+/**
+ * Finds ping frames in the byte stream received by the car, one byte at a
+ * time as the firmware does, and turns them into echoes. It runs next to a
+ * PwmFrameDecoder fed with the same bytes.
+ */
+public class PingEchoer {
+    private final byte[]       mFrame = new byte[FRAME_SIZE];
+    private int                mLength = 0;
+    private long               mEchoCount;
+
+    /**
+     * Add a received byte.
+     *
+     * @return true if it completed a valid ping, get its echo with getEcho()
+     */
+    public boolean feed(int value) {
+        if (mLength == 0 && (value & 0xFF) != PING_SYNC) return false;
+
+        mFrame[mLength++] = (byte) value;
+        if (mLength < FRAME_SIZE) return false;
+
+        if (!isValid(mFrame, 0)) {
+            // Start again from the next sync byte in the rest
+            int start = 1;
+            while (start < mLength && (mFrame[start] & 0xFF) != PING_SYNC)
+                start++;
+            mLength -= start;
+            System.arraycopy(mFrame, start, mFrame, 0, mLength);
+            return false;
+        }
+        mLength = 0;
+        mEchoCount++;
+        return true;
+    }
+
+    /**
+     * Write the echo of the last ping.
+     *
+     * @return The number of bytes written
+     */
+    public int getEcho(byte[] buffer, int offset) {
+        System.arraycopy(mFrame, 0, buffer, offset, FRAME_SIZE);
+        buffer[offset] = (byte) ECHO_SYNC;
+        return FRAME_SIZE;
+    }
+
+    public long getEchoCount() {
+        return mEchoCount;
+    }
+}
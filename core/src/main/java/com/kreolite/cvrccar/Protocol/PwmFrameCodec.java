@@ -0,0 +1,131 @@
+package com.kreolite.cvrccar.Protocol;
+
+/**
+ * Binary PWM command frame, 11 bytes instead of about 47 for the JSON
+ * command, written into a caller buffer without allocating.
+ *
+ * <pre>
+ *  0 sync 0xA5
+ *  1 version
+ *  2 sequence, incremented for each frame sent, wraps around
+ *  3 pan PWM, unsigned 16 bit little endian
+ *  5 steering PWM
+ *  7 throttle PWM
+ *  9 flags
+ * 10 CRC-8 of bytes 1 to 9, polynomial 0x07, initial value 0
+ * </pre>
+ *
+ * Multi-byte values are little endian, as the car microcontroller stores
+ * them. See {@link PwmFrameDecoder} for the receiving side.
+ */
+public final class PwmFrameCodec {
+    public static final int    SYNC = 0xA5;
+    public static final int    VERSION = 1;
+    public static final int    FRAME_SIZE = 11;
+
+    /** Neutral throttle step sent before reversing */
+    public static final int    FLAG_NEUTRAL = 0x01;
+
+    static final int           VERSION_OFFSET = 1;
+    static final int           SEQUENCE_OFFSET = 2;
+    static final int           PAN_OFFSET = 3;
+    static final int           STEERING_OFFSET = 5;
+    static final int           THROTTLE_OFFSET = 7;
+    static final int           FLAGS_OFFSET = 9;
+    static final int           CRC_OFFSET = 10;
+
+    // CRC of each byte value, one shift and xor with the polynomial per bit
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private PwmFrameCodec() {
+    }
+
+    /**
+     * Write a frame.
+     *
+     * @param buffer The buffer, at least FRAME_SIZE bytes after offset
+     * @return The number of bytes written
+     */
+    public static int encode(int sequence, int pan, int steering, int throttle, int flags,
+                             byte[] buffer, int offset) {
+        buffer[offset] = (byte) SYNC;
+        buffer[offset + VERSION_OFFSET] = (byte) VERSION;
+        buffer[offset + SEQUENCE_OFFSET] = (byte) sequence;
+        writeShort(pan, buffer, offset + PAN_OFFSET);
+        writeShort(steering, buffer, offset + STEERING_OFFSET);
+        writeShort(throttle, buffer, offset + THROTTLE_OFFSET);
+        buffer[offset + FLAGS_OFFSET] = (byte) flags;
+        buffer[offset + CRC_OFFSET] = (byte) crc8(buffer, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET);
+        return FRAME_SIZE;
+    }
+
+    /**
+     * Change the sequence number of an encoded frame, just before sending it.
+     */
+    public static void setSequence(byte[] frame, int offset, int sequence) {
+        frame[offset + SEQUENCE_OFFSET] = (byte) sequence;
+        frame[offset + CRC_OFFSET] = (byte) crc8(frame, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET);
+    }
+
+    /**
+     * Return true if the buffer starts with a frame sync byte.
+     */
+    public static boolean isFrame(byte[] buffer, int offset, int length) {
+        return length == FRAME_SIZE && (buffer[offset] & 0xFF) == SYNC;
+    }
+
+    /**
+     * Return true if two frames carry the same PWMs and flags, whatever their sequence.
+     */
+    public static boolean isSameCommand(byte[] frame, byte[] other) {
+        for (int i = PAN_OFFSET; i < CRC_OFFSET; i++) {
+            if (frame[i] != other[i]) return false;
+        }
+        return true;
+    }
+
+    public static int getSequence(byte[] frame, int offset) {
+        return frame[offset + SEQUENCE_OFFSET] & 0xFF;
+    }
+
+    public static int getPan(byte[] frame, int offset) {
+        return readShort(frame, offset + PAN_OFFSET);
+    }
+
+    public static int getSteering(byte[] frame, int offset) {
+        return readShort(frame, offset + STEERING_OFFSET);
+    }
+
+    public static int getThrottle(byte[] frame, int offset) {
+        return readShort(frame, offset + THROTTLE_OFFSET);
+    }
+
+    /**
+     * CRC-8 with polynomial 0x07 and initial value 0. The firmware can
+     * compute it bit by bit instead, see CRC_TABLE.
+     */
+    public static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++)
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xFF];
+        return crc;
+    }
+
+    static int readShort(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xFF) | ((buffer[pos + 1] & 0xFF) << 8);
+    }
+
+    static void writeShort(int value, byte[] buffer, int pos) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,136 @@
+package com.kreolite.cvrccar.Protocol;
+
+import static com.kreolite.cvrccar.Protocol.PwmFrameCodec.*;
+
+/**
+ * Decodes PWM command frames from a byte stream, one byte at a time, as
+ * the car firmware receives them. It only uses a fixed buffer and integer
+ * arithmetic so it can be ported to the microcontroller line by line.
+ *
+ * Bytes before a sync byte are skipped. When a frame is corrupted, the
+ * bytes following its sync byte are scanned again for the next frame.
+ */
+public class PwmFrameDecoder {
+    private final byte[]       mFrame = new byte[FRAME_SIZE];
+    private int                mLength = 0;
+
+    // Last decoded frame
+    private int                mSequence = -1;
+    private int                mPan;
+    private int                mSteering;
+    private int                mThrottle;
+    private int                mFlags;
+
+    // Statistics
+    private long               mFrameCount;
+    private long               mCrcErrors;
+    private long               mVersionErrors;
+    private long               mSkippedBytes;
+    private long               mLostFrames;
+
+    /**
+     * Add a received byte.
+     *
+     * @return true if it completed a valid frame, read it with the getters
+     */
+    public boolean feed(int value) {
+        if (mLength == 0 && (value & 0xFF) != SYNC) {
+            mSkippedBytes++;
+            return false;
+        }
+        mFrame[mLength++] = (byte) value;
+        if (mLength < FRAME_SIZE) return false;
+
+        if ((mFrame[VERSION_OFFSET] & 0xFF) != VERSION) {
+            mVersionErrors++;
+            resync();
+            return false;
+        }
+        if (crc8(mFrame, VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET) != (mFrame[CRC_OFFSET] & 0xFF)) {
+            mCrcErrors++;
+            resync();
+            return false;
+        }
+
+        int sequence = mFrame[SEQUENCE_OFFSET] & 0xFF;
+        // A repeated sequence number is a frame sent twice, not 255 lost ones
+        if (mSequence >= 0 && sequence != mSequence)
+            mLostFrames += (sequence - mSequence - 1) & 0xFF;
+        mSequence = sequence;
+        mPan = readShort(mFrame, PAN_OFFSET);
+        mSteering = readShort(mFrame, STEERING_OFFSET);
+        mThrottle = readShort(mFrame, THROTTLE_OFFSET);
+        mFlags = mFrame[FLAGS_OFFSET] & 0xFF;
+        mFrameCount++;
+        mLength = 0;
+        return true;
+    }
+
+    /**
+     * Add received bytes.
+     *
+     * @return The number of valid frames completed, the getters give the last one
+     */
+    public int feed(byte[] data, int offset, int length) {
+        int frames = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (feed(data[i]))
+                frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * Drop the first byte of the invalid frame and start again from the next
+     * sync byte in the rest.
+     */
+    private void resync() {
+        int start = 1;
+        while (start < mLength && (mFrame[start] & 0xFF) != SYNC)
+            start++;
+        mSkippedBytes += start;
+        mLength -= start;
+        System.arraycopy(mFrame, start, mFrame, 0, mLength);
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getPan() {
+        return mPan;
+    }
+
+    public int getSteering() {
+        return mSteering;
+    }
+
+    public int getThrottle() {
+        return mThrottle;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getCrcErrors() {
+        return mCrcErrors;
+    }
+
+    /**
+     * Return the number of frames missing from the sequence numbers.
+     */
+    public long getLostFrames() {
+        return mLostFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + mFrameCount + " crc errors=" + mCrcErrors + " version errors=" + mVersionErrors
+                + " skipped bytes=" + mSkippedBytes + " lost=" + mLostFrames;
+    }
+}
@@ -0,0 +1,72 @@
+package com.kreolite.cvrccar.Protocol;
+
+/**
+ * State reported by the car, reused from one message to the next.
+ */
+public class Telemetry {
+    /** Value of the fields the car did not report */
+    public static final int    UNKNOWN = -1;
+
+    private long               mReceivedNanos;
+    private int                mSequence = UNKNOWN;
+    private boolean            mIsObstacle;
+    private int                mObstacleDistance = UNKNOWN;
+    private int                mBatteryMillivolts = UNKNOWN;
+
+    /**
+     * Set the state of a legacy single character message, which only
+     * reports the obstacle.
+     */
+    public void setObstacle(long receivedNanos, boolean isObstacle) {
+        set(receivedNanos, UNKNOWN, isObstacle, UNKNOWN, UNKNOWN);
+    }
+
+    public void set(long receivedNanos, int sequence, boolean isObstacle, int obstacleDistance,
+                    int batteryMillivolts) {
+        mReceivedNanos = receivedNanos;
+        mSequence = sequence;
+        mIsObstacle = isObstacle;
+        mObstacleDistance = obstacleDistance;
+        mBatteryMillivolts = batteryMillivolts;
+    }
+
+    public void copyFrom(Telemetry other) {
+        set(other.mReceivedNanos, other.mSequence, other.mIsObstacle, other.mObstacleDistance,
+                other.mBatteryMillivolts);
+    }
+
+    public long getReceivedNanos() {
+        return mReceivedNanos;
+    }
+
+    /**
+     * Return the frame sequence number, UNKNOWN for a legacy message.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public boolean isObstacle() {
+        return mIsObstacle;
+    }
+
+    /**
+     * Return the distance to the nearest obstacle in centimeters, or UNKNOWN.
+     */
+    public int getObstacleDistance() {
+        return mObstacleDistance;
+    }
+
+    /**
+     * Return the battery voltage in millivolts, or UNKNOWN.
+     */
+    public int getBatteryMillivolts() {
+        return mBatteryMillivolts;
+    }
+
+    @Override
+    public String toString() {
+        return "sequence=" + mSequence + " obstacle=" + mIsObstacle + " distance=" + mObstacleDistance
+                + " battery=" + mBatteryMillivolts;
+    }
+}
@@ -0,0 +1,85 @@
+package com.kreolite.cvrccar.Protocol;
+
+import static com.kreolite.cvrccar.Protocol.PwmFrameCodec.crc8;
+import static com.kreolite.cvrccar.Protocol.PwmFrameCodec.readShort;
+import static com.kreolite.cvrccar.Protocol.PwmFrameCodec.writeShort;
+
+/**
+ * Binary telemetry frame sent by the car, 9 bytes.
+ *
+ * <pre>
+ * 0 sync 0x5A
+ * 1 version
+ * 2 sequence, incremented for each frame sent, wraps around
+ * 3 flags
+ * 4 obstacle distance in centimeters, unsigned 16 bit little endian, 0xFFFF if unknown
+ * 6 battery voltage in millivolts, 0xFFFF if unknown
+ * 8 CRC-8 of bytes 1 to 7, as for the command frames
+ * </pre>
+ *
+ * The sync byte is neither of the legacy obstacle characters '0' and '1',
+ * so both kinds of message can share the link. See {@link TelemetryReader}
+ * for the receiving side.
+ */
+public final class TelemetryCodec {
+    public static final int    SYNC = 0x5A;
+    public static final int    VERSION = 1;
+    public static final int    FRAME_SIZE = 9;
+
+    /** An obstacle is in front of the car */
+    public static final int    FLAG_OBSTACLE = 0x01;
+
+    static final int           VERSION_OFFSET = 1;
+    static final int           SEQUENCE_OFFSET = 2;
+    static final int           FLAGS_OFFSET = 3;
+    static final int           DISTANCE_OFFSET = 4;
+    static final int           BATTERY_OFFSET = 6;
+    static final int           CRC_OFFSET = 8;
+
+    // Value of the 16 bit fields the car cannot measure
+    private static final int   UNKNOWN_VALUE = 0xFFFF;
+
+    private TelemetryCodec() {
+    }
+
+    /**
+     * Write a frame, as the firmware does.
+     *
+     * @param obstacleDistance  Distance in centimeters, or Telemetry.UNKNOWN
+     * @param batteryMillivolts Battery voltage, or Telemetry.UNKNOWN
+     * @return The number of bytes written
+     */
+    public static int encode(int sequence, boolean isObstacle, int obstacleDistance, int batteryMillivolts,
+                             byte[] buffer, int offset) {
+        buffer[offset] = (byte) SYNC;
+        buffer[offset + VERSION_OFFSET] = (byte) VERSION;
+        buffer[offset + SEQUENCE_OFFSET] = (byte) sequence;
+        buffer[offset + FLAGS_OFFSET] = (byte) (isObstacle ? FLAG_OBSTACLE : 0);
+        writeShort(obstacleDistance < 0 ? UNKNOWN_VALUE : obstacleDistance, buffer, offset + DISTANCE_OFFSET);
+        writeShort(batteryMillivolts < 0 ? UNKNOWN_VALUE : batteryMillivolts, buffer, offset + BATTERY_OFFSET);
+        buffer[offset + CRC_OFFSET] = (byte) crc8(buffer, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET);
+        return FRAME_SIZE;
+    }
+
+    /**
+     * Return true if the frame at offset has the current version and a valid CRC.
+     */
+    static boolean isValid(byte[] frame, int offset) {
+        return (frame[offset + VERSION_OFFSET] & 0xFF) == VERSION
+                && crc8(frame, offset + VERSION_OFFSET, CRC_OFFSET - VERSION_OFFSET)
+                == (frame[offset + CRC_OFFSET] & 0xFF);
+    }
+
+    /**
+     * Read a valid frame into telemetry.
+     */
+    static void decode(byte[] frame, int offset, long receivedNanos, Telemetry telemetry) {
+        int distance = readShort(frame, offset + DISTANCE_OFFSET);
+        int battery = readShort(frame, offset + BATTERY_OFFSET);
+        telemetry.set(receivedNanos,
+                frame[offset + SEQUENCE_OFFSET] & 0xFF,
+                (frame[offset + FLAGS_OFFSET] & FLAG_OBSTACLE) != 0,
+                distance == UNKNOWN_VALUE ? Telemetry.UNKNOWN : distance,
+                battery == UNKNOWN_VALUE ? Telemetry.UNKNOWN : battery);
+    }
+}
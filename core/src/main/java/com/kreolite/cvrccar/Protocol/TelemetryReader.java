@@ -0,0 +1,204 @@
+package com.kreolite.cvrccar.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.kreolite.cvrccar.Protocol.TelemetryCodec.*;
+
+/**
+ * Reads the messages sent by the car. Bytes are read in bulk into a ring
+ * buffer and parsed incrementally, a message split across reads is
+ * completed by the next one. Nothing is allocated after construction.
+ *
+ * Two kinds of messages are understood: the legacy obstacle characters
+ * '0' and '1', and telemetry frames, see {@link TelemetryCodec}. Ping echoes,
+ * see {@link PingCodec}, go to the link quality instead. Other bytes,
+ * such as line delimiters, are skipped. The bytes of a corrupted frame are
+ * scanned again and may hold a legacy character, so a car sending frames
+ * should not send the legacy characters too.
+ */
+public class TelemetryReader {
+    public static final int    DEFAULT_CAPACITY = 1024;
+
+    private static final int   LEGACY_CLEAR = '0';
+    private static final int   LEGACY_OBSTACLE = '1';
+
+    // Ring of received bytes, capacity is a power of two
+    private final byte[]       mRing;
+    private final int          mMask;
+    private int                mHead = 0;
+    private int                mCount = 0;
+
+    // Frame being checked, copied out of the ring when it wraps around
+    private final byte[]       mFrame = new byte[FRAME_SIZE];
+    private int                mSequence = -1;
+    private final byte[]       mEcho = new byte[PingCodec.FRAME_SIZE];
+    private LinkQuality        mLinkQuality;
+
+    // Statistics
+    private long               mReadCount;
+    private long               mByteCount;
+    private long               mFrameCount;
+    private long               mLegacyCount;
+    private long               mEchoCount;
+    private long               mFrameErrors;
+    private long               mSkippedBytes;
+    private long               mLostFrames;
+
+    public TelemetryReader() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The ring size, rounded up to a power of two and to a whole frame
+     */
+    public TelemetryReader(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * FRAME_SIZE) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Set where ping echoes are recorded, or null to skip them.
+     */
+    public void setLinkQuality(LinkQuality linkQuality) {
+        mLinkQuality = linkQuality;
+    }
+
+    /**
+     * Read the bytes available from the stream, blocking until there is at
+     * least one. Parse them with next() before reading again.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        // Parsing leaves less than a frame, a full ring means next() was not called
+        if (mCount == mRing.length) {
+            drop(FRAME_SIZE);
+            mSkippedBytes += FRAME_SIZE;
+        }
+
+        int tail = (mHead + mCount) & mMask;
+        int free = (tail >= mHead && mCount < mRing.length) ? mRing.length - tail : mHead - tail;
+        int bytes = in.read(mRing, tail, free);
+        if (bytes > 0) {
+            mCount += bytes;
+            mReadCount++;
+            mByteCount += bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Add received bytes, for callers which read the stream themselves.
+     *
+     * @return The number of bytes added, the ring keeps at most its capacity
+     */
+    public int write(byte[] data, int offset, int length) {
+        int bytes = Math.min(length, mRing.length - mCount);
+        for (int i = 0; i < bytes; i++)
+            mRing[(mHead + mCount + i) & mMask] = data[offset + i];
+        mCount += bytes;
+        mByteCount += bytes;
+        return bytes;
+    }
+
+    /**
+     * Parse the next complete message.
+     *
+     * @param receivedNanos The time the bytes were received
+     * @param telemetry     Receives the message
+     * @return false if no complete message is buffered, telemetry is left unchanged
+     */
+    public boolean next(long receivedNanos, Telemetry telemetry) {
+        while (mCount > 0) {
+            int value = mRing[mHead] & 0xFF;
+            if (value == LEGACY_CLEAR || value == LEGACY_OBSTACLE) {
+                drop(1);
+                telemetry.setObstacle(receivedNanos, value == LEGACY_OBSTACLE);
+                mLegacyCount++;
+                return true;
+            }
+            if (value == PingCodec.ECHO_SYNC) {
+                if (mCount < PingCodec.FRAME_SIZE) return false;
+
+                for (int i = 0; i < PingCodec.FRAME_SIZE; i++)
+                    mEcho[i] = mRing[(mHead + i) & mMask];
+                if (!PingCodec.isValid(mEcho, 0)) {
+                    drop(1);
+                    mFrameErrors++;
+                    continue;
+                }
+                drop(PingCodec.FRAME_SIZE);
+                if (mLinkQuality != null)
+                    mLinkQuality.onEcho(PingCodec.getSequence(mEcho, 0), PingCodec.getTimeMicros(mEcho, 0),
+                            receivedNanos);
+                mEchoCount++;
+                continue;
+            }
+            if (value != SYNC) {
+                drop(1);
+                mSkippedBytes++;
+                continue;
+            }
+            if (mCount < FRAME_SIZE) return false;
+
+            for (int i = 0; i < FRAME_SIZE; i++)
+                mFrame[i] = mRing[(mHead + i) & mMask];
+            if (!isValid(mFrame, 0)) {
+                // Scan again from the byte after the sync byte
+                drop(1);
+                mFrameErrors++;
+                continue;
+            }
+            drop(FRAME_SIZE);
+            decode(mFrame, 0, receivedNanos, telemetry);
+
+            int sequence = telemetry.getSequence();
+            if (mSequence >= 0 && sequence != mSequence)
+                mLostFrames += (sequence - mSequence - 1) & 0xFF;
+            mSequence = sequence;
+            mFrameCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private void drop(int bytes) {
+        mHead = (mHead + bytes) & mMask;
+        mCount -= bytes;
+    }
+
+    /**
+     * Return the number of bytes received and not parsed yet.
+     */
+    public int getBufferedCount() {
+        return mCount;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getLegacyCount() {
+        return mLegacyCount;
+    }
+
+    public long getFrameErrors() {
+        return mFrameErrors;
+    }
+
+    /**
+     * Return the number of frames missing from the sequence numbers.
+     */
+    public long getLostFrames() {
+        return mLostFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "reads=" + mReadCount + " bytes=" + mByteCount + " frames=" + mFrameCount
+                + " legacy=" + mLegacyCount + " echoes=" + mEchoCount + " errors=" + mFrameErrors
+                + " skipped bytes=" + mSkippedBytes + " lost=" + mLostFrames;
+    }
+}
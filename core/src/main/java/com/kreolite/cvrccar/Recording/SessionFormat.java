@@ -0,0 +1,74 @@
+package com.kreolite.cvrccar.Recording;
+
+/**
+ * Layout of a session file. A fixed header is followed by a ring of
+ * records, the oldest ones being overwritten when the ring is full.
+ *
+ * Header, big endian:
+ * <pre>
+ *  0 int  magic "CVRS"
+ *  4 int  version
+ *  8 int  ring capacity in bytes
+ * 12 int  head, ring offset of the next record
+ * 16 int  tail, ring offset of the oldest record
+ * 20 int  bytes used between tail and head
+ * 24 long records in the ring
+ * 32 long records overwritten
+ * 40 long session start, in milliseconds since the epoch
+ * 48 int  1 if there is an initial color
+ * 64      initial color, as a color record payload
+ * </pre>
+ *
+ * The initial color is the last color or adapted color record overwritten,
+ * which is the color in use when the oldest record in the ring was recorded.
+ *
+ * Records are 8 byte aligned, and start with their type, payload length
+ * and System.nanoTime() timestamp. A record which does not fit before the
+ * end of the ring is preceded by a padding record, or by nothing when there
+ * is no room left for a record header.
+ */
+public final class SessionFormat {
+    public static final int    MAGIC = 0x43565253;
+    public static final int    VERSION = 1;
+    public static final int    HEADER_SIZE = 128;
+
+    static final int           MAGIC_OFFSET = 0;
+    static final int           VERSION_OFFSET = 4;
+    static final int           CAPACITY_OFFSET = 8;
+    static final int           HEAD_OFFSET = 12;
+    static final int           TAIL_OFFSET = 16;
+    static final int           USED_OFFSET = 20;
+    static final int           COUNT_OFFSET = 24;
+    static final int           OVERWRITTEN_OFFSET = 32;
+    static final int           START_OFFSET = 40;
+    static final int           HAS_INITIAL_COLOR_OFFSET = 48;
+    static final int           INITIAL_COLOR_OFFSET = 64;
+
+    /** Record header: int type, int payload length, long time */
+    public static final int    RECORD_HEADER_SIZE = 16;
+    static final int           ALIGNMENT = 8;
+
+    /** Unused space before the end of the ring */
+    public static final int    TYPE_PAD = 0;
+    /** long frame sequence, int width, int height, int downsampling, then RGBA pixels */
+    public static final int    TYPE_FRAME = 1;
+    /** double[4] HSV color then double[4] color radius */
+    public static final int    TYPE_COLOR = 2;
+    /** long frame sequence, long capture time, int target index, then the blobs */
+    public static final int    TYPE_DETECTION = 3;
+    /** int length, then the bytes written to the car */
+    public static final int    TYPE_COMMAND = 4;
+    /** Color moved by the adaptation, which keeps the tracked target, as TYPE_COLOR */
+    public static final int    TYPE_ADAPTED_COLOR = 5;
+
+    static final int           FRAME_HEADER_SIZE = 8 + 4 + 4 + 4;
+    static final int           COLOR_SIZE = 8 * 8;
+    static final int           DETECTION_HEADER_SIZE = 8 + 8 + 4;
+
+    private SessionFormat() {
+    }
+
+    static int align(int size) {
+        return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+}
@@ -0,0 +1,242 @@
+package com.kreolite.cvrccar.Recording;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.kreolite.cvrccar.Recording.SessionFormat.*;
+
+/**
+ * Reads the records of a session file in recording order, oldest first.
+ * Call next() to move to a record, then the reader matching its type.
+ */
+public class SessionReader {
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int          mCapacity;
+    private final long         mStartMillis;
+    private final long         mRecordCount;
+    private final long         mOverwrittenCount;
+
+    private int                mPosition;
+    private int                mRemaining;
+    private int                mType;
+    private int                mLength;
+    private long               mTimeNanos;
+    private int                mPayload;
+
+    public SessionReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+            if (mFile.length() < HEADER_SIZE || mBuffer.getInt(MAGIC_OFFSET) != MAGIC)
+                throw new IOException(file + " is not a session file");
+            if (mBuffer.getInt(VERSION_OFFSET) != VERSION)
+                throw new IOException(file + " has unsupported version " + mBuffer.getInt(VERSION_OFFSET));
+            mCapacity = mBuffer.getInt(CAPACITY_OFFSET);
+            if (HEADER_SIZE + (long) mCapacity > mFile.length())
+                throw new IOException(file + " is truncated");
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+
+        mStartMillis = mBuffer.getLong(START_OFFSET);
+        mRecordCount = mBuffer.getLong(COUNT_OFFSET);
+        mOverwrittenCount = mBuffer.getLong(OVERWRITTEN_OFFSET);
+        rewind();
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Go back to the oldest record.
+     */
+    public void rewind() {
+        mPosition = mBuffer.getInt(TAIL_OFFSET);
+        mRemaining = mBuffer.getInt(USED_OFFSET);
+        mType = TYPE_PAD;
+    }
+
+    /**
+     * Return the session start, in milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Return the number of records overwritten before the recording ended.
+     */
+    public long getOverwrittenCount() {
+        return mOverwrittenCount;
+    }
+
+    /**
+     * Return true if a color was selected before the oldest record.
+     */
+    public boolean hasInitialColor() {
+        return mBuffer.getInt(HAS_INITIAL_COLOR_OFFSET) != 0;
+    }
+
+    /**
+     * Copy the color selected before the oldest record.
+     */
+    public void readInitialColor(double[] hsvColor, double[] colorRadius) {
+        readColor(INITIAL_COLOR_OFFSET, hsvColor, colorRadius);
+    }
+
+    /**
+     * Move to the next record, skipping padding.
+     *
+     * @return false at the end of the session
+     */
+    public boolean next() throws IOException {
+        while (mRemaining > 0) {
+            int remaining = mCapacity - mPosition;
+            if (remaining < RECORD_HEADER_SIZE) {
+                skip(remaining);
+                continue;
+            }
+
+            int offset = HEADER_SIZE + mPosition;
+            mType = mBuffer.getInt(offset);
+            mLength = mBuffer.getInt(offset + 4);
+            mTimeNanos = mBuffer.getLong(offset + 8);
+            mPayload = offset + RECORD_HEADER_SIZE;
+            int size = align(RECORD_HEADER_SIZE + mLength);
+            if (mLength < 0 || size > remaining || size > mRemaining)
+                throw new IOException("Corrupted record at " + mPosition);
+
+            skip(size);
+            if (mType != TYPE_PAD) return true;
+        }
+        mType = TYPE_PAD;
+        return false;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Return the record System.nanoTime() timestamp. For frames, this is the capture time.
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    public long getFrameSequence() {
+        checkType(TYPE_FRAME);
+        return mBuffer.getLong(mPayload);
+    }
+
+    public int getFrameWidth() {
+        checkType(TYPE_FRAME);
+        return mBuffer.getInt(mPayload + 8);
+    }
+
+    public int getFrameHeight() {
+        checkType(TYPE_FRAME);
+        return mBuffer.getInt(mPayload + 12);
+    }
+
+    /**
+     * Return the factor the frame was downsampled by when recorded.
+     */
+    public int getFrameDownsampling() {
+        checkType(TYPE_FRAME);
+        return mBuffer.getInt(mPayload + 16);
+    }
+
+    /**
+     * Copy the RGBA pixels of the frame.
+     *
+     * @param rgba At least width * height * 4 bytes long
+     */
+    public void readFrame(byte[] rgba) {
+        checkType(TYPE_FRAME);
+        mBuffer.position(mPayload + FRAME_HEADER_SIZE);
+        mBuffer.get(rgba, 0, getFrameWidth() * getFrameHeight() * 4);
+    }
+
+    /**
+     * Copy the selected or adapted color.
+     *
+     * @param hsvColor    Receives the H, S, V and alpha values
+     * @param colorRadius Receives the color radius of each channel
+     */
+    public void readColor(double[] hsvColor, double[] colorRadius) {
+        if (mType != TYPE_ADAPTED_COLOR)
+            checkType(TYPE_COLOR);
+        readColor(mPayload, hsvColor, colorRadius);
+    }
+
+    public long getDetectionSequence() {
+        checkType(TYPE_DETECTION);
+        return mBuffer.getLong(mPayload);
+    }
+
+    public long getDetectionCaptureNanos() {
+        checkType(TYPE_DETECTION);
+        return mBuffer.getLong(mPayload + 8);
+    }
+
+    /**
+     * Copy the detected blobs.
+     *
+     * @return The index of the selected blob, or -1
+     */
+    public int readDetection(BlobStats blobs) {
+        checkType(TYPE_DETECTION);
+        mBuffer.position(mPayload + DETECTION_HEADER_SIZE);
+        blobs.readFrom(mBuffer);
+        return mBuffer.getInt(mPayload + 16);
+    }
+
+    public int getCommandLength() {
+        checkType(TYPE_COMMAND);
+        return mBuffer.getInt(mPayload);
+    }
+
+    /**
+     * Copy the bytes written to the car.
+     *
+     * @return The number of bytes copied
+     */
+    public int readCommand(byte[] command) {
+        int length = getCommandLength();
+        mBuffer.position(mPayload + 4);
+        mBuffer.get(command, 0, length);
+        return length;
+    }
+
+    private void readColor(int offset, double[] hsvColor, double[] colorRadius) {
+        for (int i = 0; i < 4; i++)
+            hsvColor[i] = mBuffer.getDouble(offset + i * 8);
+        for (int i = 0; i < 4; i++)
+            colorRadius[i] = mBuffer.getDouble(offset + 32 + i * 8);
+    }
+
+    private void skip(int size) {
+        mPosition += size;
+        if (mPosition == mCapacity)
+            mPosition = 0;
+        mRemaining -= size;
+    }
+
+    private void checkType(int type) {
+        if (mType != type)
+            throw new IllegalStateException("Record type is " + mType + ", not " + type);
+    }
+}
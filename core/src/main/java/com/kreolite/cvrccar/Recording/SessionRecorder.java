@@ -0,0 +1,283 @@
+package com.kreolite.cvrccar.Recording;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.kreolite.cvrccar.Recording.SessionFormat.*;
+
+/**
+ * Records a driving session into a memory-mapped ring file. Recording only
+ * copies into mapped memory, the system writes it to storage in the
+ * background, so the recording threads never wait on file I/O. When the
+ * ring is full the oldest records are overwritten, the file always holds
+ * the latest part of the session.
+ *
+ * Records can be added from any thread.
+ */
+public class SessionRecorder {
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int          mCapacity;
+    private int                mHead = 0;
+    private int                mTail = 0;
+    private int                mUsed = 0;
+    private long               mCount = 0;
+    private long               mOverwritten = 0;
+    private long               mDropped = 0;
+    private boolean            mIsClosed = false;
+
+    // Frames are stored at a reduced resolution to save space
+    private int                mFrameDownsampling = 1;
+    private byte[]             mRowBuffer = new byte[0];
+
+    /**
+     * Create the session file, replacing any existing one.
+     *
+     * @param file     The session file
+     * @param capacity The ring size in bytes, the file is slightly larger
+     */
+    public SessionRecorder(File file, int capacity) throws IOException {
+        mCapacity = capacity & ~(ALIGNMENT - 1);
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + mCapacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+
+        mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        mBuffer.putInt(VERSION_OFFSET, VERSION);
+        mBuffer.putInt(CAPACITY_OFFSET, mCapacity);
+        mBuffer.putLong(START_OFFSET, System.currentTimeMillis());
+        writePositions();
+    }
+
+    /**
+     * Keep one pixel out of factor in both directions for recorded frames.
+     */
+    public synchronized void setFrameDownsampling(int factor) {
+        mFrameDownsampling = Math.max(1, factor);
+    }
+
+    public synchronized void recordColor(long timeNanos, double[] hsvColor, double[] colorRadius) {
+        recordColor(TYPE_COLOR, timeNanos, hsvColor, colorRadius);
+    }
+
+    /**
+     * Record a color moved by the adaptation, after the frame it was adapted on.
+     */
+    public synchronized void recordAdaptedColor(long timeNanos, double[] hsvColor, double[] colorRadius) {
+        recordColor(TYPE_ADAPTED_COLOR, timeNanos, hsvColor, colorRadius);
+    }
+
+    private void recordColor(int type, long timeNanos, double[] hsvColor, double[] colorRadius) {
+        if (!begin(type, COLOR_SIZE, timeNanos)) return;
+
+        for (int i = 0; i < 4; i++)
+            mBuffer.putDouble((i < hsvColor.length) ? hsvColor[i] : 0);
+        for (int i = 0; i < 4; i++)
+            mBuffer.putDouble((i < colorRadius.length) ? colorRadius[i] : 0);
+        end(COLOR_SIZE);
+    }
+
+    /**
+     * Record a RGBA frame, downsampled if set so.
+     *
+     * @param sequence     The frame sequence number
+     * @param captureNanos The System.nanoTime() at which the frame was captured
+     */
+    public synchronized void recordFrame(long sequence, long captureNanos, byte[] rgba, int width, int height) {
+        int factor = mFrameDownsampling;
+        int recordedWidth = width / factor;
+        int recordedHeight = height / factor;
+        int length = FRAME_HEADER_SIZE + recordedWidth * recordedHeight * 4;
+        if (!begin(TYPE_FRAME, length, captureNanos)) return;
+
+        mBuffer.putLong(sequence);
+        mBuffer.putInt(recordedWidth);
+        mBuffer.putInt(recordedHeight);
+        mBuffer.putInt(factor);
+        if (factor == 1) {
+            mBuffer.put(rgba, 0, width * height * 4);
+        } else {
+            // Gather each kept row before one bulk copy into the mapped memory
+            int rowLength = recordedWidth * 4;
+            if (mRowBuffer.length < rowLength)
+                mRowBuffer = new byte[rowLength];
+            for (int y = 0; y < recordedHeight; y++) {
+                int src = y * factor * width * 4;
+                for (int x = 0, dst = 0; x < recordedWidth; x++, src += factor * 4, dst += 4) {
+                    mRowBuffer[dst] = rgba[src];
+                    mRowBuffer[dst + 1] = rgba[src + 1];
+                    mRowBuffer[dst + 2] = rgba[src + 2];
+                    mRowBuffer[dst + 3] = rgba[src + 3];
+                }
+                mBuffer.put(mRowBuffer, 0, rowLength);
+            }
+        }
+        end(length);
+    }
+
+    /**
+     * Record the blobs found in a frame and the selected one.
+     *
+     * @param detectedNanos The System.nanoTime() at which the detection ended
+     */
+    public synchronized void recordDetection(long detectedNanos, long sequence, long captureNanos,
+                                             BlobStats blobs, int targetIndex) {
+        int length = DETECTION_HEADER_SIZE + blobs.getSerializedSize();
+        if (!begin(TYPE_DETECTION, length, detectedNanos)) return;
+
+        mBuffer.putLong(sequence);
+        mBuffer.putLong(captureNanos);
+        mBuffer.putInt(targetIndex);
+        blobs.writeTo(mBuffer);
+        end(length);
+    }
+
+    /**
+     * Record bytes written to the car.
+     */
+    public synchronized void recordCommand(long timeNanos, byte[] command, int count) {
+        int length = 4 + count;
+        if (!begin(TYPE_COMMAND, length, timeNanos)) return;
+
+        mBuffer.putInt(count);
+        mBuffer.put(command, 0, count);
+        end(length);
+    }
+
+    /**
+     * Flush the records to storage and close the file, records added
+     * afterwards are ignored.
+     */
+    public synchronized void close() throws IOException {
+        if (mIsClosed) return;
+
+        mIsClosed = true;
+        mBuffer.force();
+        mFile.close();
+    }
+
+    public synchronized long getRecordCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the number of records lost because the ring was full.
+     */
+    public synchronized long getOverwrittenCount() {
+        return mOverwritten;
+    }
+
+    /**
+     * Return the number of records larger than the whole ring, which were not recorded.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "records=" + mCount + " overwritten=" + mOverwritten + " dropped=" + mDropped
+                + String.format(" used=%.1f/%.1f MB", mUsed / 1e6, mCapacity / 1e6);
+    }
+
+    /**
+     * Make room for a record and write its header.
+     *
+     * @return false if the record cannot be written
+     */
+    private boolean begin(int type, int length, long timeNanos) {
+        if (mIsClosed) return false;
+
+        int size = align(RECORD_HEADER_SIZE + length);
+        if (size > mCapacity) {
+            mDropped++;
+            return false;
+        }
+
+        // Pad the end of the ring when the record does not fit before it
+        if (mHead + size > mCapacity) {
+            int remaining = mCapacity - mHead;
+            makeRoom(remaining);
+            if (remaining >= RECORD_HEADER_SIZE)
+                writeRecordHeader(TYPE_PAD, remaining - RECORD_HEADER_SIZE, timeNanos);
+            mUsed += remaining;
+            mHead = 0;
+        }
+
+        makeRoom(size);
+        // The header must not point to overwritten records while this one is written
+        writePositions();
+        writeRecordHeader(type, length, timeNanos);
+        return true;
+    }
+
+    private void end(int length) {
+        int size = align(RECORD_HEADER_SIZE + length);
+        mHead += size;
+        if (mHead == mCapacity)
+            mHead = 0;
+        mUsed += size;
+        mCount++;
+        writePositions();
+    }
+
+    /**
+     * Drop the oldest records until there are size free bytes.
+     */
+    private void makeRoom(int size) {
+        while (mCapacity - mUsed < size) {
+            int remaining = mCapacity - mTail;
+            int recordSize;
+            if (remaining < RECORD_HEADER_SIZE) {
+                recordSize = remaining;
+            } else {
+                int type = mBuffer.getInt(HEADER_SIZE + mTail);
+                recordSize = align(RECORD_HEADER_SIZE + mBuffer.getInt(HEADER_SIZE + mTail + 4));
+                if (type == TYPE_COLOR || type == TYPE_ADAPTED_COLOR)
+                    keepInitialColor(HEADER_SIZE + mTail + RECORD_HEADER_SIZE);
+                if (type != TYPE_PAD) {
+                    mCount--;
+                    mOverwritten++;
+                }
+            }
+            mTail += recordSize;
+            if (mTail == mCapacity)
+                mTail = 0;
+            mUsed -= recordSize;
+        }
+    }
+
+    /**
+     * Keep the color of an overwritten color record in the file header.
+     */
+    private void keepInitialColor(int payload) {
+        for (int i = 0; i < COLOR_SIZE; i += 8)
+            mBuffer.putLong(INITIAL_COLOR_OFFSET + i, mBuffer.getLong(payload + i));
+        mBuffer.putInt(HAS_INITIAL_COLOR_OFFSET, 1);
+    }
+
+    private void writeRecordHeader(int type, int length, long timeNanos) {
+        mBuffer.position(HEADER_SIZE + mHead);
+        mBuffer.putInt(type);
+        mBuffer.putInt(length);
+        mBuffer.putLong(timeNanos);
+    }
+
+    private void writePositions() {
+        mBuffer.putInt(HEAD_OFFSET, mHead);
+        mBuffer.putInt(TAIL_OFFSET, mTail);
+        mBuffer.putInt(USED_OFFSET, mUsed);
+        mBuffer.putLong(COUNT_OFFSET, mCount);
+        mBuffer.putLong(OVERWRITTEN_OFFSET, mOverwritten);
+    }
+}
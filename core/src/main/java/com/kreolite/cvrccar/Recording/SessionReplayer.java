@@ -0,0 +1,232 @@
+package com.kreolite.cvrccar.Recording;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+import com.kreolite.cvrccar.ColorBlobDetection.BlobTracker;
+import com.kreolite.cvrccar.ColorBlobDetection.CarController;
+import com.kreolite.cvrccar.ColorBlobDetection.PixelBlobDetector;
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
+
+import java.io.IOException;
+
+/**
+ * Pushes the frames of a recorded session back through detection, tracking
+ * and control, using the recorded timestamps as clock, so the same session
+ * always gives the same results. Replayed detections and commands are
+ * compared to the recorded ones.
+ */
+public class SessionReplayer {
+    // Replayed blob centers further than this from the recorded ones, in full frame pixels, differ
+    private static final double CENTER_TOLERANCE = 1.0;
+
+    private final SessionReader mReader;
+    private final PixelBlobDetector mDetector = new PixelBlobDetector();
+    private final BlobTracker  mTracker = new BlobTracker();
+    private final CarController mController = new CarController();
+    private double             mMinRadius = 15;
+    private double             mForwardBoundaryPercent = -0.1;
+    private double             mReverseBoundaryPercent = 0.25;
+
+    private final double[]     mHsvColor = new double[4];
+    private final double[]     mColorRadius = new double[4];
+    private final BlobStats    mRecordedBlobs = new BlobStats();
+    private byte[]             mFrame = new byte[0];
+    private final byte[]       mCommand = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    private final byte[]       mRecordedCommand = new byte[CarController.PWM_JSON_MAX_LENGTH];
+    private int                mCommandLength;
+    private boolean            mIsColorSelected;
+    private int                mCountOutOfFrame;
+
+    // Last replayed frame
+    private long               mSequence = -1;
+    private int                mDownsampling = 1;
+    private int                mTarget = -1;
+
+    // Results
+    private final LatencyHistogram mFrameCost = new LatencyHistogram();
+    private long               mFrames;
+    private long               mDetections;
+    private long               mDetectionMismatches;
+    private long               mRecordedCommands;
+    private long               mCommandMismatches;
+
+    public SessionReplayer(SessionReader reader) {
+        mReader = reader;
+    }
+
+    public void setMinRadius(double minRadius) {
+        mMinRadius = minRadius;
+    }
+
+    public void setBoundaries(double forwardBoundaryPercent, double reverseBoundaryPercent) {
+        mForwardBoundaryPercent = forwardBoundaryPercent;
+        mReverseBoundaryPercent = reverseBoundaryPercent;
+    }
+
+    public void setThreadCount(int threadCount) {
+        mDetector.setThreadCount(threadCount);
+    }
+
+    /**
+     * Replay the whole session.
+     */
+    public void run() throws IOException, InterruptedException {
+        mReader.rewind();
+        if (mReader.hasInitialColor()) {
+            mReader.readInitialColor(mHsvColor, mColorRadius);
+            selectColor();
+        }
+        try {
+            while (mReader.next()) {
+                switch (mReader.getType()) {
+                    case SessionFormat.TYPE_COLOR:
+                        replayColor();
+                        break;
+                    case SessionFormat.TYPE_ADAPTED_COLOR:
+                        replayAdaptedColor();
+                        break;
+                    case SessionFormat.TYPE_FRAME:
+                        replayFrame();
+                        break;
+                    case SessionFormat.TYPE_DETECTION:
+                        compareDetection();
+                        break;
+                    case SessionFormat.TYPE_COMMAND:
+                        compareCommand();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            mDetector.release();
+        }
+    }
+
+    private void replayColor() {
+        mReader.readColor(mHsvColor, mColorRadius);
+        selectColor();
+    }
+
+    /**
+     * Apply an adapted color as the app does, keeping the tracked target.
+     */
+    private void replayAdaptedColor() {
+        mReader.readColor(mHsvColor, mColorRadius);
+        mDetector.setColorRadius(mColorRadius);
+        mDetector.adaptHsvColor(mHsvColor);
+    }
+
+    private void selectColor() {
+        mDetector.setColorRadius(mColorRadius);
+        mDetector.setHsvColor(mHsvColor);
+        mTracker.reset();
+        mIsColorSelected = true;
+    }
+
+    private void replayFrame() throws InterruptedException {
+        int width = mReader.getFrameWidth();
+        int height = mReader.getFrameHeight();
+        if (mFrame.length < width * height * 4)
+            mFrame = new byte[width * height * 4];
+        mReader.readFrame(mFrame);
+        mSequence = mReader.getFrameSequence();
+        mDownsampling = mReader.getFrameDownsampling();
+        long captureNanos = mReader.getTimeNanos();
+        mFrames++;
+        if (!mIsColorSelected) {
+            mTarget = -1;
+            return;
+        }
+
+        long start = System.nanoTime();
+        mDetector.detect(mFrame, width, height);
+        mTracker.update(mDetector.getBlobs(), captureNanos, mMinRadius / mDownsampling);
+        mTarget = mTracker.getLockedBlob();
+        mFrameCost.record(System.nanoTime() - start);
+
+        // Same steps as the app control loop, once per frame
+        double screenCenterX = width / 2.0;
+        double screenCenterY = height / 2.0;
+        if (mTarget >= 0) {
+            mController.updateTargetPWM(screenCenterX, screenCenterY, mDetector.getBlobs(), mTarget,
+                    captureNanos, captureNanos, mForwardBoundaryPercent, mReverseBoundaryPercent, false);
+            mCountOutOfFrame = 0;
+        } else if (!mController.coastTargetPWM(screenCenterX, screenCenterY, captureNanos,
+                mForwardBoundaryPercent, mReverseBoundaryPercent, false)) {
+            mCountOutOfFrame++;
+            if (mCountOutOfFrame > 2)
+                mController.searchTarget(captureNanos);
+        }
+        mCommandLength = mController.getPWMValuesToJson(mCommand);
+    }
+
+    /**
+     * Compare the recorded target of the last replayed frame, frames
+     * detected at a reduced resolution compare at that resolution.
+     */
+    private void compareDetection() {
+        if (mReader.getDetectionSequence() != mSequence) return;
+
+        mDetections++;
+        int recordedTarget = mReader.readDetection(mRecordedBlobs);
+        if ((recordedTarget >= 0) != (mTarget >= 0)) {
+            mDetectionMismatches++;
+        } else if (mTarget >= 0) {
+            BlobStats blobs = mDetector.getBlobs();
+            double dx = blobs.getCenterX(mTarget) * mDownsampling - mRecordedBlobs.getCenterX(recordedTarget);
+            double dy = blobs.getCenterY(mTarget) * mDownsampling - mRecordedBlobs.getCenterY(recordedTarget);
+            if (Math.sqrt(dx * dx + dy * dy) > CENTER_TOLERANCE * mDownsampling)
+                mDetectionMismatches++;
+        }
+    }
+
+    /**
+     * Compare a recorded command to the last one replayed, in the protocol it
+     * was recorded with.
+     */
+    private void compareCommand() {
+        mRecordedCommands++;
+        int length = mReader.readCommand(mRecordedCommand);
+        boolean isSame;
+        if (PwmFrameCodec.isFrame(mRecordedCommand, 0, length)) {
+            isSame = (PwmFrameCodec.getPan(mRecordedCommand, 0) == mController.getPanPwm())
+                    && (PwmFrameCodec.getSteering(mRecordedCommand, 0) == mController.getSteeringPwm())
+                    && (PwmFrameCodec.getThrottle(mRecordedCommand, 0) == mController.getMotorPwm());
+        } else {
+            isSame = length == mCommandLength;
+            for (int i = 0; isSame && i < length; i++)
+                isSame = mRecordedCommand[i] == mCommand[i];
+        }
+        if (!isSame)
+            mCommandMismatches++;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getDetectionMismatches() {
+        return mDetectionMismatches;
+    }
+
+    public long getCommandMismatches() {
+        return mCommandMismatches;
+    }
+
+    /**
+     * Return the detection and tracking time of each replayed frame.
+     */
+    public LatencyHistogram getFrameCost() {
+        return mFrameCost;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + mFrames
+                + " detections=" + mDetections + " mismatched=" + mDetectionMismatches
+                + " commands=" + mRecordedCommands + " mismatched=" + mCommandMismatches
+                + String.format(" frame cost mean=%.3f p99=%.3f ms",
+                        mFrameCost.getMeanNanos() / 1e6, mFrameCost.getValueAtPercentile(99) / 1e6);
+    }
+}
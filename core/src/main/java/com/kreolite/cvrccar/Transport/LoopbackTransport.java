@@ -0,0 +1,215 @@
+package com.kreolite.cvrccar.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Reaches a car stand-in in the same process through in-memory pipes. The
+ * stand-in takes the other end of each connection with accept().
+ */
+public class LoopbackTransport implements Transport {
+    public static final int    DEFAULT_CAPACITY = 4096;
+
+    private final int          mCapacity;
+    // Link connecting and not accepted yet
+    private LoopbackLink       mPending;
+
+    public LoopbackTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of bytes each direction buffers before writes block
+     */
+    public LoopbackTransport(int capacity) {
+        mCapacity = capacity;
+    }
+
+    @Override
+    public String getName() {
+        return "loopback";
+    }
+
+    @Override
+    public Link createLink() {
+        return new LoopbackLink(new Pipe(mCapacity), new Pipe(mCapacity), true);
+    }
+
+    /**
+     * Wait for the next connection, car side.
+     *
+     * @return The car end of the link, already connected
+     */
+    public synchronized Link accept() throws InterruptedException {
+        while (mPending == null)
+            wait();
+
+        LoopbackLink link = mPending;
+        mPending = null;
+        link.mmIsAccepted = true;
+        notifyAll();
+        // The car reads what the phone writes
+        return new LoopbackLink(link.mmOut, link.mmIn, false);
+    }
+
+    private synchronized void offer(LoopbackLink link) throws IOException {
+        try {
+            while (mPending != null && !link.mmIn.isClosed())
+                wait();
+            if (link.mmIn.isClosed()) throw new IOException("Link closed");
+
+            mPending = link;
+            notifyAll();
+            while (!link.mmIsAccepted && !link.mmIn.isClosed())
+                wait();
+            if (!link.mmIsAccepted) {
+                if (mPending == link) mPending = null;
+                throw new IOException("Link closed");
+            }
+        } catch (InterruptedException e) {
+            if (mPending == link) mPending = null;
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private class LoopbackLink implements Link {
+        private final Pipe     mmIn;
+        private final Pipe     mmOut;
+        private final boolean  mmIsPhone;
+        private boolean        mmIsAccepted = false;
+
+        private final InputStream mmInStream = new InputStream() {
+            private final byte[] mmByte = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return (read(mmByte, 0, 1) < 0) ? -1 : mmByte[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return mmIn.read(buffer, offset, length);
+            }
+
+            @Override
+            public int available() {
+                return mmIn.available();
+            }
+        };
+
+        private final OutputStream mmOutStream = new OutputStream() {
+            private final byte[] mmByte = new byte[1];
+
+            @Override
+            public void write(int value) throws IOException {
+                mmByte[0] = (byte) value;
+                write(mmByte, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                mmOut.write(buffer, offset, length);
+            }
+        };
+
+        LoopbackLink(Pipe in, Pipe out, boolean isPhone) {
+            mmIn = in;
+            mmOut = out;
+            mmIsPhone = isPhone;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmIsPhone) offer(this);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmInStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOutStream;
+        }
+
+        @Override
+        public void close() {
+            // Either end closes the whole connection, as a dropped radio link does
+            mmIn.close();
+            mmOut.close();
+            wakeUp();
+        }
+    }
+
+    /**
+     * Bounded byte queue from one end to the other.
+     */
+    private static class Pipe {
+        private final byte[]   mmRing;
+        private int            mmHead = 0;
+        private int            mmCount = 0;
+        private boolean        mmIsClosed = false;
+
+        Pipe(int capacity) {
+            mmRing = new byte[capacity];
+        }
+
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            try {
+                while (mmCount == 0 && !mmIsClosed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mmCount == 0) return -1;
+
+            int bytes = Math.min(length, Math.min(mmCount, mmRing.length - mmHead));
+            System.arraycopy(mmRing, mmHead, buffer, offset, bytes);
+            mmHead = (mmHead + bytes) % mmRing.length;
+            mmCount -= bytes;
+            notifyAll();
+            return bytes;
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                try {
+                    while (mmCount == mmRing.length && !mmIsClosed)
+                        wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mmIsClosed) throw new IOException("Pipe closed");
+
+                int tail = (mmHead + mmCount) % mmRing.length;
+                int bytes = Math.min(length, Math.min(mmRing.length - mmCount, mmRing.length - tail));
+                System.arraycopy(buffer, offset, mmRing, tail, bytes);
+                mmCount += bytes;
+                offset += bytes;
+                length -= bytes;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return mmCount;
+        }
+
+        synchronized boolean isClosed() {
+            return mmIsClosed;
+        }
+
+        synchronized void close() {
+            mmIsClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.kreolite.cvrccar.Transport;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reaches the car through a serial device file, such as one end of a Linux
+ * pseudo-terminal pair created with:
+ *
+ * <pre>
+ * socat -d -d pty,raw,echo=0 pty,raw,echo=0
+ * </pre>
+ *
+ * The terminal must already be in raw mode. A read blocked on the device
+ * only returns when data arrives or the other end is closed, closing the
+ * link does not interrupt it.
+ */
+public class PtyTransport implements Transport {
+    private final String       mPath;
+
+    public PtyTransport(String path) {
+        mPath = path;
+    }
+
+    @Override
+    public String getName() {
+        return "pty " + mPath;
+    }
+
+    @Override
+    public Link createLink() {
+        return new PtyLink();
+    }
+
+    private class PtyLink implements Link {
+        private FileInputStream  mmIn;
+        private FileOutputStream mmOut;
+        private boolean          mmIsClosed = false;
+
+        @Override
+        public void connect() throws IOException {
+            FileInputStream in = new FileInputStream(mPath);
+            FileOutputStream out;
+            try {
+                out = new FileOutputStream(mPath);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            synchronized (this) {
+                if (!mmIsClosed) {
+                    mmIn = in;
+                    mmOut = out;
+                    return;
+                }
+            }
+            in.close();
+            out.close();
+            throw new IOException("Link closed");
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmIn == null) throw new IOException("Not connected");
+            return mmIn;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmOut == null) throw new IOException("Not connected");
+            return mmOut;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            mmIsClosed = true;
+            if (mmIn != null) mmIn.close();
+            if (mmOut != null) mmOut.close();
+        }
+    }
+}
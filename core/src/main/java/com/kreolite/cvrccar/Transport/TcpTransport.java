@@ -0,0 +1,62 @@
+package com.kreolite.cvrccar.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Reaches the car through a TCP socket, for a stand-in on the host or a
+ * serial to TCP bridge.
+ */
+public class TcpTransport implements Transport {
+    private final String       mHost;
+    private final int          mPort;
+    private final int          mTimeoutMillis;
+
+    /**
+     * @param timeoutMillis Connection timeout, 0 waits forever
+     */
+    public TcpTransport(String host, int port, int timeoutMillis) {
+        mHost = host;
+        mPort = port;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public String getName() {
+        return "tcp " + mHost + ":" + mPort;
+    }
+
+    @Override
+    public Link createLink() {
+        return new TcpLink();
+    }
+
+    private class TcpLink implements Link {
+        private final Socket   mmSocket = new Socket();
+
+        @Override
+        public void connect() throws IOException {
+            // Commands are small and latency matters more than packet count
+            mmSocket.setTcpNoDelay(true);
+            mmSocket.connect(new InetSocketAddress(mHost, mPort), mTimeoutMillis);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.kreolite.cvrccar.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way to reach the car: the Bluetooth serial port in the app, or local
+ * stand-ins to run the link code off the device.
+ */
+public interface Transport {
+    /**
+     * One connection to the car.
+     */
+    interface Link {
+        /**
+         * Connect, blocking until connected or failed. Closing the link from
+         * another thread aborts it.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Close the link, blocked reads and writes fail.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Return a short description of the transport, for logs.
+     */
+    String getName();
+
+    /**
+     * Create a link, not connected yet.
+     */
+    Link createLink() throws IOException;
+}
@@ -0,0 +1,103 @@
+package com.kreolite.cvrccar.Simulator;
+
+/**
+ * Kinematic bicycle model of the car, with the pan and steering servos and
+ * the motor reacting to the PWM values the Arduino receives.
+ */
+public class CarModel {
+    /* Servo and motor calibration, matching the PWM values of CarController */
+    private static final int    CENTER_PAN_PWM = 1385;
+    private static final int    MIN_PAN_PWM = 565;
+    private static final int    MAX_PAN_PWM = 2250;
+    // The pan range covers 180 degrees
+    private static final double PAN_PWM_PER_RADIAN = (MAX_PAN_PWM - MIN_PAN_PWM) / Math.PI;
+    private static final int    CENTER_STEERING_PWM = 1640;
+    private static final int    MIN_STEERING_PWM = 1340;
+    private static final int    MAX_STEERING_PWM = 1920;
+    private static final int    FORWARD_PWM = 1560;
+    private static final int    REVERSE_PWM = 1370;
+    private static final int    NEUTRAL_PWM = 1490;
+
+    /* Physical parameters */
+    private static final double WHEELBASE = 0.26;
+    private static final double MAX_STEERING_ANGLE = Math.toRadians(25);
+    private static final double FORWARD_SPEED = 0.8;
+    private static final double REVERSE_SPEED = 0.5;
+    // Time constant of the speed response, in seconds
+    private static final double SPEED_TAU = 0.3;
+    // Servo speeds, in radians per second
+    private static final double PAN_RATE = Math.toRadians(350);
+    private static final double STEERING_RATE = Math.toRadians(300);
+
+    // Position in meters and heading in radians, counterclockwise from the x axis
+    private double             mX, mY, mHeading;
+    private double             mSpeed;
+    // Angles are positive to the right
+    private double             mSteeringAngle, mPanAngle;
+    private double             mCommandedSteering, mCommandedPan, mCommandedSpeed;
+
+    public CarModel(double x, double y, double heading) {
+        mX = x;
+        mY = y;
+        mHeading = heading;
+    }
+
+    /**
+     * Apply the PWM values of a command.
+     */
+    public void command(int pan, int steering, int motor) {
+        mCommandedPan = (pan - CENTER_PAN_PWM) / PAN_PWM_PER_RADIAN;
+        if (steering >= CENTER_STEERING_PWM)
+            mCommandedSteering = MAX_STEERING_ANGLE * (steering - CENTER_STEERING_PWM) / (MAX_STEERING_PWM - CENTER_STEERING_PWM);
+        else
+            mCommandedSteering = MAX_STEERING_ANGLE * (steering - CENTER_STEERING_PWM) / (CENTER_STEERING_PWM - MIN_STEERING_PWM);
+        if (motor >= NEUTRAL_PWM)
+            mCommandedSpeed = FORWARD_SPEED * (motor - NEUTRAL_PWM) / (FORWARD_PWM - NEUTRAL_PWM);
+        else
+            mCommandedSpeed = REVERSE_SPEED * (motor - NEUTRAL_PWM) / (NEUTRAL_PWM - REVERSE_PWM);
+    }
+
+    /**
+     * Move the model forward in time.
+     *
+     * @param dt The time step, in seconds
+     */
+    public void update(double dt) {
+        mPanAngle = approach(mPanAngle, mCommandedPan, PAN_RATE * dt);
+        mSteeringAngle = approach(mSteeringAngle, mCommandedSteering, STEERING_RATE * dt);
+        mSpeed += (mCommandedSpeed - mSpeed) * Math.min(1, dt / SPEED_TAU);
+
+        mX += mSpeed * Math.cos(mHeading) * dt;
+        mY += mSpeed * Math.sin(mHeading) * dt;
+        // Steering right turns clockwise
+        mHeading -= mSpeed / WHEELBASE * Math.tan(mSteeringAngle) * dt;
+    }
+
+    public double getX() {
+        return mX;
+    }
+
+    public double getY() {
+        return mY;
+    }
+
+    public double getHeading() {
+        return mHeading;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Return the direction the camera looks at, counterclockwise from the x axis.
+     */
+    public double getCameraYaw() {
+        return mHeading - mPanAngle;
+    }
+
+    private static double approach(double value, double target, double maxChange) {
+        double change = Math.max(-maxChange, Math.min(maxChange, target - value));
+        return value + change;
+    }
+}
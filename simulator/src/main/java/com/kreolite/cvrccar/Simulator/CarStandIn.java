@@ -0,0 +1,173 @@
+package com.kreolite.cvrccar.Simulator;
+
+import com.kreolite.cvrccar.Protocol.PingCodec;
+import com.kreolite.cvrccar.Protocol.PingEchoer;
+import com.kreolite.cvrccar.Protocol.PwmFrameDecoder;
+import com.kreolite.cvrccar.Protocol.TelemetryCodec;
+import com.kreolite.cvrccar.Transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plays the role of the car firmware at the other end of a link: it
+ * decodes the binary command frames as the firmware does, echoes pings,
+ * and sends telemetry frames back at a fixed rate, reporting an obstacle
+ * every other second.
+ */
+public class CarStandIn {
+    private static final long  NANOS_PER_SECOND = 1000000000L;
+    private static final long  JOIN_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Told about each command frame received, on the stand-in reading thread.
+     */
+    public interface CommandListener {
+        void onCommand(long receivedNanos, int pan, int steering, int throttle, int flags);
+    }
+
+    private final CommandListener mListener;
+    private final double       mTelemetryRateHz;
+    private final PwmFrameDecoder mDecoder = new PwmFrameDecoder();
+    private final PingEchoer   mEchoer = new PingEchoer();
+    private Transport.Link     mLink;
+    private Thread             mReadThread;
+    private Thread             mTelemetryThread;
+    private volatile boolean   mIsRunning = false;
+    private volatile long      mTelemetrySent = 0;
+
+    /**
+     * @param telemetryRateHz Telemetry frames per second, 0 sends none
+     */
+    public CarStandIn(CommandListener listener, double telemetryRateHz) {
+        mListener = listener;
+        mTelemetryRateHz = telemetryRateHz;
+    }
+
+    /**
+     * Start serving a connected link.
+     */
+    public synchronized void start(Transport.Link link) throws IOException {
+        stop();
+
+        final InputStream in = link.getInputStream();
+        final OutputStream out = link.getOutputStream();
+        mLink = link;
+        mIsRunning = true;
+        mReadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(in, out);
+            }
+        }, "CarStandIn");
+        mReadThread.setDaemon(true);
+        mReadThread.start();
+
+        if (mTelemetryRateHz > 0) {
+            mTelemetryThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    telemetryLoop(out);
+                }
+            }, "CarStandInTelemetry");
+            mTelemetryThread.setDaemon(true);
+            mTelemetryThread.start();
+        }
+    }
+
+    /**
+     * Close the link, as a car switched off does, and wait for the threads.
+     * A thread blocked reading a device file is left behind.
+     */
+    public synchronized void stop() {
+        if (mLink == null) return;
+
+        mIsRunning = false;
+        try {
+            mLink.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+        try {
+            mReadThread.join(JOIN_TIMEOUT_MILLIS);
+            if (mTelemetryThread != null) {
+                mTelemetryThread.interrupt();
+                mTelemetryThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mLink = null;
+        mReadThread = null;
+        mTelemetryThread = null;
+    }
+
+    private void readLoop(InputStream in, OutputStream out) {
+        byte[] buffer = new byte[256];
+        byte[] echo = new byte[PingCodec.FRAME_SIZE];
+        try {
+            while (mIsRunning) {
+                int bytes = in.read(buffer);
+                if (bytes < 0) break;
+
+                long now = System.nanoTime();
+                for (int i = 0; i < bytes; i++) {
+                    if (mDecoder.feed(buffer[i]))
+                        mListener.onCommand(now, mDecoder.getPan(), mDecoder.getSteering(),
+                                mDecoder.getThrottle(), mDecoder.getFlags());
+                    if (mEchoer.feed(buffer[i])) {
+                        int length = mEchoer.getEcho(echo, 0);
+                        synchronized (out) {
+                            out.write(echo, 0, length);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The link is gone
+        }
+    }
+
+    private void telemetryLoop(OutputStream out) {
+        byte[] frame = new byte[TelemetryCodec.FRAME_SIZE];
+        long period = (long) (NANOS_PER_SECOND / mTelemetryRateHz);
+        long start = System.nanoTime();
+        int sequence = 0;
+        long count = 0;
+        try {
+            while (mIsRunning) {
+                long elapsed = System.nanoTime() - start;
+                boolean isObstacle = (elapsed / NANOS_PER_SECOND) % 2 == 1;
+                int length = TelemetryCodec.encode(sequence, isObstacle, isObstacle ? 20 : 150, 7400, frame, 0);
+                synchronized (out) {
+                    out.write(frame, 0, length);
+                }
+                sequence = (sequence + 1) & 0xFF;
+                mTelemetrySent++;
+                count++;
+
+                long wait = start + count * period - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        } catch (IOException e) {
+            // The link is gone
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    public PwmFrameDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    public long getTelemetrySentCount() {
+        return mTelemetrySent;
+    }
+
+    @Override
+    public String toString() {
+        return "commands " + mDecoder + ", echoes=" + mEchoer.getEchoCount() + " telemetry sent=" + mTelemetrySent;
+    }
+}
@@ -0,0 +1,371 @@
+package com.kreolite.cvrccar.Simulator;
+
+import com.kreolite.cvrccar.BluetoothService.CommandWriter;
+import com.kreolite.cvrccar.BluetoothService.LinkService;
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+import com.kreolite.cvrccar.Protocol.PwmFrameCodec;
+import com.kreolite.cvrccar.Transport.LoopbackTransport;
+import com.kreolite.cvrccar.Transport.PtyTransport;
+import com.kreolite.cvrccar.Transport.TcpTransport;
+import com.kreolite.cvrccar.Transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Drives the app link code, LinkService with its writer and telemetry
+ * reader, through every connection state against a car stand-in, and
+ * measures the command throughput and latency from submission to decoding
+ * by the stand-in.
+ *
+ * Each cycle connects, sends commands with a reversing handshake every
+ * 100 commands, then drops the link from the car side and waits for the
+ * service to start over. The service is stopped at the end. A pty link
+ * cannot be dropped, it runs a single cycle.
+ *
+ * Run with: ./gradlew :simulator:link -Pargs="transport=tcp commands=100000"
+ */
+public class LinkHarness {
+    private static final long  NANOS_PER_SECOND = 1000000000L;
+    private static final long  STATE_TIMEOUT_NANOS = 5 * NANOS_PER_SECOND;
+    private static final int   HANDSHAKE_INTERVAL = 100;
+    private static final int   NEUTRAL_PWM = 1500;
+    private static final int   REVERSE_PWM = 1400;
+
+    /**
+     * Takes the car end of the next connection.
+     */
+    private interface Acceptor {
+        Transport.Link accept() throws IOException, InterruptedException;
+
+        void close() throws IOException;
+    }
+
+    /* Setup */
+    private String             mTransportName = "loopback";
+    private String[]           mPtyPaths;
+    private int                mCommandCount = 2000;
+    private double             mCommandRateHz = 1000;
+    private int                mCycleCount = 3;
+    private double             mTelemetryRateHz = 20;
+    private int                mPingIntervalMillis = 20;
+
+    /* Measures */
+    // Submission time of each command, by its pan value
+    private final long[]       mSubmitNanos = new long[1 << 16];
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mConnectTime = new LatencyHistogram();
+    private final LatencyHistogram mLossDetectTime = new LatencyHistogram();
+    private volatile long      mReceived = 0;
+    private volatile long      mHandshakeReceived = 0;
+    private long               mSubmitted = 0;
+    private long               mHandshakeSubmitted = 0;
+    private long               mTrafficNanos = 0;
+    private volatile long      mStateChanges = 0;
+    private volatile long      mFailures = 0;
+    private volatile long      mObstacleChanges = 0;
+    // Last connection statistics, for the report
+    private CommandWriter      mWriter;
+    private String             mTelemetryReader;
+    private String             mCar;
+    private String             mLinkQuality;
+
+    public void setTransportName(String name) {
+        mTransportName = name;
+    }
+
+    /**
+     * Set the phone and car ends of a pseudo-terminal pair.
+     */
+    public void setPtyPaths(String phone, String car) {
+        mPtyPaths = new String[] {phone, car};
+    }
+
+    public void setCommandCount(int count) {
+        mCommandCount = count;
+    }
+
+    /**
+     * Set the command rate, 0 submits them as fast as possible.
+     */
+    public void setCommandRateHz(double rate) {
+        mCommandRateHz = rate;
+    }
+
+    public void setCycleCount(int count) {
+        mCycleCount = count;
+    }
+
+    public void setTelemetryRateHz(double rate) {
+        mTelemetryRateHz = rate;
+    }
+
+    /**
+     * Set the time between pings, 0 sends none.
+     */
+    public void setPingIntervalMillis(int intervalMillis) {
+        mPingIntervalMillis = intervalMillis;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        Transport transport;
+        Acceptor acceptor;
+        boolean isDroppable = !mTransportName.equals("pty");
+        if (mTransportName.equals("loopback")) {
+            final LoopbackTransport loopback = new LoopbackTransport();
+            transport = loopback;
+            acceptor = new Acceptor() {
+                @Override
+                public Transport.Link accept() throws InterruptedException {
+                    return loopback.accept();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        } else if (mTransportName.equals("tcp")) {
+            final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            transport = new TcpTransport("127.0.0.1", server.getLocalPort(), 1000);
+            acceptor = new Acceptor() {
+                @Override
+                public Transport.Link accept() throws IOException {
+                    return new SocketLink(server.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    server.close();
+                }
+            };
+        } else if (mTransportName.equals("pty")) {
+            if (mPtyPaths == null)
+                throw new IllegalArgumentException("Expected pty=phone,car paths");
+            // Closing a terminal does not end the reads blocked on it
+            if (mCycleCount > 1)
+                throw new IllegalArgumentException("A pty link cannot be dropped, use cycles=1");
+            transport = new PtyTransport(mPtyPaths[0]);
+            final Transport car = new PtyTransport(mPtyPaths[1]);
+            acceptor = new Acceptor() {
+                @Override
+                public Transport.Link accept() throws IOException {
+                    Transport.Link link = car.createLink();
+                    link.connect();
+                    return link;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        } else {
+            throw new IllegalArgumentException("Unknown transport: " + mTransportName);
+        }
+
+        CarStandIn car = new CarStandIn(new CarStandIn.CommandListener() {
+            @Override
+            public void onCommand(long receivedNanos, int pan, int steering, int throttle, int flags) {
+                // Handshake frames, not timed
+                if (throttle != NEUTRAL_PWM) {
+                    mHandshakeReceived++;
+                    return;
+                }
+                mLatency.record(receivedNanos - mSubmitNanos[pan]);
+                mReceived++;
+            }
+        }, mTelemetryRateHz);
+
+        LinkService service = new LinkService(new LinkService.Listener() {
+            @Override
+            public void onStateChange(int state) {
+                mStateChanges++;
+            }
+
+            @Override
+            public void onObstacleChange(boolean isObstacle) {
+                mObstacleChanges++;
+            }
+
+            @Override
+            public void onFailure(String message, IOException e) {
+                mFailures++;
+            }
+        });
+
+        try {
+            service.setTransport(transport);
+            service.setPingIntervalMillis(mPingIntervalMillis);
+            service.start();
+            waitForState(service, LinkService.STATE_PAIRED);
+
+            for (int cycle = 0; cycle < mCycleCount; cycle++) {
+                long start = System.nanoTime();
+                service.connect();
+                car.start(acceptor.accept());
+                waitForState(service, LinkService.STATE_CONNECTED);
+                mConnectTime.record(System.nanoTime() - start);
+
+                sendCommands(service);
+                if (!isDroppable) break;
+
+                // Switch the car off, the service starts over on its own
+                start = System.nanoTime();
+                car.stop();
+                waitForState(service, LinkService.STATE_PAIRED);
+                mLossDetectTime.record(System.nanoTime() - start);
+            }
+
+            service.stop();
+            waitForState(service, LinkService.STATE_NONE);
+        } finally {
+            service.stop();
+            car.stop();
+            acceptor.close();
+        }
+        mWriter = service.getWriter();
+        mLinkQuality = service.getLinkQuality().toString();
+        mTelemetryReader = service.getTelemetryReader() + " published=" + service.getTelemetry().getPublishedCount();
+        mCar = car.toString();
+    }
+
+    private void sendCommands(LinkService service) throws InterruptedException {
+        byte[] frame = new byte[PwmFrameCodec.FRAME_SIZE];
+        byte[] reverse = new byte[PwmFrameCodec.FRAME_SIZE];
+        byte[] neutral = new byte[PwmFrameCodec.FRAME_SIZE];
+        PwmFrameCodec.encode(0, NEUTRAL_PWM, NEUTRAL_PWM, REVERSE_PWM, 0, reverse, 0);
+        PwmFrameCodec.encode(0, NEUTRAL_PWM, NEUTRAL_PWM, NEUTRAL_PWM - 1, PwmFrameCodec.FLAG_NEUTRAL, neutral, 0);
+        long period = (mCommandRateHz > 0) ? (long) (NANOS_PER_SECOND / mCommandRateHz) : 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < mCommandCount; i++) {
+            // The pan value identifies the command
+            int id = (int) (mSubmitted & 0xFFFF);
+            PwmFrameCodec.encode(0, id, NEUTRAL_PWM, NEUTRAL_PWM, 0, frame, 0);
+            if (i % HANDSHAKE_INTERVAL == HANDSHAKE_INTERVAL - 1) {
+                // Reverse, neutral, reverse, as the app does
+                if (service.writeOrdered(reverse, reverse.length)) mHandshakeSubmitted++;
+                if (service.writeOrdered(neutral, neutral.length)) mHandshakeSubmitted++;
+                if (service.writeOrdered(reverse, reverse.length)) mHandshakeSubmitted++;
+            }
+            mSubmitNanos[id] = System.nanoTime();
+            service.write(frame, frame.length);
+            mSubmitted++;
+
+            if (period > 0) {
+                long wait = start + (i + 1) * period - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+        mTrafficNanos += System.nanoTime() - start;
+        // Let the last commands arrive
+        Thread.sleep(100);
+    }
+
+    private static void waitForState(LinkService service, int state) throws InterruptedException {
+        long start = System.nanoTime();
+        while (service.getState() != state) {
+            if (System.nanoTime() - start > STATE_TIMEOUT_NANOS)
+                throw new IllegalStateException("State " + service.getState() + " instead of " + state);
+            Thread.sleep(1);
+        }
+    }
+
+    public void printReport(PrintStream out) {
+        double seconds = mTrafficNanos / 1e9;
+        out.println("Transport: " + mTransportName + ", " + mCycleCount + " cycles of " + mCommandCount
+                + " commands" + (mCommandRateHz > 0 ? String.format(" at %.0f Hz", mCommandRateHz) : ""));
+        out.println(String.format("Commands: submitted=%d received=%d (%.0f/s, %.1f kB/s) handshake %d/%d",
+                mSubmitted, mReceived, mReceived / seconds,
+                (mReceived + mHandshakeReceived) * PwmFrameCodec.FRAME_SIZE / seconds / 1e3,
+                mHandshakeReceived, mHandshakeSubmitted));
+        out.println("Latency: " + format(mLatency));
+        out.println("Connect: " + format(mConnectTime) + ", loss detected: " + format(mLossDetectTime));
+        out.println("Writer: " + mWriter);
+        out.println("Link: " + mLinkQuality);
+        out.println("Telemetry: " + mTelemetryReader + " obstacle changes=" + mObstacleChanges);
+        out.println("Car: " + mCar);
+        out.println("States announced=" + mStateChanges + " failures=" + mFailures);
+    }
+
+    private static String format(LatencyHistogram histogram) {
+        return String.format("p50=%.3f p99=%.3f max=%.3f ms", histogram.getValueAtPercentile(50) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getMaxNanos() / 1e6);
+    }
+
+    /**
+     * Car end of a TCP connection.
+     */
+    private static class SocketLink implements Transport.Link {
+        private final Socket   mSocket;
+
+        SocketLink(Socket socket) throws IOException {
+            mSocket = socket;
+            mSocket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Arguments are key=value pairs: transport (loopback, tcp or pty),
+     * pty (phone,car paths), commands, rate (Hz), cycles, telemetry (Hz)
+     * and ping (ms).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LinkHarness harness = new LinkHarness();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            String key = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+
+            if (key.equals("transport")) {
+                harness.setTransportName(value);
+            } else if (key.equals("pty")) {
+                int comma = value.indexOf(',');
+                harness.setPtyPaths(value.substring(0, comma), value.substring(comma + 1));
+            } else if (key.equals("commands")) {
+                harness.setCommandCount(Integer.parseInt(value));
+            } else if (key.equals("rate")) {
+                harness.setCommandRateHz(Double.parseDouble(value));
+            } else if (key.equals("cycles")) {
+                harness.setCycleCount(Integer.parseInt(value));
+            } else if (key.equals("telemetry")) {
+                harness.setTelemetryRateHz(Double.parseDouble(value));
+            } else if (key.equals("ping")) {
+                harness.setPingIntervalMillis(Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + key);
+            }
+        }
+
+        harness.run();
+        harness.printReport(System.out);
+        // Threads blocked reading a pty are left behind
+        System.exit(0);
+    }
+}
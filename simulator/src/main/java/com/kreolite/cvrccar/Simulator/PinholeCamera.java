@@ -0,0 +1,139 @@
+package com.kreolite.cvrccar.Simulator;
+
+/**
+ * Pinhole camera mounted on the pan servo, rendering RGBA frames of a
+ * colored ball on a noisy background.
+ */
+public class PinholeCamera {
+    // Same colors as the benchmark synthetic frames, the target matches Frames.TARGET_HSV
+    private static final int[] TARGET_RGB = {30, 220, 30};
+    private static final int[] BACKGROUND_RGB = {120, 40, 60};
+    private static final int   NOISE_MASK = 0x1F;
+
+    private final int          mWidth, mHeight;
+    private final double       mFocalLength;
+    private final double       mMountHeight;
+    private final byte[]       mBackground;
+    private final byte[]       mFrame;
+
+    // Projection of the last rendered target
+    private boolean            mIsVisible;
+    private double             mTargetX, mTargetY, mTargetRadius;
+    private double             mBearing;
+
+    /**
+     * @param fieldOfView The horizontal field of view, in radians
+     * @param mountHeight The camera height above the ground, in meters
+     */
+    public PinholeCamera(int width, int height, double fieldOfView, double mountHeight, long seed) {
+        mWidth = width;
+        mHeight = height;
+        mFocalLength = width / 2.0 / Math.tan(fieldOfView / 2);
+        mMountHeight = mountHeight;
+        mFrame = new byte[width * height * 4];
+
+        // The noise is drawn once, frames only copy it
+        mBackground = new byte[width * height * 4];
+        int noise = (int) seed;
+        for (int p = 0; p < mBackground.length; p += 4) {
+            noise = noise * 1103515245 + 12345;
+            int n = (noise >>> 24) & NOISE_MASK;
+            mBackground[p] = (byte) (BACKGROUND_RGB[0] + n);
+            mBackground[p + 1] = (byte) (BACKGROUND_RGB[1] + n);
+            mBackground[p + 2] = (byte) (BACKGROUND_RGB[2] + n);
+            mBackground[p + 3] = (byte) 255;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Render the ball seen from the camera.
+     *
+     * @param cameraX   The camera position, in meters
+     * @param cameraY   The camera position, in meters
+     * @param cameraYaw The direction the camera looks at, counterclockwise from the x axis
+     * @param ballX     The ball center on the ground plane, in meters
+     * @param ballY     The ball center on the ground plane, in meters
+     * @param ballRadius The ball radius, in meters
+     * @return The RGBA frame, reused by the next call
+     */
+    public byte[] render(double cameraX, double cameraY, double cameraYaw,
+                         double ballX, double ballY, double ballRadius) {
+        System.arraycopy(mBackground, 0, mFrame, 0, mFrame.length);
+
+        double dx = ballX - cameraX;
+        double dy = ballY - cameraY;
+        double forward = dx * Math.cos(cameraYaw) + dy * Math.sin(cameraYaw);
+        double right = dx * Math.sin(cameraYaw) - dy * Math.cos(cameraYaw);
+        double up = ballRadius - mMountHeight;
+        mBearing = Math.atan2(right, forward);
+
+        mIsVisible = forward > ballRadius;
+        if (!mIsVisible) return mFrame;
+
+        mTargetX = mWidth / 2.0 + mFocalLength * right / forward;
+        mTargetY = mHeight / 2.0 - mFocalLength * up / forward;
+        mTargetRadius = mFocalLength * ballRadius / forward;
+        mIsVisible = mTargetX + mTargetRadius > 0 && mTargetX - mTargetRadius < mWidth
+                && mTargetY + mTargetRadius > 0 && mTargetY - mTargetRadius < mHeight;
+        if (mIsVisible)
+            drawDisc(mTargetX, mTargetY, mTargetRadius);
+        return mFrame;
+    }
+
+    private void drawDisc(double centerX, double centerY, double radius) {
+        int top = Math.max(0, (int) Math.floor(centerY - radius));
+        int bottom = Math.min(mHeight - 1, (int) Math.ceil(centerY + radius));
+        double radius2 = radius * radius;
+
+        for (int y = top; y <= bottom; y++) {
+            double dy = y - centerY;
+            double halfWidth2 = radius2 - dy * dy;
+            if (halfWidth2 < 0) continue;
+
+            double halfWidth = Math.sqrt(halfWidth2);
+            int left = Math.max(0, (int) Math.ceil(centerX - halfWidth));
+            int right = Math.min(mWidth - 1, (int) Math.floor(centerX + halfWidth));
+            for (int x = left; x <= right; x++) {
+                int p = (y * mWidth + x) * 4;
+                int n = (mBackground[p] & 0xFF) - BACKGROUND_RGB[0];
+                mFrame[p] = (byte) (TARGET_RGB[0] + n);
+                mFrame[p + 1] = (byte) (TARGET_RGB[1] - n);
+                mFrame[p + 2] = (byte) (TARGET_RGB[2] + n);
+            }
+        }
+    }
+
+    /**
+     * Return true if the target was inside the last rendered frame.
+     */
+    public boolean isTargetVisible() {
+        return mIsVisible;
+    }
+
+    public double getTargetX() {
+        return mTargetX;
+    }
+
+    public double getTargetY() {
+        return mTargetY;
+    }
+
+    public double getTargetRadius() {
+        return mTargetRadius;
+    }
+
+    /**
+     * Return the angle from the camera axis to the target, positive to the right.
+     */
+    public double getTargetBearing() {
+        return mBearing;
+    }
+}
@@ -0,0 +1,34 @@
+package com.kreolite.cvrccar.Simulator;
+
+import com.kreolite.cvrccar.Recording.SessionReader;
+import com.kreolite.cvrccar.Recording.SessionReplayer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays recorded session files through detection and control, and prints
+ * how the results compare to the recorded ones.
+ *
+ * Run with: ./gradlew :simulator:replay -Psession=/path/to/session.cvrs
+ */
+public class Replay {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0)
+            throw new IllegalArgumentException("Expected session files");
+
+        for (String path : args) {
+            SessionReader reader = new SessionReader(new File(path));
+            try {
+                SessionReplayer replayer = new SessionReplayer(reader);
+                long start = System.nanoTime();
+                replayer.run();
+                System.out.println(path + ": " + reader.getRecordCount() + " records, "
+                        + reader.getOverwrittenCount() + " overwritten");
+                System.out.println(replayer + String.format(" in %.2f s", (System.nanoTime() - start) / 1e9));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.kreolite.cvrccar.Simulator;
+
+/**
+ * Paths of the target ball, the car starts at the origin facing the x axis.
+ */
+public enum Scenario {
+    /** Ball standing still in front of the car, slightly to the left */
+    STATIC {
+        @Override
+        public void getPosition(double time, double[] position) {
+            position[0] = 2.0;
+            position[1] = 0.3;
+        }
+    },
+    /** Ball rolling on a circle at walking speed */
+    CIRCLE {
+        @Override
+        public void getPosition(double time, double[] position) {
+            double angle = 0.3 * time;
+            position[0] = 2.0 + 1.2 * Math.sin(angle);
+            position[1] = 1.2 - 1.2 * Math.cos(angle);
+        }
+    },
+    /** Ball going back and forth on a figure eight */
+    FIGURE_EIGHT {
+        @Override
+        public void getPosition(double time, double[] position) {
+            double angle = 0.25 * time;
+            position[0] = 2.5 + 1.0 * Math.sin(2 * angle);
+            position[1] = 1.5 * Math.sin(angle);
+        }
+    },
+    /** Ball darting sideways out of the field of view every few seconds, to test reacquisition */
+    ESCAPE {
+        private static final double PERIOD = 6.0;
+        // The ball stays still this long before each dart
+        private static final double HOLD_TIME = 4.0;
+        private static final double DART_TIME = 0.6;
+        private static final double DART_DISTANCE = 1.5;
+        // Each dart also goes forward, so the car is never left facing away
+        private static final double DART_ADVANCE = 2.0;
+
+        @Override
+        public void getPosition(double time, double[] position) {
+            int dart = (int) (time / PERIOD);
+            double phase = Math.max(0, Math.min(1, (time - dart * PERIOD - HOLD_TIME) / DART_TIME));
+            // Darts alternate sides
+            double from = (dart % 2 == 0) ? 0 : DART_DISTANCE;
+            double to = (dart % 2 == 0) ? DART_DISTANCE : 0;
+            position[0] = 1.8 + (dart + phase) * DART_ADVANCE;
+            position[1] = from + (to - from) * phase;
+        }
+    };
+
+    /**
+     * Return the ball position on the ground plane at a time.
+     *
+     * @param time     The time since the start, in seconds
+     * @param position Receives the x and y coordinates, in meters
+     */
+    public abstract void getPosition(double time, double[] position);
+}
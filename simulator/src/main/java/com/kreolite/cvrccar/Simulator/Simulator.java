@@ -0,0 +1,320 @@
+package com.kreolite.cvrccar.Simulator;
+
+import com.kreolite.cvrccar.ColorBlobDetection.BlobStats;
+import com.kreolite.cvrccar.ColorBlobDetection.BlobTracker;
+import com.kreolite.cvrccar.ColorBlobDetection.CarController;
+import com.kreolite.cvrccar.ColorBlobDetection.PixelBlobDetector;
+import com.kreolite.cvrccar.Profiling.LatencyHistogram;
+import com.kreolite.cvrccar.Protocol.CommandGate;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+
+/**
+ * Headless closed loop simulation of the car chasing a ball. Frames of the
+ * scene are rendered from the car camera, go through the same detection,
+ * tracking and control code as the app, and the resulting PWM values drive
+ * the car model after the Bluetooth latency. Time is simulated, so a run
+ * goes as fast as the host allows and gives the same result every time.
+ *
+ * Run with: ./gradlew :simulator:run -Pargs="scenario=ESCAPE duration=60"
+ */
+public class Simulator {
+    private static final long   NANOS_PER_SECOND = 1000000000L;
+    private static final long   PHYSICS_STEP_NANOS = 1000000L;
+    // Simulated clock start, captures at 0 would look like no capture
+    private static final long   START_NANOS = NANOS_PER_SECOND;
+
+    /* Setup, same defaults as the app */
+    private static final double CAMERA_FOV = Math.toRadians(60);
+    private static final double CAMERA_HEIGHT = 0.2;
+    private static final double BALL_RADIUS = 0.15;
+    private static final double[] TARGET_HSV = {85, 220, 220};
+    private static final double[] COLOR_RADIUS = {5, 50, 200, 0};
+    private static final double MIN_RADIUS = 15;
+    private static final double FORWARD_BOUNDARY_PERCENT = -0.1;
+    private static final double REVERSE_BOUNDARY_PERCENT = 0.25;
+    // Same dead band as the pan controller, the target is centered within it
+    private static final double CENTERED_FRACTION = 30.0 / 176;
+
+    private Scenario           mScenario = Scenario.CIRCLE;
+    private double             mDurationSeconds = 60;
+    private int                mWidth = 352;
+    private int                mHeight = 288;
+    private double             mFrameRate = 30;
+    private double             mControlRateHz = 50;
+    // Time from frame capture to its detection result
+    private double             mDetectionDelayMs = 30;
+    // Time from a command to the servos
+    private double             mLinkDelayMs = 20;
+    private int                mThreadCount = 1;
+    private long               mSeed = 12345;
+
+    /** Detection result waiting for the simulated pipeline latency */
+    private static class PendingResult {
+        final BlobStats        mBlobs = new BlobStats();
+        int                    mTarget;
+        long                   mCaptureNanos;
+        long                   mReadyNanos;
+    }
+
+    /** Command waiting for the simulated link latency */
+    private static class PendingCommand {
+        long                   mApplyNanos;
+        int                    mPan, mSteering, mMotor;
+    }
+
+    private final ArrayDeque<PendingResult>  mResults = new ArrayDeque<>();
+    private final ArrayDeque<PendingResult>  mFreeResults = new ArrayDeque<>();
+    private final ArrayDeque<PendingCommand> mCommands = new ArrayDeque<>();
+    private final ArrayDeque<PendingCommand> mFreeCommands = new ArrayDeque<>();
+    private PendingResult      mLastResult;
+    private int                mCountOutOfFrame;
+    private final CommandGate  mCommandGate = new CommandGate();
+
+    // Metrics
+    private final LatencyHistogram mFrameCost = new LatencyHistogram();
+    private final LatencyHistogram mControlCost = new LatencyHistogram();
+    private long               mFrames;
+    private long               mFramesInView;
+    private long               mCommandCount;
+    private double             mErrorSum, mErrorSquareSum, mMaxError;
+    private long               mFirstLockNanos = -1;
+    private long               mCenteredNanos = -1;
+    private long               mWallNanos;
+    private String             mSearchReport = "";
+
+    public void setScenario(Scenario scenario) {
+        mScenario = scenario;
+    }
+
+    public void setDurationSeconds(double duration) {
+        mDurationSeconds = duration;
+    }
+
+    public void setResolution(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public void setFrameRate(double frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    public void setControlRateHz(double rateHz) {
+        mControlRateHz = rateHz;
+    }
+
+    public void setDetectionDelayMs(double delayMs) {
+        mDetectionDelayMs = delayMs;
+    }
+
+    public void setLinkDelayMs(double delayMs) {
+        mLinkDelayMs = delayMs;
+    }
+
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Return the gate deciding which commands are sent, to set it up.
+     */
+    public CommandGate getCommandGate() {
+        return mCommandGate;
+    }
+
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    public void run() throws InterruptedException {
+        CarModel car = new CarModel(0, 0, 0);
+        PinholeCamera camera = new PinholeCamera(mWidth, mHeight, CAMERA_FOV, CAMERA_HEIGHT, mSeed);
+        PixelBlobDetector detector = new PixelBlobDetector();
+        detector.setColorRadius(COLOR_RADIUS);
+        detector.setHsvColor(TARGET_HSV);
+        detector.setThreadCount(mThreadCount);
+        BlobTracker tracker = new BlobTracker();
+        CarController controller = new CarController();
+        controller.setCameraFieldOfView(Math.toDegrees(CAMERA_FOV));
+
+        long framePeriod = (long) (NANOS_PER_SECOND / mFrameRate);
+        long controlPeriod = (long) (NANOS_PER_SECOND / mControlRateHz);
+        long detectionDelay = (long) (mDetectionDelayMs * 1e6);
+        long linkDelay = (long) (mLinkDelayMs * 1e6);
+        long end = START_NANOS + (long) (mDurationSeconds * NANOS_PER_SECOND);
+        long nextFrame = START_NANOS;
+        long nextControl = START_NANOS;
+        double[] ball = new double[2];
+        double centeredError = CENTERED_FRACTION * mWidth / 2;
+
+        long wallStart = System.nanoTime();
+        for (long now = START_NANOS; now < end; now += PHYSICS_STEP_NANOS) {
+            // Commands reach the car after the link latency
+            while (!mCommands.isEmpty() && mCommands.peek().mApplyNanos <= now) {
+                PendingCommand command = mCommands.poll();
+                car.command(command.mPan, command.mSteering, command.mMotor);
+                mFreeCommands.add(command);
+            }
+            car.update(PHYSICS_STEP_NANOS / 1e9);
+            mScenario.getPosition((now - START_NANOS) / 1e9, ball);
+
+            if (now >= nextFrame) {
+                nextFrame += framePeriod;
+                byte[] frame = camera.render(car.getX(), car.getY(), car.getCameraYaw(), ball[0], ball[1], BALL_RADIUS);
+
+                long start = System.nanoTime();
+                detector.detect(frame, mWidth, mHeight);
+                tracker.update(detector.getBlobs(), now, MIN_RADIUS);
+                mFrameCost.record(System.nanoTime() - start);
+
+                PendingResult result = mFreeResults.isEmpty() ? new PendingResult() : mFreeResults.poll();
+                result.mBlobs.copyFrom(detector.getBlobs());
+                result.mTarget = tracker.getLockedBlob();
+                result.mCaptureNanos = now;
+                result.mReadyNanos = now + detectionDelay;
+                mResults.add(result);
+
+                recordFrame(camera, result, now, centeredError);
+            }
+
+            if (now >= nextControl) {
+                nextControl += controlPeriod;
+                long start = System.nanoTime();
+                control(controller, now, linkDelay);
+                mControlCost.record(System.nanoTime() - start);
+            }
+        }
+        mWallNanos = System.nanoTime() - wallStart;
+        mSearchReport = controller.getSearchPlanner().toString();
+        detector.release();
+    }
+
+    /**
+     * Same steps as ColorBlobDetectionActivity.updateCarPwms, on the newest
+     * detection result available at this tick.
+     */
+    private void control(CarController controller, long now, long linkDelay) throws InterruptedException {
+        boolean isNewResult = false;
+        while (!mResults.isEmpty() && mResults.peek().mReadyNanos <= now) {
+            if (mLastResult != null)
+                mFreeResults.add(mLastResult);
+            mLastResult = mResults.poll();
+            isNewResult = true;
+        }
+
+        double screenCenterX = mWidth / 2.0;
+        double screenCenterY = mHeight / 2.0;
+        if (isNewResult && mLastResult.mTarget >= 0) {
+            controller.updateTargetPWM(screenCenterX, screenCenterY, mLastResult.mBlobs, mLastResult.mTarget,
+                    mLastResult.mCaptureNanos, now, FORWARD_BOUNDARY_PERCENT, REVERSE_BOUNDARY_PERCENT, false);
+            mCountOutOfFrame = 0;
+        } else if (!controller.coastTargetPWM(screenCenterX, screenCenterY, now,
+                FORWARD_BOUNDARY_PERCENT, REVERSE_BOUNDARY_PERCENT, false) && isNewResult) {
+            mCountOutOfFrame++;
+            if (mCountOutOfFrame > 2)
+                controller.searchTarget(now);
+        }
+
+        // Only the commands let through by the gate are sent, as in the app
+        int pan = controller.getPanPwm();
+        int steering = controller.getSteeringPwm();
+        int motor = controller.getMotorPwm();
+        if (mCommandGate.update(now, pan, steering, motor) == CommandGate.SEND_NONE) return;
+
+        PendingCommand command = mFreeCommands.isEmpty() ? new PendingCommand() : mFreeCommands.poll();
+        command.mApplyNanos = now + linkDelay;
+        command.mPan = pan;
+        command.mSteering = steering;
+        command.mMotor = motor;
+        mCommands.add(command);
+        mCommandCount++;
+    }
+
+    private void recordFrame(PinholeCamera camera, PendingResult result, long now, double centeredError) {
+        mFrames++;
+        double error = Math.abs(Math.toDegrees(camera.getTargetBearing()));
+        mErrorSum += error;
+        mErrorSquareSum += error * error;
+        mMaxError = Math.max(mMaxError, error);
+        if (camera.isTargetVisible())
+            mFramesInView++;
+
+        if (result.mTarget < 0) return;
+        if (mFirstLockNanos < 0)
+            mFirstLockNanos = now - START_NANOS;
+        if (mCenteredNanos < 0 && Math.abs(result.mBlobs.getCenterX(result.mTarget) - mWidth / 2.0) < centeredError)
+            mCenteredNanos = now - START_NANOS;
+    }
+
+    public void printReport(PrintStream out) {
+        double simulated = mDurationSeconds;
+        out.println("Scenario " + mScenario + ", " + mWidth + "x" + mHeight + " at " + mFrameRate + " fps, "
+                + String.format("%.0f s simulated in %.2f s (%.1fx real time)",
+                        simulated, mWallNanos / 1e9, simulated * 1e9 / mWallNanos));
+        out.println(String.format("Tracking error: mean %.1f rms %.1f max %.1f deg, target in view %.0f%% of frames",
+                mErrorSum / mFrames, Math.sqrt(mErrorSquareSum / mFrames), mMaxError, 100.0 * mFramesInView / mFrames));
+        out.println("Time to lock: " + formatSeconds(mFirstLockNanos) + ", centered: " + formatSeconds(mCenteredNanos));
+        out.println("Search: " + mSearchReport);
+        out.println(String.format("Command rate: %.1f per second, ", mCommandCount / simulated) + mCommandGate);
+        out.println(String.format("Frame cost: mean %.3f p50 %.3f p99 %.3f max %.3f ms",
+                mFrameCost.getMeanNanos() / 1e6, mFrameCost.getValueAtPercentile(50) / 1e6,
+                mFrameCost.getValueAtPercentile(99) / 1e6, mFrameCost.getMaxNanos() / 1e6));
+        out.println(String.format("Control cost: mean %.4f p99 %.4f ms",
+                mControlCost.getMeanNanos() / 1e6, mControlCost.getValueAtPercentile(99) / 1e6));
+    }
+
+    private static String formatSeconds(long nanos) {
+        return (nanos < 0) ? "never" : String.format("%.2f s", nanos / 1e9);
+    }
+
+    /**
+     * Arguments are key=value pairs: scenario, duration (s), resolution (WxH),
+     * fps, control (Hz), detection (ms), link (ms), threads, deadband (us),
+     * interval and keepalive (ms) of the command gate, and seed.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Simulator simulator = new Simulator();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            String key = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+
+            if (key.equals("scenario")) {
+                simulator.setScenario(Scenario.valueOf(value.toUpperCase()));
+            } else if (key.equals("duration")) {
+                simulator.setDurationSeconds(Double.parseDouble(value));
+            } else if (key.equals("resolution")) {
+                int x = value.indexOf('x');
+                simulator.setResolution(Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x + 1)));
+            } else if (key.equals("fps")) {
+                simulator.setFrameRate(Double.parseDouble(value));
+            } else if (key.equals("control")) {
+                simulator.setControlRateHz(Double.parseDouble(value));
+            } else if (key.equals("detection")) {
+                simulator.setDetectionDelayMs(Double.parseDouble(value));
+            } else if (key.equals("link")) {
+                simulator.setLinkDelayMs(Double.parseDouble(value));
+            } else if (key.equals("threads")) {
+                simulator.setThreadCount(Integer.parseInt(value));
+            } else if (key.equals("deadband")) {
+                int deadband = Integer.parseInt(value);
+                simulator.getCommandGate().setDeadbands(deadband, deadband);
+            } else if (key.equals("interval")) {
+                simulator.getCommandGate().setMinIntervalMs(Double.parseDouble(value));
+            } else if (key.equals("keepalive")) {
+                simulator.getCommandGate().setKeepaliveMs(Double.parseDouble(value));
+            } else if (key.equals("seed")) {
+                simulator.setSeed(Long.parseLong(value));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + key);
+            }
+        }
+
+        simulator.run();
+        simulator.printReport(System.out);
+    }
+}